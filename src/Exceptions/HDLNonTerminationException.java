@@ -0,0 +1,31 @@
+package Exceptions;
+
+/**
+ * Exception for when a simulation is stopped before TERMINATE becomes non-zero,
+ * either because the reg state repeats or because the cycle limit was reached.
+ */
+public class HDLNonTerminationException extends HDLException {
+
+    // First cycle of the repeating states, and how many cycles they repeat after. 0 if no repeat was found.
+    private final long startCycle;
+    private final long period;
+
+    public HDLNonTerminationException(String message) {
+        this(message, 0, 0);
+    }
+
+    public HDLNonTerminationException(String message, long startCycle, long period) {
+        super(message);
+        this.startCycle = startCycle;
+        this.period = period;
+    }
+
+    public long getStartCycle() {
+        return startCycle;
+    }
+
+    public long getPeriod() {
+        return period;
+    }
+
+}
@@ -0,0 +1,173 @@
+package Source;
+
+import Exceptions.HDLException;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Moves trace formatting and file I/O off the simulation thread. Each call
+ * to writeCycle() copies the values into the next slot of a ring of
+ * preallocated snapshots, and a dedicated writer thread hands the snapshots
+ * to the wrapped HDLSim.TraceWriter in order.
+ *
+ * When the ring is full the simulation thread either waits for the writer
+ * to catch up (lossless) or stops the run with an HDLException, depending
+ * on the overflow policy.
+ */
+
+public class AsyncTraceWriter implements TraceWriter {
+
+    /**
+     * What to do when the simulation gets a full ring ahead of the writer.
+     * BLOCK waits for a free slot, FAIL stops the run.
+     */
+    public enum OverflowPolicy { BLOCK, FAIL }
+
+    private final TraceWriter delegate;
+    private final OverflowPolicy policy;
+
+    private final int[][] ring;
+    // Number of snapshots put into the ring by the simulation thread
+    private volatile long published;
+    // Number of snapshots handed to the delegate by the writer thread
+    private volatile long consumed;
+
+    private final Thread writerThread;
+    private final Thread simThread;
+    // Set by a thread right before it parks, so the other side knows to wake it
+    private volatile boolean writerWaiting;
+    private volatile boolean simWaiting;
+    private volatile boolean closed;
+    // First exception thrown by the delegate, reported on the simulation thread
+    private volatile Throwable failure;
+
+    /**
+     * Wraps DELEGATE with a ring of CAPACITY snapshots of the NUMSLOTS slots
+     * of the state array each, and starts the writer thread.
+     */
+    public AsyncTraceWriter(TraceWriter delegate, int numSlots, int capacity, OverflowPolicy policy) {
+        this.delegate = delegate;
+        this.policy = policy;
+        this.ring = new int[Math.max(1, capacity)][numSlots];
+        this.published = 0;
+        this.consumed = 0;
+
+        this.simThread = Thread.currentThread();
+        this.writerThread = new Thread(this::writeLoop, "HDLSim-trace-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Copies the first NUMSLOTS values of VALUES into the ring. Never touches the file.
+     *
+     * Throws HDLException if the ring is full under the FAIL policy.
+     * Throws IOException if the writer thread has failed.
+     */
+    @Override
+    public void writeCycle(int[] values) throws IOException {
+        checkFailure();
+        long seq = published;
+        while (seq - consumed >= ring.length) {
+            if (policy == OverflowPolicy.FAIL) {
+                String msg = String.format("Trace writer fell a full buffer of %d cycle(s) behind the simulation, stopping run", ring.length);
+                throw new HDLException(msg);
+            }
+            simWaiting = true;
+            if (seq - consumed >= ring.length && failure == null) {
+                LockSupport.park(this);
+            }
+            simWaiting = false;
+            checkFailure();
+        }
+
+        int[] slot = ring[(int) (seq % ring.length)];
+        System.arraycopy(values, 0, slot, 0, slot.length);
+        published = seq + 1;
+        if (writerWaiting) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    /**
+     * Waits for every snapshot to be written, then closes the wrapped writer.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        checkFailure();
+        delegate.close();
+    }
+
+
+    /**
+     * Waits for every snapshot to be written, then checkpoints the wrapped writer.
+     * Takes at most as long as the writer needs for one full ring.
+     */
+    @Override
+    public long checkpoint() throws IOException {
+        while (consumed != published) {
+            simWaiting = true;
+            if (consumed != published && failure == null) {
+                LockSupport.park(this);
+            }
+            simWaiting = false;
+            checkFailure();
+        }
+        checkFailure();
+        // The writer thread is idle until the next snapshot is published
+        return delegate.checkpoint();
+    }
+
+
+    // PRIVATE HELPER METHODS /////////////////////////////////////////////////
+
+    /**
+     * Body of the writer thread. Writes snapshots in order until the writer is
+     * closed and the ring is empty.
+     */
+    private void writeLoop() {
+        try {
+            while (true) {
+                long seq = consumed;
+                if (seq == published) {
+                    if (closed) return;
+                    writerWaiting = true;
+                    if (seq == published && !closed) {
+                        LockSupport.park(this);
+                    }
+                    writerWaiting = false;
+                    continue;
+                }
+
+                delegate.writeCycle(ring[(int) (seq % ring.length)]);
+                consumed = seq + 1;
+                if (simWaiting) {
+                    LockSupport.unpark(simThread);
+                }
+            }
+        }
+        catch (Throwable e) {
+            failure = e;
+            LockSupport.unpark(simThread);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable e = failure;
+        if (e instanceof IOException io) throw io;
+        if (e instanceof RuntimeException re) throw re;
+        if (e != null) throw new IOException("Trace writer thread failed", e);
+    }
+
+}
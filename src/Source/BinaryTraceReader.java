@@ -0,0 +1,168 @@
+package Source;
+
+import Exceptions.HDLException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Reads a trace written by HDLSim.BinaryTraceWriter. Only the header and
+ * the footer index are read up front. Pulling a signal over a range of
+ * cycles memory-maps and decodes just that signal's columns for the chunks
+ * in the range, and leaves every other signal untouched.
+ *
+ * The footer index is mapped in windows of INDEX_WINDOW_ENTRIES entries,
+ * since one mapping can not be larger than 2GB.
+ */
+
+public class BinaryTraceReader implements Closeable {
+
+    // Bytes of one index entry: the offset (8 bytes) and length (4 bytes) of a column
+    private static final int INDEX_ENTRY_BYTES = 12;
+    // Index entries in one mapped window, about 1GB
+    private static final long INDEX_WINDOW_ENTRIES = (1L << 30) / INDEX_ENTRY_BYTES;
+
+    private final FileChannel channel;
+
+    private final int chunkCycles;
+    private final ArrayList<String> names;
+    private final HashMap<String, Integer> signalIndex;
+    private final long cycles;
+    private final int numChunks;
+    // Footer index of column offsets and lengths, in windows of INDEX_WINDOW_ENTRIES entries
+    private final MappedByteBuffer[] index;
+
+    /**
+     * Opens the trace at PATH and reads its header and footer index.
+     *
+     * Throws HDLException if the file is not a valid trace.
+     */
+    public BinaryTraceReader(Path path) throws IOException, HDLException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        long size = channel.size();
+
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, 20);
+        if (header.getInt() != BinaryTraceWriter.MAGIC) {
+            throw new HDLException(path + " is not a binary trace");
+        }
+        if (header.getInt() != BinaryTraceWriter.VERSION) {
+            throw new HDLException(path + " was written by an unsupported version");
+        }
+        this.chunkCycles = header.getInt();
+        int numSignals = header.getInt();
+        int namesLength = header.getInt();
+
+        MappedByteBuffer nameBlock = channel.map(FileChannel.MapMode.READ_ONLY, 20, namesLength);
+        this.names = new ArrayList<>();
+        this.signalIndex = new HashMap<>();
+        for (int s = 0; s < numSignals; s++) {
+            byte[] name = new byte[nameBlock.getShort()];
+            nameBlock.get(name);
+            names.add(new String(name, StandardCharsets.UTF_8));
+            signalIndex.put(names.get(s), s);
+        }
+
+        MappedByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - 12, 12);
+        long footerOffset = trailer.getLong();
+        if (trailer.getInt() != BinaryTraceWriter.MAGIC) {
+            throw new HDLException(path + " is truncated, the run may not have finished");
+        }
+
+        MappedByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, footerOffset, 12);
+        this.cycles = footer.getLong();
+        this.numChunks = footer.getInt();
+        long entries = (long) numChunks * numSignals;
+        this.index = new MappedByteBuffer[(int) ((entries + INDEX_WINDOW_ENTRIES - 1) / INDEX_WINDOW_ENTRIES)];
+        for (int w = 0; w < index.length; w++) {
+            long first = w * INDEX_WINDOW_ENTRIES;
+            long length = Math.min(INDEX_WINDOW_ENTRIES, entries - first) * INDEX_ENTRY_BYTES;
+            index[w] = channel.map(FileChannel.MapMode.READ_ONLY, footerOffset + 12 + first * INDEX_ENTRY_BYTES, length);
+        }
+    }
+
+    /**
+     * Returns the values of SIGNAL for cycles FROMCYCLE up to (not including)
+     * TOCYCLE. Cycle 0 holds the starting values.
+     *
+     * Throws HDLException if SIGNAL is not in the trace or the range is invalid.
+     */
+    public int[] read(String signal, long fromCycle, long toCycle) throws IOException, HDLException {
+        Integer s = signalIndex.get(signal);
+        if (s == null) {
+            throw new HDLException(signal + " is not in this trace");
+        }
+        if (fromCycle < 0 || toCycle > cycles || fromCycle > toCycle) {
+            throw new HDLException(String.format("Cycle range [%d, %d) is outside the trace of %d cycles",
+                    fromCycle, toCycle, cycles));
+        }
+
+        int[] out = new int[(int) (toCycle - fromCycle)];
+        if (out.length == 0) return out;
+
+        int firstChunk = (int) (fromCycle / chunkCycles);
+        int lastChunk = (int) ((toCycle - 1) / chunkCycles);
+        for (int c = firstChunk; c <= lastChunk; c++) {
+            long entry = (long) c * names.size() + s;
+            MappedByteBuffer window = index[(int) (entry / INDEX_WINDOW_ENTRIES)];
+            int position = (int) (entry % INDEX_WINDOW_ENTRIES) * INDEX_ENTRY_BYTES;
+            long offset = window.getLong(position);
+            int length = window.getInt(position + 8);
+            MappedByteBuffer column = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+
+            // Decode the whole column, keeping only the cycles inside the range
+            long cycle = (long) c * chunkCycles;
+            int value = 0;
+            while (column.hasRemaining() && cycle < toCycle) {
+                int zigzag = readVarint(column);
+                int delta = (zigzag >>> 1) ^ -(zigzag & 1);
+                int count = readVarint(column);
+                for (int i = 0; i < count && cycle < toCycle; i++, cycle++) {
+                    value += delta;
+                    if (cycle >= fromCycle) {
+                        out[(int) (cycle - fromCycle)] = value;
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+    public List<String> getSignalNames() {
+        return names;
+    }
+
+    /**
+     * Returns the number of recorded cycles, including the starting values.
+     */
+    public long getCycles() {
+        return cycles;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static int readVarint(MappedByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+}
@@ -0,0 +1,272 @@
+package Source;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Writes a columnar binary trace that HDLSim.BinaryTraceReader can pull single
+ * signals out of without decoding the rest. Cycles are grouped into chunks
+ * of CHUNK_CYCLES. Within a chunk every signal's values are stored as their
+ * own column, encoded as runs of equal deltas.
+ *
+ * File layout (all numbers big-endian):
+ * - Header: MAGIC, VERSION, chunk size, signal count, length of the name
+ *   block, then every name as a 2 byte length followed by UTF-8 bytes
+ * - Chunks: the columns of every signal, one chunk after the other
+ * - Footer: cycle count, chunk count, then for every chunk and every signal
+ *   the column's offset (8 bytes) and length (4 bytes)
+ * - Trailer: offset of the footer (8 bytes) and MAGIC
+ *
+ * A column is a list of (delta, count) pairs, both written as varints with
+ * the delta zigzag encoded. Each pair stands for COUNT values that each
+ * differ from the one before by DELTA. The value before a chunk's first
+ * value is taken to be 0, so every column decodes on its own.
+ *
+ * The footer index grows with every chunk, so it is kept in a temporary
+ * file next to the trace while the run goes on and copied into the footer
+ * on close().
+ */
+
+public class BinaryTraceWriter implements TraceWriter {
+
+    public static final int MAGIC = 0x48444C54; // "HDLT"
+    public static final int VERSION = 1;
+    public static final int CHUNK_CYCLES = 4096;
+
+    // Size of the buffer the file is written through
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final int numSignals;
+    // Slot of every signal, in name order
+    private final int[] slots;
+
+    // Column being built for every signal in the current chunk
+    private final byte[][] columns;
+    private final int[] columnLengths;
+    // Previous value and the pending run of equal deltas for every signal
+    private final int[] prevValues;
+    private final int[] runDeltas;
+    private final int[] runLengths;
+
+    private int chunkCycles;
+    private long cycles;
+    // Footer index of every finished chunk, deleted when closed
+    private final FileChannel indexChannel;
+    // Index entries of one chunk: offset and length of every column
+    private final ByteBuffer chunkIndex;
+    private int numChunks;
+
+    /**
+     * Creates the trace file at PATH for the signals in NAMES and writes its header.
+     */
+    public BinaryTraceWriter(List<String> names, Path path) throws IOException {
+        this(names, TraceWriter.identitySlots(names.size()), path);
+    }
+
+    /**
+     * Same as above, for signals whose values are at SLOTS in the state array.
+     */
+    public BinaryTraceWriter(List<String> names, int[] slots, Path path) throws IOException {
+        this.slots = slots;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.numSignals = names.size();
+
+        this.columns = new byte[numSignals][16];
+        this.columnLengths = new int[numSignals];
+        this.prevValues = new int[numSignals];
+        this.runDeltas = new int[numSignals];
+        this.runLengths = new int[numSignals];
+
+        this.chunkCycles = 0;
+        this.cycles = 0;
+        this.indexChannel = FileChannel.open(path.resolveSibling(path.getFileName() + ".index"),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        this.chunkIndex = ByteBuffer.allocate(numSignals * 12);
+        this.numChunks = 0;
+
+        writeHeader(names);
+    }
+
+    @Override
+    public void writeCycle(int[] values) throws IOException {
+        for (int s = 0; s < numSignals; s++) {
+            int value = values[slots[s]];
+            int delta = value - prevValues[s];
+            if (runLengths[s] > 0 && delta == runDeltas[s]) {
+                runLengths[s]++;
+            }
+            else {
+                if (runLengths[s] > 0) endRun(s);
+                runDeltas[s] = delta;
+                runLengths[s] = 1;
+            }
+            prevValues[s] = value;
+        }
+
+        cycles++;
+        chunkCycles++;
+        if (chunkCycles == CHUNK_CYCLES) {
+            writeChunk();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (chunkCycles > 0) {
+            writeChunk();
+        }
+
+        // Footer
+        long footerOffset = position();
+        putLong(cycles);
+        putInt(numChunks);
+        drain();
+        long indexLength = indexChannel.size();
+        for (long copied = 0; copied < indexLength; ) {
+            copied += indexChannel.transferTo(copied, indexLength - copied, channel);
+        }
+        indexChannel.close();
+
+        // Trailer
+        putLong(footerOffset);
+        putInt(MAGIC);
+
+        drain();
+        channel.close();
+    }
+
+
+    /**
+     * Not supported, since resuming would need the offsets of every chunk written so far.
+     */
+    @Override
+    public long checkpoint() {
+        throw new UnsupportedOperationException("A binary trace can not be resumed from a checkpoint");
+    }
+
+
+    // PRIVATE HELPER METHODS /////////////////////////////////////////////////
+
+    private void writeHeader(List<String> names) throws IOException {
+        byte[][] nameBytes = new byte[numSignals][];
+        int namesLength = 0;
+        for (int s = 0; s < numSignals; s++) {
+            nameBytes[s] = names.get(s).getBytes(StandardCharsets.UTF_8);
+            namesLength += 2 + nameBytes[s].length;
+        }
+
+        putInt(MAGIC);
+        putInt(VERSION);
+        putInt(CHUNK_CYCLES);
+        putInt(numSignals);
+        putInt(namesLength);
+        for (byte[] name : nameBytes) {
+            ensureRemaining(2);
+            buffer.putShort((short) name.length);
+            putBytes(name, name.length);
+        }
+    }
+
+    /**
+     * Writes the column of every signal for the current chunk to the file
+     * and starts a new, empty chunk.
+     */
+    private void writeChunk() throws IOException {
+        chunkIndex.clear();
+        for (int s = 0; s < numSignals; s++) {
+            endRun(s);
+            chunkIndex.putLong(position());
+            chunkIndex.putInt(columnLengths[s]);
+            putBytes(columns[s], columnLengths[s]);
+
+            columnLengths[s] = 0;
+            prevValues[s] = 0;
+            runLengths[s] = 0;
+        }
+        chunkIndex.flip();
+        while (chunkIndex.hasRemaining()) {
+            indexChannel.write(chunkIndex);
+        }
+        numChunks++;
+        chunkCycles = 0;
+    }
+
+    /**
+     * Appends the pending run of signal S to its column.
+     */
+    private void endRun(int s) {
+        if (runLengths[s] == 0) return;
+        int delta = runDeltas[s];
+        appendVarint(s, (delta << 1) ^ (delta >> 31));
+        appendVarint(s, runLengths[s]);
+        runLengths[s] = 0;
+    }
+
+    private void appendVarint(int s, int value) {
+        if (columnLengths[s] + 5 > columns[s].length) {
+            columns[s] = Arrays.copyOf(columns[s], columns[s].length * 2);
+        }
+        byte[] column = columns[s];
+        while ((value & ~0x7F) != 0) {
+            column[columnLengths[s]++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        column[columnLengths[s]++] = (byte) value;
+    }
+
+    /**
+     * Returns the file offset the next byte put into the buffer will end up at.
+     */
+    private long position() throws IOException {
+        return channel.position() + buffer.position();
+    }
+
+    private void putInt(int value) throws IOException {
+        ensureRemaining(4);
+        buffer.putInt(value);
+    }
+
+    private void putLong(long value) throws IOException {
+        ensureRemaining(8);
+        buffer.putLong(value);
+    }
+
+    private void putBytes(byte[] bytes, int length) throws IOException {
+        int written = 0;
+        while (written < length) {
+            if (!buffer.hasRemaining()) drain();
+            int n = Math.min(length - written, buffer.remaining());
+            buffer.put(bytes, written, n);
+            written += n;
+        }
+    }
+
+    private void ensureRemaining(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) drain();
+    }
+
+    /**
+     * Writes everything in the buffer to the file and empties it.
+     */
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+}
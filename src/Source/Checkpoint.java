@@ -0,0 +1,146 @@
+package Source;
+
+import Exceptions.HDLException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Snapshot of a running simulation that a later run can continue from.
+ * Wires are a function of the regs, so only the cycle count, the reg values
+ * and the length of the trace file at that cycle are stored. A design
+ * fingerprint guards against resuming a different design or trace format.
+ *
+ * Each snapshot is written to a temporary file and renamed over the last
+ * one, so the file always holds a complete snapshot even if the run dies
+ * while writing. Writing one allocates nothing.
+ *
+ * File layout (all numbers big-endian): MAGIC, VERSION, fingerprint, cycle
+ * count, trace length (-1 without a trace), reg count, then every reg's
+ * value in the order given to save().
+ */
+
+public class Checkpoint {
+
+    public static final int MAGIC = 0x48444C43; // "HDLC"
+    public static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 8 + 8 + 4;
+
+    private final Path path;
+    private final Path tempPath;
+    // Reused by every save()
+    private ByteBuffer buffer;
+
+    // Contents of the last snapshot saved or loaded
+    private int fingerprint;
+    private long cycle;
+    private long traceLength;
+    private int[] regValues;
+
+    /**
+     * Prepares snapshots to be saved to and loaded from PATH.
+     */
+    public Checkpoint(Path path) {
+        this.path = path;
+        this.tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+    }
+
+    /**
+     * Writes a snapshot of cycle CYCLE of the design with FINGERPRINT, with
+     * the trace file TRACELENGTH bytes long. The reg values are read from
+     * VALUES at REGSLOTS.
+     */
+    public void save(int fingerprint, long cycle, long traceLength, int[] values, int[] regSlots) throws IOException {
+        int size = HEADER_BYTES + 4 * regSlots.length;
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+        buffer.clear();
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(fingerprint);
+        buffer.putLong(cycle);
+        buffer.putLong(traceLength);
+        buffer.putInt(regSlots.length);
+        for (int slot : regSlots) {
+            buffer.putInt(values[slot]);
+        }
+        buffer.flip();
+
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        this.fingerprint = fingerprint;
+        this.cycle = cycle;
+        this.traceLength = traceLength;
+        this.regValues = null;
+    }
+
+    /**
+     * Reads the snapshot in the file, which a getter can then return parts of.
+     *
+     * Throws HDLException if there is no snapshot or it is not readable.
+     */
+    public void load() throws HDLException {
+        ByteBuffer in;
+        try {
+            in = ByteBuffer.wrap(Files.readAllBytes(path));
+        }
+        catch (IOException e) {
+            throw new HDLException("No checkpoint to resume from at " + path);
+        }
+        if (in.remaining() < HEADER_BYTES || in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new HDLException("Checkpoint " + path + " is not readable");
+        }
+        fingerprint = in.getInt();
+        cycle = in.getLong();
+        traceLength = in.getLong();
+        int numRegs = in.getInt();
+        if (numRegs < 0 || in.remaining() != 4 * numRegs) {
+            throw new HDLException("Checkpoint " + path + " is not readable");
+        }
+        regValues = new int[numRegs];
+        in.asIntBuffer().get(regValues);
+    }
+
+    /**
+     * Removes the snapshot, if there is one.
+     */
+    public void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    public int getFingerprint() {
+        return fingerprint;
+    }
+
+    public long getCycle() {
+        return cycle;
+    }
+
+    public long getTraceLength() {
+        return traceLength;
+    }
+
+    /**
+     * Returns the reg values of the last snapshot loaded, in the order they were saved.
+     */
+    public int[] getRegValues() {
+        return regValues;
+    }
+
+}
@@ -0,0 +1,20 @@
+package Source;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * A whole design compiled down to straight-line JVM code by
+ * HDLSim.NetlistCompiler. Signal values live in int arrays indexed by the
+ * slot numbers that were used when the design was compiled.
+ */
+
+public interface CompiledNetlist {
+
+    /**
+     * Executes a single clock cycle. Reg next-states are computed from CUR,
+     * then every wire is computed in topological order from NEXT.
+     * Every slot of NEXT is overwritten.
+     */
+    void step(int[] cur, int[] next);
+
+}
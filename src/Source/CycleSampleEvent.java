@@ -0,0 +1,32 @@
+package Source;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Flight Recorder event spanning one window of cycles simulated by
+ * Signals.stepToTerminate(), committed every sample interval. Shows how the
+ * simulation speed changes over a long run.
+ */
+
+@Name("HDLSim.CycleSample")
+@Label("Cycle Sample")
+@Category("HDLSim")
+@Description("A window of simulated cycles and the speed they were simulated at")
+public class CycleSampleEvent extends Event {
+
+    @Label("First Cycle")
+    public long firstCycle;
+
+    @Label("Cycles")
+    public long cycles;
+
+    @Label("Cycles Per Second")
+    public double cyclesPerSecond;
+
+}
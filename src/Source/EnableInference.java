@@ -0,0 +1,156 @@
+package Source;
+
+import java.util.ArrayList;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Finds an enable for a reg: a subexpression of its slot-bound driving
+ * expression that, whenever it is 0, makes the whole expression equal the
+ * reg's current value. While the enable is 0 the reg holds, so the rest of
+ * the expression does not need to be evaluated.
+ *
+ * Hold-or-update regs are written with masks in this language, e.g.
+ * r <= (d & (0 - en)) | (r & ~(0 - en)), or r <= r + (step & en).
+ * Each subexpression is tried as the enable by replacing it with 0 and
+ * simplifying the tree with constant folding and identities such as
+ * (x & 0), (x | 0) and (x & -1). The subexpression is an enable if only the
+ * reg itself is left. Of all enables the smallest one is chosen, since it is
+ * evaluated every cycle.
+ *
+ * An enable is only worth it if it is much cheaper than the expression it
+ * guards: in r <= r ^ (a + b), (a + b) is an enable, but evaluating it
+ * first saves next to nothing when the reg updates. Enables must be at most
+ * 1 / MIN_SIZE_RATIO of the expression's size.
+ */
+
+public class EnableInference {
+
+    // Reg expressions larger than this are not analyzed. Trying every subexpression takes quadratic time.
+    static final int MAX_NODES = 64;
+    // How many times larger than its enable a reg expression must be
+    static final int MIN_SIZE_RATIO = 4;
+
+    private static final ExpressionNode ZERO = new ExpressionNode.Constant(0);
+
+    private EnableInference() { }
+
+    /**
+     * Returns the enable of the reg in REGSLOT driven by the slot-bound
+     * EXPRESSION, or null if it has none at most 1 / MIN_SIZE_RATIO of its size.
+     */
+    public static ExpressionNode inferEnable(int regSlot, ExpressionNode expression) {
+        long size = NetlistOptimizer.countNodes(expression);
+        if (size > MAX_NODES) return null;
+
+        ArrayList<ExpressionNode> candidates = new ArrayList<>();
+        collectSubexpressions(expression, candidates);
+        ExpressionNode best = null;
+        long bestSize = size / MIN_SIZE_RATIO + 1;
+        for (ExpressionNode candidate : candidates) {
+            long candidateSize = NetlistOptimizer.countNodes(candidate);
+            if (candidateSize >= bestSize) continue;
+            ExpressionNode held = replaceWithZero(expression, candidate);
+            if (held instanceof ExpressionNode.SignalRef ref && ref.getSlot() == regSlot) {
+                best = candidate;
+                bestSize = candidateSize;
+            }
+        }
+        return best;
+    }
+
+    // PRIVATE HELPER METHODS /////////////////////////////////////////////////
+
+    /**
+     * Adds every subexpression of NODE below the root that is not a constant
+     * to OUT, in pre-order.
+     */
+    private static void collectSubexpressions(ExpressionNode node, ArrayList<ExpressionNode> out) {
+        if (node instanceof ExpressionNode.Unary unary) {
+            addSubtree(unary.getOperand(), out);
+        }
+        else if (node instanceof ExpressionNode.Binary binary) {
+            addSubtree(binary.getLeft(), out);
+            addSubtree(binary.getRight(), out);
+        }
+    }
+
+    private static void addSubtree(ExpressionNode node, ArrayList<ExpressionNode> out) {
+        if (node instanceof ExpressionNode.Constant) return;
+        out.add(node);
+        collectSubexpressions(node, out);
+    }
+
+    /**
+     * Returns NODE simplified with every occurrence of TARGET replaced by 0.
+     */
+    private static ExpressionNode replaceWithZero(ExpressionNode node, ExpressionNode target) {
+        if (same(node, target)) {
+            return ZERO;
+        }
+        if (node instanceof ExpressionNode.Unary unary) {
+            ExpressionNode operand = replaceWithZero(unary.getOperand(), target);
+            if (operand instanceof ExpressionNode.Constant c) {
+                return new ExpressionNode.Constant(unary.getOp().apply(c.getValue()));
+            }
+            return operand == unary.getOperand() ? node : new ExpressionNode.Unary(unary.getOp(), operand);
+        }
+        if (node instanceof ExpressionNode.Binary binary) {
+            ExpressionNode left = replaceWithZero(binary.getLeft(), target);
+            ExpressionNode right = replaceWithZero(binary.getRight(), target);
+            ExpressionNode simplified = simplify(binary.getOp(), left, right);
+            if (simplified != null) return simplified;
+            return left == binary.getLeft() && right == binary.getRight()
+                    ? node : new ExpressionNode.Binary(binary.getOp(), left, right);
+        }
+        return node;
+    }
+
+    /**
+     * Returns (LEFT OP RIGHT) folded or reduced by an identity, or null if
+     * no rule applies.
+     */
+    private static ExpressionNode simplify(Operator op, ExpressionNode left, ExpressionNode right) {
+        Integer a = left instanceof ExpressionNode.Constant c ? c.getValue() : null;
+        Integer b = right instanceof ExpressionNode.Constant c ? c.getValue() : null;
+        if (a != null && b != null) {
+            return new ExpressionNode.Constant(op.apply(a, b));
+        }
+        boolean same = same(left, right);
+        return switch (op) {
+            case PLUS -> isValue(a, 0) ? right : isValue(b, 0) ? left : null;
+            case MINUS -> isValue(b, 0) ? left : same ? ZERO : null;
+            case BITWISE_AND -> isValue(a, 0) || isValue(b, 0) ? ZERO
+                    : isValue(a, -1) ? right : isValue(b, -1) || same ? left : null;
+            case BITWISE_OR -> isValue(a, 0) ? right : isValue(b, 0) || same ? left
+                    : isValue(a, -1) || isValue(b, -1) ? new ExpressionNode.Constant(-1) : null;
+            case BITWISE_XOR -> isValue(a, 0) ? right : isValue(b, 0) ? left : same ? ZERO : null;
+            case EQUALITY -> same ? new ExpressionNode.Constant(1) : null;
+            case INEQUALITY -> same ? ZERO : null;
+            default -> null;
+        };
+    }
+
+    private static boolean isValue(Integer constant, int value) {
+        return constant != null && constant == value;
+    }
+
+    /**
+     * Returns whether A and B are the same tree. Signal references are
+     * compared by slot, so an alias matches the signal it copies.
+     */
+    private static boolean same(ExpressionNode a, ExpressionNode b) {
+        if (a == b) return true;
+        if (a instanceof ExpressionNode.SignalRef ra && b instanceof ExpressionNode.SignalRef rb) {
+            return ra.getSlot() == rb.getSlot();
+        }
+        if (a instanceof ExpressionNode.Unary ua && b instanceof ExpressionNode.Unary ub) {
+            return ua.getOp() == ub.getOp() && same(ua.getOperand(), ub.getOperand());
+        }
+        if (a instanceof ExpressionNode.Binary ba && b instanceof ExpressionNode.Binary bb) {
+            return ba.getOp() == bb.getOp() && same(ba.getLeft(), bb.getLeft()) && same(ba.getRight(), bb.getRight());
+        }
+        return a.equals(b);
+    }
+
+}
@@ -5,7 +5,8 @@ import Exceptions.HDLParseException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;;
+import java.util.List;
+import java.util.Map;
 
 /**
  * @author Jonah Tharakan
@@ -15,7 +16,9 @@ import java.util.List;;
  * signals and constants to resolve a signal integer value, which will be
  * returned upon calling "eval(...)" on the HDLSim.Expression object.
  *
- * Internally the expressions are just stored as strings.
+ * The string is parsed once, on construction, into an immutable tree of
+ * HDLSim.ExpressionNode objects with operators already resolved. Evaluation
+ * and signal name lookups only ever walk that tree.
  *
  * Valid expressions take one of the following forms:
  * - #
@@ -33,14 +36,61 @@ public class Expression {
             "+", "-", "&", "|", "^", "==", "!="
     );
 
-    private final String expression;
+    // Source text of the expression. Null until asked for if the tree was not parsed from a string.
+    private String expression;
+    // Parsed form of the expression. Never changes after construction.
+    private final ExpressionNode root;
 
-    public Expression(String expression) {
+    /**
+     * Parses EXPRESSION into a tree that can be evaluated many times.
+     *
+     * Throws HDLParseException if there is a problem with the expression.
+     */
+    public Expression(String expression) throws HDLParseException {
         this.expression = expression;
+        Lexer lexer = new Lexer(expression);
+        this.root = parseTerm(lexer);
+        if (lexer.kind() != Lexer.Kind.EOF) {
+            throw lexer.error(String.format("Unexpected '%s'", lexer.tokenSource()));
+        }
+    }
+
+    /**
+     * Wraps an already built tree ROOT, such as one read back from a
+     * HDLSim.NetlistCache.
+     */
+    Expression(ExpressionNode root) {
+        this(null, root);
+    }
+
+    private Expression(String expression, ExpressionNode root) {
+        this.expression = expression;
+        this.root = root;
+    }
+
+    /**
+     * Returns a copy of this expression whose signal references are bound to
+     * the slots in SLOTS, so it can be evaluated with eval(int[]).
+     *
+     * Throws HDLParseException if a referenced signal has no slot.
+     */
+    public Expression bind(Map<String, Integer> slots) throws HDLParseException {
+        return new Expression(expression, root.bind(slots));
+    }
+
+    /**
+     * Returns a copy of this expression with PREFIX put in front of every
+     * signal name, without parsing anything again.
+     */
+    public Expression withPrefix(String prefix) {
+        return new Expression(null, root.withPrefix(prefix));
     }
 
     @Override
     public String toString() {
+        if (this.expression == null) {
+            this.expression = root.toString();
+        }
         return this.expression;
     }
 
@@ -48,43 +98,10 @@ public class Expression {
      * Evaluates this expression to return a single integer.
      * Any encountered signals are replaced with their value found in VALUES.
      *
-     * Throws HDLParseException if there is a problem with the expression.
+     * Throws HDLParseException if VALUES is missing a signal.
      */
     public int eval(HashMap<String, Integer> values) throws HDLParseException {
-        char firstChar = expression.charAt(0);
-
-        // Not case
-        if (firstChar == '!') {
-            return evalLogicalNot(values);
-        }
-        else if (firstChar == '~') {
-            return evalBitwiseNot(values);
-        }
-
-        // Subexpression case
-        else if (expression.contains("(")) {
-            return evalOperator(values);
-        }
-
-        // Variable lookup case
-        else if (expression.charAt(0) == '/') {
-            if (values.containsKey(expression)) {
-                return values.get(expression);
-            } else {
-                String msg = String.format("Provided values map does not contain key %s!", expression);
-                throw new HDLParseException(msg);
-            }
-        }
-
-        // Constant case
-        else {
-            if (expression.length() > 2 && expression.startsWith("0x")) {
-                return Integer.parseInt(expression.substring(2), 16);
-            } else if (expression.length() > 2 && expression.startsWith("0b")) {
-                return Integer.parseInt(expression.substring(2), 2);
-            }
-            return Integer.parseInt(expression);
-        }
+        return root.eval(values);
     }
 
     /**
@@ -97,208 +114,100 @@ public class Expression {
         return eval(new HashMap<>());
     }
 
-
-    // PRIVATE HELPER METHODS /////////////////////////////////////////////////
-
-    /**
-     * Evaluates the subexpression and then returns the logical not (!)
-     * of the subexpression value
-     */
-    private int evalLogicalNot(HashMap<String, Integer> values) {
-        Expression subexpr = new Expression(expression.substring(1));
-        return subexpr.eval(values) == 0 ? 1 : 0;
-    }
-
     /**
-     * Evaluates the subexpression and then returns the bitwise not (~)
-     * of the subexpression value
+     * Evaluates this expression, reading signal values out of VALUES by slot.
+     * Only valid on an expression returned by bind().
      */
-    private int evalBitwiseNot(HashMap<String, Integer> values) {
-        Expression subexpr = new Expression(expression.substring(1));
-        return ~subexpr.eval(values);
+    public int eval(int[] values) {
+        return root.eval(values);
     }
 
     /**
-     * Splits the expression into two subexpressions. Evaluates each of them
-     * and then uses the operator to combine those outputs, returning that
-     * final output.
-     *
-     * HDLSim.Expression must take this form:
-     * (subexpr1 OP subexpr2)
-     * where subexpr1/2 can be a not expression, number, variable, or operator expression
-     *
-     * Throws HDLParseException if there is no operator or an invalid operator.
+     * Returns a set of all signal names in this expression.
      */
-    private int evalOperator(HashMap<String, Integer> values) throws HDLParseException {
-        // Use iteration with a counter of open/closed parentheses to find out where the two sub expressions are
-        // We know that the operator applying in this expression is the one that
-        // first comes after we have seen one more open parenthesis than closed
-        String subexpr1str = "";
-        String op = "";
-        String subexpr2str = "";
-
-        int openMinusClose = 0;
-        for (int i = 0; i < expression.length(); i++) {
-            char c = expression.charAt(i);
-            if (c == '(') openMinusClose += 1;
-            else if (c == ')') openMinusClose -= 1;
-            else if (openMinusClose == 1) {
-                if (VALID_OPERATORS.contains("" + c)) {
-                    // Here we have found the operator
-                    subexpr1str = expression.substring(1, i).trim();
-                    op = expression.substring(i, i + 1);
-                    subexpr2str = expression.substring(i + 1, expression.length() - 1).trim();
-                }
-                // Length 2 operators check
-                else if (i < expression.length() - 1 && VALID_OPERATORS.contains(""+c+expression.charAt(i+1))) {
-                    // Here we have found the operator
-                    subexpr1str = expression.substring(1, i).trim();
-                    op = expression.substring(i, i + 2);
-                    subexpr2str = expression.substring(i + 2, expression.length() - 1).trim();
-                }
-            }
-        }
-
-        if (subexpr1str.equals("") || subexpr2str.equals("") || op.equals("")) {
-            throw new HDLParseException("Either no or an invalid operator was provided!");
-        }
-
-        Expression subexpr1 = new Expression(subexpr1str);
-        Expression subexpr2 = new Expression(subexpr2str);
-
-        // Figure out operator and pass to appropriate function
-        switch (op) {
-            case "+":
-                return evalPlus(subexpr1, subexpr2, values);
-            case "-":
-                return evalMinus(subexpr1, subexpr2, values);
-            case "&":
-                return evalBitwiseAnd(subexpr1, subexpr2, values);
-            case "|":
-                return evalBitwiseOr(subexpr1, subexpr2, values);
-            case "^":
-                return evalBitwiseXor(subexpr1, subexpr2, values);
-            case "==":
-                return evalEquality(subexpr1, subexpr2, values);
-            case "!=":
-                return evalInequality(subexpr1, subexpr2, values);
-
-
-            default:
-                throw new HDLParseException("Either no or an invalid operator was provided!");
-        }
-
-    }
-
-
-    // BINARY FUNCTIONS
-
-    private int evalPlus(Expression subexpr1, Expression subexpr2, HashMap<String, Integer> values) {
-        return subexpr1.eval(values) + subexpr2.eval(values);
-    }
-
-    private int evalMinus(Expression subexpr1, Expression subexpr2, HashMap<String, Integer> values) {
-        return subexpr1.eval(values) - subexpr2.eval(values);
-    }
-
-    private int evalBitwiseAnd(Expression subexpr1, Expression subexpr2, HashMap<String, Integer> values) {
-        return subexpr1.eval(values) & subexpr2.eval(values);
-    }
-
-    private int evalBitwiseOr(Expression subexpr1, Expression subexpr2, HashMap<String, Integer> values) {
-        return subexpr1.eval(values) | subexpr2.eval(values);
-    }
-
-    private int evalBitwiseXor(Expression subexpr1, Expression subexpr2, HashMap<String, Integer> values) {
-        return subexpr1.eval(values) ^ subexpr2.eval(values);
-    }
-
-    private int evalEquality(Expression subexpr1, Expression subexpr2, HashMap<String, Integer> values) {
-        return subexpr1.eval(values) == subexpr2.eval(values) ? 1 : 0;
+    public HashSet<String> getSignalNames() {
+        HashSet<String> signals = new HashSet<>();
+        root.collectSignalNames(signals);
+        return signals;
     }
 
-    private int evalInequality(Expression subexpr1, Expression subexpr2, HashMap<String, Integer> values) {
-        return subexpr1.eval(values) == subexpr2.eval(values) ? 0 : 1;
+    public ExpressionNode getRoot() {
+        return root;
     }
 
 
-    // OTHER INTERFACE METHODS ////////////////////////////////////////////////
+    // PARSER /////////////////////////////////////////////////////////////////
 
     /**
-     * Returns a set of all signal names in this expression.
+     * Parses one expression term from LEXER, following the grammar in the
+     * class comment, and leaves LEXER on the token after it.
      *
-     * Throws HDLParseException if there is a problem with the expression.
+     * Throws HDLParseException if the tokens do not form an expression.
      */
-    public HashSet<String> getSignalNames() throws HDLParseException {
-        char firstChar = expression.charAt(0);
-
-        // Not case
-        if (firstChar == '!' || firstChar == '~') {
-            return (new Expression(expression.substring(1))).getSignalNames();
-        }
-
-        // Subexpression case
-        else if (expression.contains("(")) {
-            return getSignalNamesOperator();
-        }
-
-        // Variable lookup case
-        else if (!"0123456789".contains(Character.toString(expression.charAt(0)))) {
-            HashSet<String> signal = new HashSet<>();
-            signal.add(expression);
-            return signal;
-        }
-
-        // Constant case
-        else {
-            return new HashSet<>();
+    static ExpressionNode parseTerm(Lexer lexer) throws HDLParseException {
+        switch (lexer.kind()) {
+            case OPERATOR -> {
+                if (lexer.is("!") || lexer.is("~")) {
+                    Operator op = lexer.is("!") ? Operator.LOGICAL_NOT : Operator.BITWISE_NOT;
+                    lexer.next();
+                    return new ExpressionNode.Unary(op, parseTerm(lexer));
+                }
+                if (lexer.is("-")) {
+                    lexer.next();
+                    if (lexer.kind() != Lexer.Kind.NUMBER) {
+                        throw lexer.error(String.format("Expected a constant after '-' but found '%s'", lexer.tokenSource()));
+                    }
+                    return parseConstant(lexer, true);
+                }
+            }
+            case LPAREN -> {
+                lexer.next();
+                ExpressionNode left = parseTerm(lexer);
+                Operator op = parseBinaryOperator(lexer);
+                ExpressionNode right = parseTerm(lexer);
+                lexer.expect(Lexer.Kind.RPAREN, "')'");
+                return new ExpressionNode.Binary(op, left, right);
+            }
+            case NUMBER -> {
+                return parseConstant(lexer, false);
+            }
+            case IDENT -> {
+                String name = lexer.text();
+                lexer.next();
+                return new ExpressionNode.SignalRef(name);
+            }
+            case EOF -> throw lexer.error("Incomplete expression");
+            default -> { }
         }
+        throw lexer.error(String.format("Unexpected '%s'", lexer.tokenSource()));
     }
 
     /**
-     * Returns a set of all signal names in this expression in the case of
-     * an operator expression.
-     *
-     * Throws HDLParseException if there is a problem with the expression.
+     * Parses the right hand side of a statement in a module file from LEXER.
+     * This is a single term, or E OP E with the outer parentheses left out.
      */
-    private HashSet<String> getSignalNamesOperator() throws HDLParseException {
-        // Use iteration with a counter of open/closed parentheses to find out where the two sub expressions are
-        // We know that the operator applying in this expression is the one that
-        // first comes after we have seen one more open parenthesis than closed
-        String subexpr1str = "";
-        String subexpr2str = "";
-
-        int openMinusClose = 0;
-        for (int i = 0; i < expression.length(); i++) {
-            char c = expression.charAt(i);
-            if (c == '(') openMinusClose += 1;
-            else if (c == ')') openMinusClose -= 1;
-            else if (openMinusClose == 1) {
-                if (VALID_OPERATORS.contains("" + c)) {
-                    // Here we have found the operator
-                    subexpr1str = expression.substring(1, i).trim();
-                    subexpr2str = expression.substring(i + 1, expression.length() - 1).trim();
-                }
-                // Length 2 operators check
-                else if (i < expression.length() - 1 && VALID_OPERATORS.contains(""+c+expression.charAt(i+1))) {
-                    // Here we have found the operator
-                    subexpr1str = expression.substring(1, i).trim();
-                    subexpr2str = expression.substring(i + 2, expression.length() - 1).trim();
-                }
-            }
+    static ExpressionNode parseStatement(Lexer lexer) throws HDLParseException {
+        ExpressionNode left = parseTerm(lexer);
+        if (lexer.kind() != Lexer.Kind.OPERATOR) {
+            return left;
         }
+        Operator op = parseBinaryOperator(lexer);
+        return new ExpressionNode.Binary(op, left, parseTerm(lexer));
+    }
 
-        if (subexpr1str.equals("") || subexpr2str.equals("")) {
+    private static Operator parseBinaryOperator(Lexer lexer) throws HDLParseException {
+        if (lexer.kind() != Lexer.Kind.OPERATOR || !VALID_OPERATORS.contains(lexer.text())) {
             throw new HDLParseException("Either no or an invalid operator was provided!");
         }
-
-        Expression subexpr1 = new Expression(subexpr1str);
-        Expression subexpr2 = new Expression(subexpr2str);
-
-        HashSet<String> signals = subexpr1.getSignalNames();
-        signals.addAll(subexpr2.getSignalNames());
-        return signals;
+        Operator op = Operator.fromBinarySymbol(lexer.text());
+        lexer.next();
+        return op;
     }
 
+    private static ExpressionNode parseConstant(Lexer lexer, boolean negative) throws HDLParseException {
+        int value = lexer.numberValue(negative);
+        lexer.next();
+        return new ExpressionNode.Constant(value);
+    }
 
 }
@@ -0,0 +1,320 @@
+package Source;
+
+import Exceptions.HDLParseException;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Immutable node of a parsed HDLSim.Expression tree. Each node is one of:
+ * - Constant: a literal integer
+ * - SignalRef: a reference to a signal by name
+ * - Unary: an operator applied to one subexpression
+ * - Binary: an operator applied to two subexpressions
+ *
+ * Trees are built once by Expression's parser and then evaluated as many
+ * times as needed without touching the original string. Once every signal
+ * has been assigned a slot, bind() returns a copy of the tree whose
+ * SignalRefs read their value straight out of a state array.
+ *
+ * Nodes compare structurally with equals(). Hash codes only depend on the
+ * tree, never on object identity, so they are the same on every run.
+ */
+
+public abstract class ExpressionNode {
+
+    /**
+     * Evaluates this node, replacing signals with their value in VALUES.
+     *
+     * Throws HDLParseException if a referenced signal is missing from VALUES.
+     */
+    public abstract int eval(HashMap<String, Integer> values) throws HDLParseException;
+
+    /**
+     * Evaluates this node, reading signals out of VALUES by slot.
+     * Only valid on a tree returned by bind().
+     */
+    public abstract int eval(int[] values);
+
+    /**
+     * Returns a copy of this tree where every SignalRef is bound to the slot
+     * SLOTS maps its name to.
+     *
+     * Throws HDLParseException if a referenced signal has no slot.
+     */
+    public abstract ExpressionNode bind(Map<String, Integer> slots) throws HDLParseException;
+
+    /**
+     * Adds the names of all signals referenced by this node to NAMES.
+     */
+    public abstract void collectSignalNames(HashSet<String> names);
+
+    /**
+     * Returns a copy of this tree where PREFIX is put in front of every
+     * signal name. Used to stamp out module instances from one parsed tree.
+     */
+    public abstract ExpressionNode withPrefix(String prefix);
+
+
+    // NODE TYPES /////////////////////////////////////////////////////////////
+
+    public static final class Constant extends ExpressionNode {
+        private final int value;
+
+        public Constant(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public int eval(HashMap<String, Integer> values) {
+            return value;
+        }
+
+        @Override
+        public int eval(int[] values) {
+            return value;
+        }
+
+        @Override
+        public ExpressionNode bind(Map<String, Integer> slots) {
+            return this;
+        }
+
+        @Override
+        public void collectSignalNames(HashSet<String> names) { }
+
+        @Override
+        public ExpressionNode withPrefix(String prefix) {
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return Integer.toString(value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Constant c && c.value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return value;
+        }
+
+        public int getValue() {
+            return value;
+        }
+    }
+
+    public static final class SignalRef extends ExpressionNode {
+        private final String name;
+        // Index into the state array, or -1 if this reference is not bound yet
+        private final int slot;
+
+        public SignalRef(String name) {
+            this(name, -1);
+        }
+
+        public SignalRef(String name, int slot) {
+            this.name = name;
+            this.slot = slot;
+        }
+
+        @Override
+        public int eval(HashMap<String, Integer> values) throws HDLParseException {
+            Integer value = values.get(name);
+            if (value == null) {
+                String msg = String.format("Provided values map does not contain key %s!", name);
+                throw new HDLParseException(msg);
+            }
+            return value;
+        }
+
+        @Override
+        public int eval(int[] values) {
+            return values[slot];
+        }
+
+        @Override
+        public ExpressionNode bind(Map<String, Integer> slots) throws HDLParseException {
+            Integer boundSlot = slots.get(name);
+            if (boundSlot == null) {
+                throw new HDLParseException(String.format("Signal %s has no slot to bind to!", name));
+            }
+            return new SignalRef(name, boundSlot);
+        }
+
+        @Override
+        public void collectSignalNames(HashSet<String> names) {
+            names.add(name);
+        }
+
+        @Override
+        public ExpressionNode withPrefix(String prefix) {
+            return new SignalRef(prefix + name);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof SignalRef r && r.slot == slot && r.name.equals(name);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode() * 31 + slot;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getSlot() {
+            return slot;
+        }
+    }
+
+    public static final class Unary extends ExpressionNode {
+        private final Operator op;
+        private final ExpressionNode operand;
+        private final int hash;
+
+        public Unary(Operator op, ExpressionNode operand) {
+            assert op.isUnary() : op + " is not a unary operator";
+            this.op = op;
+            this.operand = operand;
+            this.hash = op.ordinal() * 31 + operand.hashCode();
+        }
+
+        @Override
+        public int eval(HashMap<String, Integer> values) throws HDLParseException {
+            return op.apply(operand.eval(values));
+        }
+
+        @Override
+        public int eval(int[] values) {
+            return op.apply(operand.eval(values));
+        }
+
+        @Override
+        public ExpressionNode bind(Map<String, Integer> slots) throws HDLParseException {
+            return new Unary(op, operand.bind(slots));
+        }
+
+        @Override
+        public ExpressionNode withPrefix(String prefix) {
+            return new Unary(op, operand.withPrefix(prefix));
+        }
+
+        @Override
+        public void collectSignalNames(HashSet<String> names) {
+            operand.collectSignalNames(names);
+        }
+
+        @Override
+        public String toString() {
+            return op.getSymbol() + operand;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            return o instanceof Unary u && u.hash == hash && u.op == op
+                    && (u.operand == operand || u.operand.equals(operand));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        public Operator getOp() {
+            return op;
+        }
+
+        public ExpressionNode getOperand() {
+            return operand;
+        }
+    }
+
+    public static final class Binary extends ExpressionNode {
+        private final Operator op;
+        private final ExpressionNode left;
+        private final ExpressionNode right;
+        private final int hash;
+
+        public Binary(Operator op, ExpressionNode left, ExpressionNode right) {
+            assert !op.isUnary() : op + " is not a binary operator";
+            this.op = op;
+            this.left = left;
+            this.right = right;
+            this.hash = (op.ordinal() * 31 + left.hashCode()) * 31 + right.hashCode();
+        }
+
+        @Override
+        public int eval(HashMap<String, Integer> values) throws HDLParseException {
+            return op.apply(left.eval(values), right.eval(values));
+        }
+
+        @Override
+        public int eval(int[] values) {
+            return op.apply(left.eval(values), right.eval(values));
+        }
+
+        @Override
+        public ExpressionNode bind(Map<String, Integer> slots) throws HDLParseException {
+            return new Binary(op, left.bind(slots), right.bind(slots));
+        }
+
+        @Override
+        public ExpressionNode withPrefix(String prefix) {
+            return new Binary(op, left.withPrefix(prefix), right.withPrefix(prefix));
+        }
+
+        @Override
+        public void collectSignalNames(HashSet<String> names) {
+            left.collectSignalNames(names);
+            right.collectSignalNames(names);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + " " + op.getSymbol() + " " + right + ")";
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            return o instanceof Binary b && b.hash == hash && b.op == op
+                    && (b.left == left || b.left.equals(left))
+                    && (b.right == right || b.right.equals(right));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        public Operator getOp() {
+            return op;
+        }
+
+        public ExpressionNode getLeft() {
+            return left;
+        }
+
+        public ExpressionNode getRight() {
+            return right;
+        }
+    }
+
+}
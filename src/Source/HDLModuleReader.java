@@ -5,24 +5,25 @@ import Exceptions.HDLParseException;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Scanner;
 
 /**
  * @author Jonah Tharakan
  *
  * Class that takes in the path to a valid HDL txt file and reads it to
  * construct a HDLSim.Signals object that encapsulates the logic in the file.
+ *
+ * Each module file is parsed only once into a HDLSim.ModuleTemplate, which
+ * is kept in a HDLSim.ModuleFileCache. Every instance of the module,
+ * including submodules, is then added to HDLSim.Signals from that template.
  */
 
 public class HDLModuleReader {
 
-    // The directory that the source file is contained in
-    private String dir;
-
-    // File of the source code
-    private File file;
-    private Scanner sc;
+    // Parsed module files of this project
+    private ModuleFileCache cache;
+    private String fileName;
     // Prefix that will be used to name this signal. / for main, parent/instance_name else.
     private String prefix;
     // HDLSim.Signals object to write wires and regs to
@@ -33,9 +34,6 @@ public class HDLModuleReader {
     // Set of output signals
     private HashSet<String> outputs;
 
-    // True if this file is main.txt, false otherwise
-    private boolean isMain;
-
     /**
      * Prepares a new HDLSim.HDLModuleReader object with the specified file path.
      * Prefix should be the name of the module that is instantiated.
@@ -45,10 +43,20 @@ public class HDLModuleReader {
      * Throws FileNotFoundException if a nonexistent invalid file path is provided.
      */
     public HDLModuleReader(Signals signals, String dir, String fileName, String prefix) throws FileNotFoundException {
-        this.dir = dir;
+        this(signals, new ModuleFileCache(dir), fileName, prefix);
+        if (!new File(dir + "/" + fileName).isFile()) {
+            throw new FileNotFoundException(dir + "/" + fileName + " (No such file)");
+        }
+    }
+
+    /**
+     * Same as above, reading module files through CACHE so modules that have
+     * already been parsed are not read again.
+     */
+    public HDLModuleReader(Signals signals, ModuleFileCache cache, String fileName, String prefix) {
+        this.cache = cache;
+        this.fileName = fileName;
         this.prefix = prefix;
-        this.file = new File(dir + "/" + fileName);
-        this.sc = new Scanner(this.file);
 
         inputs = new HashSet<>();
         outputs = new HashSet<>();
@@ -60,225 +68,36 @@ public class HDLModuleReader {
      * Reads the provided file and parses the logic to add to the HDLSim.Signals object
      * representing the logic.
      *
-     * Upon encountering a submodule, creates a new HDLSim.HDLModuleReader for that module and
-     * passes off execution. Creates bridge signals.
+     * Every module file in the hierarchy is first read into the cache,
+     * concurrently where possible. Submodules are then added from their
+     * cached templates in file order, along with the bridge signals
+     * connecting them to this module.
      *
      * Throws HDLException if any problem occurs while reading the HDLFile.
      */
     public void readModule() throws HDLException {
-        boolean moduleDefinedYet = false;
-        while (sc.hasNextLine()) {
-            String line = sc.nextLine();
-            // Check for and skip empty lines
-            if (!line.contains("//")) {
-                if (line.trim().length() == 0) { continue; }
-            } else {
-                if (line.substring(0, line.indexOf("//")).trim().length() == 0) { continue; }
-            }
-
-            // Make sure only one module per file is present, and it is first
-            String firstWord = line.split(" ")[0];
-            if ((!moduleDefinedYet && !firstWord.equals("module")) ||
-                    (moduleDefinedYet && firstWord.equals("module"))) {
-                throw new HDLParseException("Each file must contain exactly one module definition as the block in the file");
-            }
-            switch (firstWord) {
-                case "module" -> {
-                    readLineModule(line);
-                    moduleDefinedYet = true;
-                }
-                case "reg" -> readLineReg(line);
-                case "wire" -> readLineWire(line);
-                case "submod" -> readLineSubmod(line);
-                case "TERMINATE" -> readLineTerminate(line);
-                default -> readLineAssignment(line);
-            }
-
-        }
-
-    }
-
-    /**
-     * Reads the provided line to parse the module declaration.
-     * Will consume more lines until the module declaration is fully read.
-     */
-    private void readLineModule(String line) {
-        String[] tokens = line.split(" ");
-        isMain = tokens[1].equals("main");
-        // Get full module description (all inputs and outputs)
-        StringBuilder fullExpression = new StringBuilder(line);
-        while (fullExpression.indexOf(";") < 0) {
-            if (!sc.hasNextLine()) {
-                throw new HDLParseException("Module declaration must end with a semicolon");
-            }
-            fullExpression.append(sc.nextLine() + " ");
-        }
-        String cxnsStr = fullExpression.substring(fullExpression.indexOf("(") + 1, fullExpression.indexOf(")"));
-        if (cxnsStr.trim().length() == 0) { return; }
-        for (String str : cxnsStr.split(",")) {
-            String cxn = str.trim();
-            String cxnType = cxn.substring(0, cxn.indexOf(" ")).trim();
-            String cxnName = cxn.substring(cxn.indexOf(" ") + 1).trim();
-            if (cxnType.equals("input")) {
-                signals.addWire(prefix + cxnName);
-                inputs.add(cxnName);
-            }
-            else if (cxnType.equals("output")) {
-                signals.addWire(prefix + cxnName);
-                outputs.add(cxnName);
-            }
-            else {
-                throw new HDLParseException("All module connections must be declared 'input' or 'output'");
-            }
-        }
-    }
-
-    /**
-     * Reads the provided line to initialize a reg.
-     */
-    private void readLineReg(String line) {
-        StringBuilder fullExpression = new StringBuilder(line);
-        while (fullExpression.indexOf(";") < 0) {
-            if (!sc.hasNextLine()) {
-                throw new HDLParseException("Register declaration must end with a semicolon");
-            }
-            fullExpression.append(sc.nextLine() + " ");
-        }
-
-        String[] tokens = fullExpression.toString().split(" ");
-        int idx = tokens[3].indexOf(";");
-        String valStr = idx >= 0 ? tokens[3].substring(0, idx) : tokens[3];
-        Integer val = null;
-        if (valStr.length() > 2) {
-            if (valStr.startsWith("0x")) {
-                val = Integer.parseInt(valStr.substring(2), 16);
-            } else if (valStr.startsWith("0b")) {
-                val = Integer.parseInt(valStr.substring(2), 2);
-            }
-        }
-        if (val == null) val = Integer.parseInt(valStr);
-        signals.addReg(prefix + tokens[1], val);
-    }
-
-    /**
-     * Reads the provided line to initialize a wire
-     */
-    private void readLineWire(String line) {
-        StringBuilder fullExpression = new StringBuilder(line);
-        while (fullExpression.indexOf(";") < 0) {
-            if (!sc.hasNextLine()) {
-                throw new HDLParseException("Wire declaration must end with a semicolon");
-            }
-            fullExpression.append(sc.nextLine() + " ");
-        }
-
-        String rest = fullExpression.substring(line.indexOf("wire") + 4).trim();
-        String name = rest.substring(0, rest.indexOf(";")).trim();
-        signals.addWire(prefix + name);
-    }
-
-    /**
-     * Reads the provided line to instantiate a declared submodule.
-     * Will then switch execution over to a new HDLSim.HDLModuleReader which will
-     * fully read that submodule.
-     * Finally, creates bridge connections to set up the inputs and outputs
-     * of the new submodule.
-     * Will consume more lines until the submodule instantiation is fully parsed.
-     */
-    private void readLineSubmod(String line) {
-        String[] tokens = line.split(" ");
-        String type = tokens[1];
-        String instanceName = tokens[2].replaceAll(" \\(\\)/", "");
-        String subPrefix = prefix + instanceName + "/";
-        HDLModuleReader submodReader;
+        cache.preload(fileName);
+        ModuleTemplate template;
         try {
-            submodReader = new HDLModuleReader(signals, dir, type + ".txt", subPrefix);
+            template = cache.get(fileName);
         } catch (FileNotFoundException e) {
-            throw new HDLException(String.format("HDL file for %s %s %s could not be found", "submod", type, instanceName));
-        }
-        submodReader.readModule();
-
-        StringBuilder fullExpression = new StringBuilder(line);
-        while (fullExpression.indexOf(";") < 0) {
-            if (!sc.hasNextLine()) {
-                throw new HDLParseException("Submodule instantiation must end with a semicolon");
-            }
-            fullExpression.append(sc.nextLine() + " ");
-        }
-        int startIdx = fullExpression.indexOf("(");
-        int endIdx;
-        for (endIdx = fullExpression.length() - 1; endIdx >= 0; endIdx--) {
-            if (fullExpression.charAt(endIdx) == ')') break;
-        }
-        String cxnsStr = fullExpression.substring(startIdx + 1, endIdx);
-        for (String str : cxnsStr.split(",")) {
-            String cxn = str.trim();
-            String pin = cxn.substring(cxn.indexOf(".") + 1, cxn.indexOf("(")).trim();
-            String wireConnection = cxn.substring(cxn.indexOf("(") + 1, cxn.indexOf(")")).trim();
-
-            if (submodReader.getInputs().contains(pin)) {
-                signals.addExpression(subPrefix + pin, prefix + wireConnection);
-            }
-            else if (submodReader.getOutputs().contains(pin)) {
-                signals.addExpression(prefix + wireConnection, subPrefix + pin);
-            }
-            else {
-                throw new HDLException("Specified pin is not a part of this submodule");
-            }
+            throw new HDLException("HDL file " + fileName + " could not be found");
         }
+        template.instantiate(signals, prefix, cache);
+        inputs = template.getInputs();
+        outputs = template.getOutputs();
     }
 
     /**
-     * Reads a line to parse the TERMINATE statement of the HDL.
+     * Reads and parses the module in FILE, without adding anything to a
+     * HDLSim.Signals object. The file is read in one go and closed before
+     * parsing starts.
+     *
+     * Throws FileNotFoundException if FILE does not exist.
+     * Throws HDLException if any problem occurs while reading the HDLFile.
      */
-    private void readLineTerminate(String line) {
-        assert isMain : "TERMINATE statement can only be in the main file";
-
-        StringBuilder fullExpression = new StringBuilder(line);
-        while (fullExpression.indexOf(";") < 0) {
-            if (!sc.hasNextLine()) {
-                throw new HDLParseException("Terminate declaration must end with a semicolon");
-            }
-            fullExpression.append(sc.nextLine() + " ");
-        }
-
-        String rest = fullExpression.substring(line.indexOf("TERMINATE") + 9).trim();
-        String removeSemicolon = rest.substring(0, rest.indexOf(";")).trim();
-        String addParentheses = checkForAndAddParentheses(removeSemicolon);
-        String addPrefixToVars = addParentheses.replaceAll("([a-zA-Z_][a-zA-Z0-9_]*)", prefix + "$1");
-        signals.addTerminate(addPrefixToVars);
-    }
-
-    /**
-     * Reads the line to parse an assignment of a variable to an expression.
-     */
-    private void readLineAssignment(String line) {
-        StringBuilder fullExpression = new StringBuilder(line);
-        while (fullExpression.indexOf(";") < 0) {
-            if (!sc.hasNextLine()) {
-                throw new HDLParseException("Assignment expression must end with a semicolon");
-            }
-            fullExpression.append(sc.nextLine() + " ");
-        }
-
-        String[] words = fullExpression.toString().split(" ");
-        String firstWord = prefix + words[0];
-
-        if (signals.getRegs().contains(firstWord)) {
-            if (!words[1].equals("<=")) {
-                throw new HDLParseException("Must use <= when assigning to regs!");
-            }
-        } else if (signals.getWires().contains(firstWord)) {
-            if (!words[1].equals("=")) {
-                throw new HDLParseException("Must use = when assigning to regs!");
-            }
-        }
-
-        String rest = line.substring(line.indexOf("=")+1).trim();
-        String removeSemicolon = rest.substring(0, rest.indexOf(";")).trim();
-        String addParentheses = checkForAndAddParentheses(removeSemicolon);
-        String addPrefixToVars = addParentheses.replaceAll("([a-zA-Z_][a-zA-Z0-9_]*)", prefix + "$1");
-        signals.addExpression(firstWord, addPrefixToVars);
+    static ModuleTemplate parse(File file) throws FileNotFoundException, HDLException {
+        return new Parser(Lexer.open(file)).parse();
     }
 
     /**
@@ -321,4 +140,170 @@ public class HDLModuleReader {
         return outputs;
     }
 
+
+    // PARSER /////////////////////////////////////////////////////////////////
+
+    /**
+     * Reads the tokens of one module file into a HDLSim.ModuleTemplate. Signal
+     * names are kept relative to the module.
+     *
+     * A file is a module declaration followed by any number of statements:
+     * - module NAME ( [input|output NAME, ...] );
+     * - reg NAME = CONSTANT;
+     * - wire NAME;
+     * - submod TYPE INSTANCE ( .PIN(WIRE), ... );
+     * - TERMINATE E;
+     * - NAME = E;  or  NAME <= E;
+     * where E is an expression whose outer parentheses may be left out.
+     */
+    private static class Parser {
+
+        private final Lexer lexer;
+        private ModuleTemplate template;
+
+        Parser(Lexer lexer) {
+            this.lexer = lexer;
+        }
+
+        ModuleTemplate parse() throws HDLException {
+            if (!lexer.is("module")) {
+                throw lexer.error("Each file must contain exactly one module definition as the block in the file");
+            }
+            readModuleDeclaration();
+
+            while (lexer.kind() != Lexer.Kind.EOF) {
+                if (lexer.kind() != Lexer.Kind.IDENT) {
+                    throw lexer.error(String.format("Expected a statement but found '%s'", lexer.tokenSource()));
+                }
+                switch (lexer.text()) {
+                    case "module" -> throw lexer.error("Each file must contain exactly one module definition as the block in the file");
+                    case "reg" -> readReg();
+                    case "wire" -> readWire();
+                    case "submod" -> readSubmod();
+                    case "TERMINATE" -> readTerminate();
+                    default -> readAssignment();
+                }
+            }
+            return template;
+        }
+
+        /**
+         * Reads the module declaration and its inputs and outputs.
+         */
+        private void readModuleDeclaration() {
+            lexer.next();
+            template = new ModuleTemplate(lexer.expect(Lexer.Kind.IDENT, "a module name"));
+            lexer.expect(Lexer.Kind.LPAREN, "'('");
+            if (lexer.kind() != Lexer.Kind.RPAREN) {
+                do {
+                    if (lexer.is("input")) {
+                        lexer.next();
+                        template.addInput(lexer.expect(Lexer.Kind.IDENT, "an input name"));
+                    }
+                    else if (lexer.is("output")) {
+                        lexer.next();
+                        template.addOutput(lexer.expect(Lexer.Kind.IDENT, "an output name"));
+                    }
+                    else {
+                        throw lexer.error("All module connections must be declared 'input' or 'output'");
+                    }
+                } while (consume(Lexer.Kind.COMMA));
+            }
+            lexer.expect(Lexer.Kind.RPAREN, "')'");
+            lexer.expect(Lexer.Kind.SEMICOLON, "';' after the module declaration");
+        }
+
+        /**
+         * Reads a reg declaration with its starting value.
+         */
+        private void readReg() {
+            lexer.next();
+            String name = lexer.expect(Lexer.Kind.IDENT, "a reg name");
+            lexer.expect(Lexer.Kind.EQUALS, "'=' and a starting value");
+            boolean negative = lexer.is("-");
+            if (negative) lexer.next();
+            if (lexer.kind() != Lexer.Kind.NUMBER) {
+                throw lexer.error(String.format("Expected a constant starting value but found '%s'", lexer.tokenSource()));
+            }
+            int val = lexer.numberValue(negative);
+            lexer.next();
+            lexer.expect(Lexer.Kind.SEMICOLON, "';' after the reg declaration");
+            template.addStatement(new ModuleTemplate.Reg(name, val));
+        }
+
+        /**
+         * Reads a wire declaration.
+         */
+        private void readWire() {
+            lexer.next();
+            String name = lexer.expect(Lexer.Kind.IDENT, "a wire name");
+            lexer.expect(Lexer.Kind.SEMICOLON, "';' after the wire declaration");
+            template.addStatement(new ModuleTemplate.Wire(name));
+        }
+
+        /**
+         * Reads a submodule instance and its connections. The submodule file
+         * itself is read separately, through the HDLSim.ModuleFileCache.
+         */
+        private void readSubmod() {
+            lexer.next();
+            String type = lexer.expect(Lexer.Kind.IDENT, "a module type");
+            String instanceName = lexer.expect(Lexer.Kind.IDENT, "an instance name");
+            lexer.expect(Lexer.Kind.LPAREN, "'('");
+            ArrayList<String[]> connections = new ArrayList<>();
+            if (lexer.kind() != Lexer.Kind.RPAREN) {
+                do {
+                    lexer.expect(Lexer.Kind.DOT, "'.' before a pin name");
+                    String pin = lexer.expect(Lexer.Kind.IDENT, "a pin name");
+                    lexer.expect(Lexer.Kind.LPAREN, "'('");
+                    String wireConnection = lexer.expect(Lexer.Kind.IDENT, "a signal name");
+                    lexer.expect(Lexer.Kind.RPAREN, "')'");
+                    connections.add(new String[] { pin, wireConnection });
+                } while (consume(Lexer.Kind.COMMA));
+            }
+            lexer.expect(Lexer.Kind.RPAREN, "')'");
+            lexer.expect(Lexer.Kind.SEMICOLON, "';' after the submodule instance");
+            template.addStatement(new ModuleTemplate.Submod(type, instanceName, connections));
+        }
+
+        /**
+         * Reads the TERMINATE statement.
+         */
+        private void readTerminate() {
+            assert template.isMain() : "TERMINATE statement can only be in the main file";
+
+            lexer.next();
+            ExpressionNode root = Expression.parseStatement(lexer);
+            lexer.expect(Lexer.Kind.SEMICOLON, "';' after the expression");
+            template.addStatement(new ModuleTemplate.Terminate(new Expression(root)));
+        }
+
+        /**
+         * Reads an assignment of a signal to an expression.
+         */
+        private void readAssignment() {
+            String target = lexer.text();
+            lexer.next();
+            String op;
+            if (lexer.kind() == Lexer.Kind.EQUALS) op = "=";
+            else if (lexer.kind() == Lexer.Kind.NONBLOCKING) op = "<=";
+            else throw lexer.error(String.format("Expected '=' or '<=' after %s but found '%s'", target, lexer.tokenSource()));
+            lexer.next();
+
+            ExpressionNode root = Expression.parseStatement(lexer);
+            lexer.expect(Lexer.Kind.SEMICOLON, "';' after the expression");
+            template.addStatement(new ModuleTemplate.Assignment(target, op, new Expression(root)));
+        }
+
+        /**
+         * Moves past the current token if it is of kind KIND.
+         * Returns true if it did.
+         */
+        private boolean consume(Lexer.Kind kind) {
+            if (lexer.kind() != kind) return false;
+            lexer.next();
+            return true;
+        }
+    }
+
 }
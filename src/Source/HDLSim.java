@@ -1,9 +1,17 @@
 package Source;
 
+import Exceptions.HDLException;
+import Exceptions.HDLNonTerminationException;
+
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 
 /**
  * @author Jonah Tharakan
@@ -16,9 +24,14 @@ public class HDLSim {
     // Stores whether a flag is active or not in this execution
     private static HashMap<String, Boolean> flags;
     // List of valid flag abbreviations
-    private static final String[] allFlags = {"v", "help", "x", "nl", "t"};
+    private static final String[] allFlags = {"v", "help", "x", "nl", "vcd", "bt", "t", "nc", "no", "lc", "r"};
     // List of flag full names. Indices line up with allFlags.
-    private static final String[] flagNames = {"verbose", "help", "hex", "no-log", "time"};
+    private static final String[] flagNames = {"verbose", "help", "hex", "no-log", "vcd", "binary-trace", "time", "no-cache", "no-optimize", "loop-check", "resume"};
+
+    // Stores the value of each option given as --name=value in this execution
+    private static HashMap<String, String> options;
+    // List of option names that take a value
+    private static final String[] optionNames = {"engine", "parallel-threshold", "batch", "log-buffer", "log-overflow", "observe", "max-cycles", "checkpoint", "sample-cycles", "profile"};
 
     // HDL source code directory for this execution
     private static File sourceDir;
@@ -43,20 +56,179 @@ public class HDLSim {
         if (HDLSim.checkFlag("time")) {
             startTime = Instant.now().toEpochMilli();
         }
+        Metrics metrics = new Metrics();
 
         Signals signals = new Signals();
+        signals.setEngine(parseEngine());
+        signals.setInferEnables(!checkFlag("no-optimize"));
+        if (getOption("parallel-threshold") != null) {
+            signals.setParallelThreshold(Integer.parseInt(getOption("parallel-threshold")));
+        }
+        signals.setTraceBuffer(
+                getOption("log-buffer") == null ? -1 : Integer.parseInt(getOption("log-buffer")),
+                parseOverflowPolicy());
         signals.setOutputDir(sourceDir.getPath() + "/out");
-        HDLModuleReader mainReader = new HDLModuleReader(
-                signals, sourceDir.getPath(), "main.txt", "/");
-        mainReader.readModule();
+        Checkpoint checkpoint = null;
+        if (getOption("checkpoint") != null || checkFlag("resume")) {
+            checkpoint = new Checkpoint(Paths.get(sourceDir.getPath(), "out", "checkpoint.bin"));
+            long intervalMillis = getOption("checkpoint") == null ? 0
+                    : Math.round(Double.parseDouble(getOption("checkpoint")) * 1000);
+            signals.setCheckpoint(checkpoint, intervalMillis, checkFlag("resume"));
+        }
+        Profiler profiler = null;
+        if (getOption("profile") != null) {
+            profiler = new Profiler(Long.parseLong(getOption("profile")));
+            signals.setProfiler(profiler);
+        }
+        List<String> observed = parseObservedSignals();
+        String config = checkFlag("no-optimize") ? "" : "optimized";
+        if (observed != null) config += ";observe=" + String.join(",", observed);
+        NetlistCache netlistCache = new NetlistCache(sourceDir, new File(sourceDir.getPath() + "/out/netlist.bin"), config);
+        metrics.start(Metrics.Phase.CACHE);
+        boolean cached = !checkFlag("no-cache") && netlistCache.load(signals);
+        ModuleFileCache modules = new ModuleFileCache(sourceDir.getPath());
+        if (!cached) {
+            // Parse every module file up front, so readModule() only has instances left to link
+            metrics.start(Metrics.Phase.PARSE);
+            modules.preload("main.txt");
+            metrics.start(Metrics.Phase.ELABORATE);
+            HDLModuleReader mainReader = new HDLModuleReader(
+                    signals, modules, "main.txt", "/");
+            mainReader.readModule();
+            metrics.start(Metrics.Phase.OPTIMIZE);
+            if (observed != null) {
+                int pruned = signals.pruneToObserved(observed);
+                if (checkFlag("verbose")) {
+                    System.out.printf("Pruned %d signals outside the cone of influence of TERMINATE and the observed signals%n", pruned);
+                }
+            }
+            if (!checkFlag("no-optimize")) {
+                NetlistOptimizer optimizer = new NetlistOptimizer(signals);
+                optimizer.optimize();
+                if (checkFlag("verbose")) {
+                    System.out.printf("Optimized netlist from %d to %d expression nodes: %d folded, %d shared subexpressions (%d hidden wires)%n",
+                            optimizer.getNodesBefore(), optimizer.getNodesAfter(), optimizer.getFoldedCount(),
+                            optimizer.getSharedCount(), optimizer.getHiddenWireCount());
+                }
+            }
+        }
+        else if (checkFlag("verbose")) {
+            System.out.println("Loaded netlist from out/netlist.bin");
+        }
+        metrics.start(Metrics.Phase.BUILD);
         signals.build();
-        signals.stepToTerminate();
-        signals.dumpFinalOutput();
-        signals.cleanUp();
+        metrics.stop();
+        if (checkFlag("resume") && checkFlag("verbose")) {
+            System.out.printf("Resumed from the checkpoint at cycle %d%n", signals.getCycle());
+        }
+        if (checkFlag("verbose")) {
+            System.out.printf("Collapsed %d alias wires into the slot of the signal they copy%n", signals.getAliases().size());
+            System.out.printf("Inferred enables for %d of %d regs%n", signals.getEnabledRegCount(), signals.getRegs().size());
+        }
+        if (!cached && !checkFlag("no-cache")) {
+            metrics.start(Metrics.Phase.CACHE);
+            try {
+                netlistCache.save(signals, modules.getFileNames());
+            }
+            catch (IOException e) {
+                System.out.println("Could not write out/netlist.bin, continuing without it: " + e.getMessage());
+            }
+            metrics.stop();
+        }
+        long maxCycles = getOption("max-cycles") == null ? -1 : Long.parseLong(getOption("max-cycles"));
+        long firstCycle = signals.getCycle();
+        try {
+            if (getOption("batch") != null) {
+                LaneSimulator lanes = new LaneSimulator(signals, LaneSimulator.readBatchFile(new File(getOption("batch"))));
+                lanes.setCycleLimit(maxCycles);
+                metrics.start(Metrics.Phase.SIMULATE);
+                lanes.run(new File(sourceDir.getPath() + "/out"));
+                metrics.start(Metrics.Phase.DUMP);
+            }
+            else {
+                signals.setCycleLimit(maxCycles);
+                signals.setLoopCheck(checkFlag("loop-check"));
+                if (getOption("sample-cycles") != null) {
+                    signals.setSampleInterval(Long.parseLong(getOption("sample-cycles")));
+                }
+                metrics.start(Metrics.Phase.SIMULATE);
+                signals.stepToTerminate();
+                metrics.start(Metrics.Phase.DUMP);
+                signals.dumpFinalOutput();
+            }
+            signals.cleanUp();
+        }
+        catch (HDLNonTerminationException e) {
+            // Keep what was simulated so far, then fail the run
+            metrics.start(Metrics.Phase.DUMP);
+            if (getOption("batch") == null) signals.dumpFinalOutput();
+            signals.cleanUp();
+            writeProfile(profiler, signals);
+            writeMetrics(metrics, signals, firstCycle);
+            System.out.println(e.getMessage());
+            System.exit(2);
+        }
+        catch (HDLException e) {
+            // E.g. the trace writer fell behind under --log-overflow=fail
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+        writeProfile(profiler, signals);
+        writeMetrics(metrics, signals, firstCycle);
+        if (checkpoint != null) {
+            // The run is complete, so there is nothing left to resume
+            try {
+                checkpoint.delete();
+            }
+            catch (IOException e) {
+                System.out.println("Could not remove out/checkpoint.bin: " + e.getMessage());
+            }
+        }
 
         if (HDLSim.checkFlag("time")) {
             double millis = (Instant.now().toEpochMilli() - startTime) / 1000.0d;
             System.out.println("Execution time: " + millis + "s");
+            System.out.print(metrics.summary());
+        }
+    }
+
+    /**
+     * Writes the report of PROFILER to out/profile.txt and its collapsed
+     * stacks to out/profile.collapsed. Does nothing if PROFILER is null.
+     */
+    private static void writeProfile(Profiler profiler, Signals signals) {
+        if (profiler == null) return;
+        try {
+            profiler.writeReports(new File(sourceDir.getPath() + "/out/profile.txt"),
+                    new File(sourceDir.getPath() + "/out/profile.collapsed"));
+        }
+        catch (IOException e) {
+            System.out.println("Could not write the profile to out/: " + e.getMessage());
+        }
+        if (checkFlag("verbose")) {
+            System.out.printf("Profiled %d cycles, written to out/profile.txt and out/profile.collapsed%n",
+                    profiler.getSampledCycles());
+        }
+    }
+
+    /**
+     * Ends the last phase of METRICS, fills in the counts of a single run of
+     * SIGNALS that started at FIRSTCYCLE, and writes them to out/metrics.json.
+     * Batch runs have no single cycle count, so only their phases are written.
+     */
+    private static void writeMetrics(Metrics metrics, Signals signals, long firstCycle) {
+        metrics.finish();
+        if (getOption("batch") == null) {
+            metrics.setCycles(signals.getCycle() - firstCycle);
+            metrics.setExpressionEvaluations(signals.getExpressionEvaluations());
+            metrics.setSkippedRegEvaluations(signals.getSkippedRegEvaluations());
+            metrics.setLogBytes(signals.getTraceBytes());
+        }
+        try {
+            metrics.writeJson(new File(sourceDir.getPath() + "/out/metrics.json"));
+        }
+        catch (IOException e) {
+            System.out.println("Could not write out/metrics.json: " + e.getMessage());
         }
     }
 
@@ -76,9 +248,17 @@ public class HDLSim {
         for (String flagName : flagNames) {
             flags.put(flagName, false);
         }
+        options = new HashMap<>();
         for (int i = 1; i < args.length; i++) {
             String arg = args[i];
-            if (arg.charAt(0) == '-') {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                String name = arg.substring(2, arg.indexOf("="));
+                if (!Arrays.asList(optionNames).contains(name)) {
+                    throw new IllegalArgumentException("Undefined option specified");
+                }
+                options.put(name, arg.substring(arg.indexOf("=") + 1));
+            }
+            else if (arg.charAt(0) == '-') {
                 boolean foundFlag = false;
                 String rest = arg.substring(1);
                 for (int j = 0; j < allFlags.length; j++) {
@@ -92,6 +272,18 @@ public class HDLSim {
             }
         }
 
+        // Batch runs only write one result.txt per lane
+        if (options.containsKey("batch")) {
+            flags.put("no-log", true);
+        }
+        if ((options.containsKey("checkpoint") || flags.get("resume"))
+                && (options.containsKey("batch") || flags.get("binary-trace"))) {
+            throw new IllegalArgumentException("Checkpoints can not be taken of batch runs or binary traces");
+        }
+        if (options.containsKey("profile") && options.containsKey("batch")) {
+            throw new IllegalArgumentException("Batch runs can not be profiled");
+        }
+
         if (checkFlag("help")) {
             printHelpMessage();
             System.exit(0);
@@ -99,15 +291,66 @@ public class HDLSim {
     }
 
     /**
-     * Returns the truth value of the flag.
+     * Returns the truth value of the flag. Every flag is off if no command
+     * has been parsed, e.g. when Signals is used without HDLSim.main().
      *
      * @throws IllegalArgumentException if an invalid flag is provided.
      */
     public static boolean checkFlag(String flag) {
-        if (flags.containsKey(flag)) { return flags.get(flag); }
+        if (flags == null && Arrays.asList(flagNames).contains(flag)) { return false; }
+        if (flags != null && flags.containsKey(flag)) { return flags.get(flag); }
         else { throw new IllegalArgumentException("Undefined flag specified"); }
     }
 
+    /**
+     * Returns the value given for the option, or null if it was not given.
+     *
+     * @throws IllegalArgumentException if an invalid option is provided.
+     */
+    public static String getOption(String option) {
+        if (Arrays.asList(optionNames).contains(option)) { return options.get(option); }
+        else { throw new IllegalArgumentException("Undefined option specified"); }
+    }
+
+    /**
+     * Returns the engine selected with --engine. Defaults to the interpreter.
+     */
+    private static Signals.Engine parseEngine() {
+        String engine = getOption("engine");
+        if (engine == null || engine.equals("interpreter")) { return Signals.Engine.INTERPRETER; }
+        else if (engine.equals("codegen")) { return Signals.Engine.CODEGEN; }
+        else if (engine.equals("event")) { return Signals.Engine.EVENT; }
+        else if (engine.equals("parallel")) { return Signals.Engine.PARALLEL; }
+        else { throw new IllegalArgumentException("Undefined engine specified"); }
+    }
+
+    /**
+     * Returns the trace overflow policy selected with --log-overflow. Defaults to blocking.
+     */
+    private static AsyncTraceWriter.OverflowPolicy parseOverflowPolicy() {
+        String policy = getOption("log-overflow");
+        if (policy == null || policy.equals("block")) { return AsyncTraceWriter.OverflowPolicy.BLOCK; }
+        else if (policy.equals("fail")) { return AsyncTraceWriter.OverflowPolicy.FAIL; }
+        else { throw new IllegalArgumentException("Undefined log overflow policy specified"); }
+    }
+
+    /**
+     * Returns the signals named with --observe, or null if it was not given.
+     * A leading / is added to names that do not have one.
+     */
+    private static List<String> parseObservedSignals() {
+        String observe = getOption("observe");
+        if (observe == null) return null;
+        ArrayList<String> observed = new ArrayList<>();
+        for (String name : observe.split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) continue;
+            if (!name.startsWith("/")) name = "/" + name;
+            observed.add(name);
+        }
+        return observed;
+    }
+
     /**
      * Prints message for -help command
      */
@@ -126,7 +369,47 @@ public class HDLSim {
             -help   : help      : Prints this message.
             -x      : hex       : Causes output file values to be displayed in hex rather than decimal.
             -nl     : no-log    : Does not dump values to intermediate log. Final values will still be dumped. Should improve speed.
-            -t      : time      : Prints the run time of execution.
+            -vcd    : vcd       : Writes a change-only waveform to trace.vcd instead of log.txt. Opens in standard viewers.
+            -bt     : binary-trace : Writes a columnar binary trace to trace.bin instead of log.txt. Read it
+                                     back one signal at a time with BinaryTraceReader.
+            -t      : time      : Prints the run time of execution and a table of the time spent in each phase,
+                                  the cycles, cycles/s, expression evaluations, log bytes and peak heap use.
+                                  The same metrics are written to out/metrics.json on every run.
+            -nc     : no-cache  : Does not load or save the built netlist in out/netlist.bin. By default a run on
+                                  unchanged source files loads it and skips reading the module files.
+            -no     : no-optimize : Evaluates every expression as written. By default constant subexpressions
+                                    are folded, identical subexpressions are computed once per cycle, and
+                                    regs whose inferred enable is 0 are not evaluated.
+            -lc     : loop-check : Stops with exit code 2 as soon as the reg state repeats before TERMINATE
+                                   becomes non-zero, reporting the period and the cycle the loop starts on.
+            -r      : resume    : Continues the run from out/checkpoint.bin, appending to the log or trace.vcd
+                                  it was taken with. Use the same flags as the run that was checkpointed.
+        
+        Available Options:
+            OPTION                : DESCRIPTION
+            ----------------------------------
+            --engine=interpreter  : Evaluates the design by walking each expression every cycle. Default.
+            --engine=codegen      : Compiles the whole design into a JVM class before running. Requires a JDK.
+            --engine=event        : Only re-evaluates wires whose inputs changed. Fastest on mostly idle designs.
+            --engine=parallel     : Evaluates wide levels of independent wires on all cores.
+            --parallel-threshold=N: Smallest level width the parallel engine splits across cores. Default 4096.
+            --batch=FILE          : Runs one lane of the design per line of FILE, each line listing starting
+                                    reg values as NAME=VALUE. Writes out/lane_N/result.txt per lane, no log.
+            --log-buffer=N        : Cycles buffered between the simulation and the log writer thread. 0 writes
+                                    the log on the simulation thread. Sized from the design by default.
+            --log-overflow=block  : Simulation waits when the log writer falls a full buffer behind. Default.
+            --log-overflow=fail   : Run stops with an error when the log writer falls a full buffer behind.
+            --checkpoint=SECONDS  : Saves the cycle count and reg values to out/checkpoint.bin every SECONDS
+                                    seconds, so -r can continue the run if it dies. Not for -bt or --batch.
+            --max-cycles=N        : Stops with exit code 2 if TERMINATE is still 0 after N cycles.
+            --observe=A,B,...     : Only reports TERMINATE and the listed signals in the log and result.txt, and
+                                    skips all logic they do not depend on. Most useful together with -nl.
+            --profile=N           : Times the expressions of one cycle in every N (64 keeps the overhead low) and
+                                    writes the costliest signals and the time of every module instance to
+                                    out/profile.txt, and collapsed stacks for flame graphs to out/profile.collapsed.
+                                    Subexpressions shared by the optimizer are charged to the signals reading them.
+            --sample-cycles=N     : Commits a HDLSim.CycleSample Flight Recorder event every N cycles. Every phase
+                                    is committed as a HDLSim.Phase event. Record with -XX:StartFlightRecording.
         """;
 
         System.out.println(msg);
@@ -0,0 +1,309 @@
+package Source;
+
+import Exceptions.HDLException;
+import Exceptions.HDLNonTerminationException;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Runs many copies ("lanes") of one built design at once, each starting from
+ * its own reg values. Every signal holds one value per lane, stored next to
+ * each other so each operator is applied to all lanes in one tight loop that
+ * the JIT can turn into SIMD instructions.
+ *
+ * Each lane stops on its own as soon as its TERMINATE becomes non-zero, and
+ * its final values are written to .../lane_N/result.txt at that point.
+ * The run ends once every lane has terminated. Once a quarter of the lanes
+ * being evaluated have terminated, the live lanes are compacted to the front
+ * of every slot so the finished ones are no longer evaluated.
+ */
+
+public class LaneSimulator {
+
+    private final Signals signals;
+    private final int lanes;
+    private final int numSignals;
+
+    // Lanes stored per slot. Starts at lanes and shrinks as terminated lanes are compacted away.
+    private int width;
+    // Lane stored at each position of a slot
+    private final int[] laneIds;
+
+    // Signal values of the current and next cycle. Slot S of the lane at position P is at [S * width + P].
+    private int[] currentValues;
+    private int[] nextValues;
+
+    // One lane-sized temporary buffer per expression tree depth
+    private final int[][] scratch;
+
+    // Whether the lane at each position has already terminated and written its result
+    private final boolean[] terminated;
+    private int activeLanes;
+
+    // run() gives up after this many cycles. -1 for no limit.
+    private long cycleLimit;
+
+    /**
+     * Prepares a batch run of SIGNALS, which must already be built. LANEREGVALUES
+     * holds one map per lane from reg name to that lane's starting value.
+     * Regs missing from a lane's map keep the starting value from the design.
+     *
+     * Throws HDLException if a lane sets a signal that is not a reg.
+     */
+    public LaneSimulator(Signals signals, List<HashMap<String, Integer>> laneRegValues) throws HDLException {
+        assert signals.isBuilt() : "Must call build() before running lanes!";
+
+        this.signals = signals;
+        this.lanes = laneRegValues.size();
+        this.numSignals = signals.getCurrentValues().length;
+        this.currentValues = new int[numSignals * lanes];
+        this.nextValues = new int[numSignals * lanes];
+        this.width = lanes;
+        this.laneIds = new int[lanes];
+        for (int l = 0; l < lanes; l++) laneIds[l] = l;
+        this.terminated = new boolean[lanes];
+        this.activeLanes = lanes;
+        this.cycleLimit = -1;
+
+        int maxDepth = 0;
+        for (ExpressionNode expr : signals.getRegExprs()) maxDepth = Math.max(maxDepth, depth(expr));
+        for (ExpressionNode expr : signals.getWireExprs()) maxDepth = Math.max(maxDepth, depth(expr));
+        this.scratch = new int[maxDepth + 1][lanes];
+
+        // Every lane starts from the design's values, then applies its own reg values
+        int[] initValues = signals.getCurrentValues();
+        for (int s = 0; s < numSignals; s++) {
+            Arrays.fill(currentValues, s * lanes, (s + 1) * lanes, initValues[s]);
+        }
+        for (int l = 0; l < lanes; l++) {
+            for (String reg : laneRegValues.get(l).keySet()) {
+                if (!signals.getRegs().contains(reg)) {
+                    throw new HDLException(String.format("Lane %d sets %s, which is not a reg", l, reg));
+                }
+                currentValues[signals.getSlots().get(reg) * lanes + l] = laneRegValues.get(l).get(reg);
+            }
+        }
+        evalWires(currentValues);
+    }
+
+    /**
+     * Reads a batch file. Each non-empty line describes one lane as a list of
+     * space separated NAME=VALUE reg assignments, e.g. "/A=3 /my_adder/count=0x10".
+     * A leading / is added to names that do not have one.
+     *
+     * Throws HDLException if the file can not be read or a line is malformed.
+     */
+    public static List<HashMap<String, Integer>> readBatchFile(File file) throws HDLException {
+        ArrayList<HashMap<String, Integer>> laneRegValues = new ArrayList<>();
+        try (Scanner sc = new Scanner(file)) {
+            while (sc.hasNextLine()) {
+                String line = sc.nextLine();
+                if (line.contains("//")) line = line.substring(0, line.indexOf("//"));
+                if (line.trim().length() == 0) continue;
+
+                HashMap<String, Integer> regValues = new HashMap<>();
+                for (String assignment : line.trim().split("\\s+")) {
+                    int idx = assignment.indexOf("=");
+                    if (idx <= 0) {
+                        throw new HDLException(String.format("Batch file lane assignment %s must be NAME=VALUE", assignment));
+                    }
+                    String name = assignment.substring(0, idx);
+                    if (!name.startsWith("/")) name = "/" + name;
+                    regValues.put(name, new Expression(assignment.substring(idx + 1)).eval());
+                }
+                laneRegValues.add(regValues);
+            }
+        }
+        catch (FileNotFoundException e) {
+            throw new HDLException("Batch file " + file.getPath() + " could not be found");
+        }
+
+        if (laneRegValues.isEmpty()) {
+            throw new HDLException("Batch file must describe at least one lane");
+        }
+        return laneRegValues;
+    }
+
+    /**
+     * Steps every lane until they have all terminated. Each lane's final
+     * values are written to OUTPUTDIR/lane_N/result.txt, N counting from 0.
+     *
+     * Throws HDLNonTerminationException if the cycle limit is reached first.
+     * Lanes that terminated before that have already written their result.
+     */
+    public void run(File outputDir) {
+        checkTerminated(outputDir);
+        long cycle = 0;
+        while (activeLanes > 0) {
+            if (cycle == cycleLimit) {
+                throw new HDLNonTerminationException(String.format(
+                        "Non-terminating, %d of %d lanes are still running after the limit of %d cycles",
+                        activeLanes, lanes, cycleLimit));
+            }
+            step();
+            cycle++;
+            checkTerminated(outputDir);
+        }
+    }
+
+    /**
+     * Executes a single clock cycle on every lane.
+     */
+    public void step() {
+        int[] regSlots = signals.getRegSlots();
+        ExpressionNode[] regExprs = signals.getRegExprs();
+        for (int i = 0; i < regSlots.length; i++) {
+            evalLanes(regExprs[i], currentValues, nextValues, regSlots[i] * width, 0);
+        }
+        evalWires(nextValues);
+
+        int[] temp = currentValues;
+        currentValues = nextValues;
+        nextValues = temp;
+    }
+
+    /**
+     * Makes run() stop after MAXCYCLES cycles. -1 removes the limit.
+     */
+    public void setCycleLimit(long maxCycles) {
+        this.cycleLimit = maxCycles;
+    }
+
+    public int getLanes() {
+        return lanes;
+    }
+
+    /**
+     * Returns the number of lanes still evaluated every cycle. Terminated lanes
+     * are counted until they are compacted away.
+     */
+    public int getEvaluatedLanes() {
+        return width;
+    }
+
+
+    // PRIVATE HELPER METHODS /////////////////////////////////////////////////
+
+    /**
+     * Evaluates every wire in topological order, reading and writing VALUES.
+     */
+    private void evalWires(int[] values) {
+        int[] wireSlots = signals.getWireSlots();
+        ExpressionNode[] wireExprs = signals.getWireExprs();
+        for (int i = 0; i < wireSlots.length; i++) {
+            evalLanes(wireExprs[i], values, values, wireSlots[i] * width, 0);
+        }
+    }
+
+    /**
+     * Evaluates NODE on every stored lane, reading signals from SOURCE and writing the
+     * lane results to DEST starting at DESTOFF. DEPTH selects the scratch
+     * buffer that is free for this node to use.
+     */
+    private void evalLanes(ExpressionNode node, int[] source, int[] dest, int destOff, int depth) {
+        if (node instanceof ExpressionNode.Constant constant) {
+            Arrays.fill(dest, destOff, destOff + width, constant.getValue());
+        }
+        else if (node instanceof ExpressionNode.SignalRef ref) {
+            System.arraycopy(source, ref.getSlot() * width, dest, destOff, width);
+        }
+        else if (node instanceof ExpressionNode.Unary unary) {
+            evalLanes(unary.getOperand(), source, dest, destOff, depth);
+            unary.getOp().applyLanes(dest, destOff, width);
+        }
+        else {
+            ExpressionNode.Binary binary = (ExpressionNode.Binary) node;
+            evalLanes(binary.getLeft(), source, dest, destOff, depth);
+            evalLanes(binary.getRight(), source, scratch[depth], 0, depth + 1);
+            binary.getOp().applyLanes(dest, destOff, scratch[depth], width);
+        }
+    }
+
+    /**
+     * Writes the result of every lane whose TERMINATE just became non-zero,
+     * then compacts the live lanes if a quarter of the stored ones have terminated.
+     */
+    private void checkTerminated(File outputDir) {
+        int terminateOff = signals.getTerminateSlot() * width;
+        for (int p = 0; p < width; p++) {
+            if (!terminated[p] && currentValues[terminateOff + p] != 0) {
+                terminated[p] = true;
+                activeLanes--;
+                dumpLane(p, new File(outputDir, "lane_" + laneIds[p]));
+            }
+        }
+        if (activeLanes > 0 && activeLanes <= width * 3 / 4) {
+            compact();
+        }
+    }
+
+    /**
+     * Moves the live lanes of every slot to the front, in order, and shrinks
+     * the width to their number. Works in place: no value is written to an
+     * index after the one it is read from, so none is overwritten before it is read.
+     */
+    private void compact() {
+        int[] live = new int[activeLanes];
+        int count = 0;
+        for (int p = 0; p < width; p++) {
+            if (!terminated[p]) live[count++] = p;
+        }
+        // Both arrays, so that slots no expression writes keep their values
+        for (int[] values : new int[][] {currentValues, nextValues}) {
+            for (int s = 0; s < numSignals; s++) {
+                for (int k = 0; k < count; k++) {
+                    values[s * count + k] = values[s * width + live[k]];
+                }
+            }
+        }
+        for (int k = 0; k < count; k++) {
+            laneIds[k] = laneIds[live[k]];
+            terminated[k] = false;
+        }
+        width = count;
+    }
+
+    /**
+     * Writes the current values of the lane at POSITION to DIR/result.txt in alphabetical order.
+     */
+    private void dumpLane(int position, File dir) {
+        int[] laneValues = new int[numSignals];
+        for (int s = 0; s < numSignals; s++) {
+            laneValues[s] = currentValues[s * width + position];
+        }
+
+        dir.mkdirs();
+        try {
+            signals.dumpValues(new File(dir, "result.txt"), laneValues);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("\nFatal IO exception occurred - Exiting program");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Returns the number of binary operators on the longest path through NODE,
+     * which is the number of scratch buffers needed to evaluate it.
+     */
+    private static int depth(ExpressionNode node) {
+        if (node instanceof ExpressionNode.Unary unary) {
+            return depth(unary.getOperand());
+        }
+        else if (node instanceof ExpressionNode.Binary binary) {
+            return Math.max(depth(binary.getLeft()), depth(binary.getRight()) + 1);
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,285 @@
+package Source;
+
+import Exceptions.HDLParseException;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Hand-written single pass tokenizer for HDL source. Walks the raw bytes of
+ * a file or expression string once, keeping one token of lookahead, and
+ * records the line and column every token starts at for error messages.
+ *
+ * Tokens are:
+ * - IDENT: a letter, _ or / followed by letters, digits, _ and /
+ * - NUMBER: a digit followed by letters and digits, e.g. 12, 0xFF, 0b101
+ * - OPERATOR: + - & | ^ == != ! ~
+ * - Punctuation: ( ) , ; . and the assignments = and <=
+ * Whitespace and // comments are skipped.
+ *
+ * Only identifiers are turned into Strings. Numbers are converted straight
+ * from the bytes and operators use shared constant Strings.
+ */
+
+public class Lexer {
+
+    public enum Kind { IDENT, NUMBER, OPERATOR, LPAREN, RPAREN, COMMA, SEMICOLON, DOT, EQUALS, NONBLOCKING, EOF }
+
+    private final byte[] src;
+    private final int end;
+    // File name for error messages, or null when lexing a single expression
+    private final String fileName;
+
+    // Position of the next unread byte and the start of its line
+    private int pos;
+    private int line;
+    private int lineStart;
+
+    // The current token
+    private Kind kind;
+    private int tokenStart;
+    private int tokenEnd;
+    private int tokenLine;
+    private int tokenColumn;
+    // Text of the current IDENT or OPERATOR token
+    private String text;
+
+    /**
+     * Lexes the expression string EXPRESSION.
+     */
+    public Lexer(String expression) {
+        this(expression.getBytes(StandardCharsets.UTF_8), null);
+    }
+
+    private Lexer(byte[] src, String fileName) {
+        this.src = src;
+        this.end = src.length;
+        this.fileName = fileName;
+        this.pos = 0;
+        this.line = 1;
+        this.lineStart = 0;
+        next();
+    }
+
+    /**
+     * Reads all of FILE through a file channel and lexes it.
+     *
+     * Throws FileNotFoundException if FILE does not exist or can not be read.
+     */
+    public static Lexer open(File file) throws FileNotFoundException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) { }
+            return new Lexer(buffer.array(), file.getName());
+        }
+        catch (NoSuchFileException e) {
+            throw new FileNotFoundException(file.getPath() + " (No such file)");
+        }
+        catch (IOException e) {
+            throw new FileNotFoundException(file.getPath() + " could not be read: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Moves on to the next token.
+     *
+     * Throws HDLParseException on a byte that can not start a token.
+     */
+    public void next() throws HDLParseException {
+        skipWhitespaceAndComments();
+        tokenStart = pos;
+        tokenLine = line;
+        tokenColumn = pos - lineStart + 1;
+        text = null;
+        if (pos >= end) {
+            kind = Kind.EOF;
+            tokenEnd = pos;
+            return;
+        }
+
+        byte c = src[pos];
+        if (isNameStart(c)) {
+            pos++;
+            while (pos < end && (isNameStart(src[pos]) || isDigit(src[pos])) && !startsComment(pos)) pos++;
+            kind = Kind.IDENT;
+            text = new String(src, tokenStart, pos - tokenStart, StandardCharsets.UTF_8);
+        }
+        else if (isDigit(c)) {
+            pos++;
+            while (pos < end && (isLetter(src[pos]) || isDigit(src[pos]))) pos++;
+            kind = Kind.NUMBER;
+        }
+        else {
+            pos++;
+            byte n = pos < end ? src[pos] : 0;
+            switch (c) {
+                case '(' -> kind = Kind.LPAREN;
+                case ')' -> kind = Kind.RPAREN;
+                case ',' -> kind = Kind.COMMA;
+                case ';' -> kind = Kind.SEMICOLON;
+                case '.' -> kind = Kind.DOT;
+                case '+' -> operator("+");
+                case '-' -> operator("-");
+                case '&' -> operator("&");
+                case '|' -> operator("|");
+                case '^' -> operator("^");
+                case '~' -> operator("~");
+                case '=' -> {
+                    if (n == '=') { pos++; operator("=="); }
+                    else kind = Kind.EQUALS;
+                }
+                case '!' -> {
+                    if (n == '=') { pos++; operator("!="); }
+                    else operator("!");
+                }
+                case '<' -> {
+                    if (n != '=') throw error("Unexpected '<'");
+                    pos++;
+                    kind = Kind.NONBLOCKING;
+                }
+                default -> throw error(String.format("Unexpected '%c'", (char) c));
+            }
+        }
+        tokenEnd = pos;
+    }
+
+    public Kind kind() {
+        return kind;
+    }
+
+    /**
+     * Returns true if the current token is the IDENT or OPERATOR TEXT.
+     */
+    public boolean is(String text) {
+        return text.equals(this.text);
+    }
+
+    /**
+     * Returns the text of the current IDENT or OPERATOR token, or null.
+     */
+    public String text() {
+        return text;
+    }
+
+    /**
+     * Returns the source text of the current token, for error messages.
+     */
+    public String tokenSource() {
+        return kind == Kind.EOF ? "end of input" : new String(src, tokenStart, tokenEnd - tokenStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Checks that the current token is of kind KIND, and moves past it.
+     * Returns the text of the token it moved past.
+     *
+     * Throws HDLParseException naming WHAT was expected otherwise.
+     */
+    public String expect(Kind kind, String what) throws HDLParseException {
+        if (this.kind != kind) {
+            throw error(String.format("Expected %s but found '%s'", what, tokenSource()));
+        }
+        String consumed = text;
+        next();
+        return consumed;
+    }
+
+    /**
+     * Returns the value of the current NUMBER token, negated if NEGATIVE.
+     * Decimal numbers must fit in a signed int. Hex (0x) and binary (0b)
+     * numbers are read as unsigned 32 bit patterns.
+     *
+     * Throws HDLParseException if the number is malformed or too large.
+     */
+    public int numberValue(boolean negative) throws HDLParseException {
+        int start = tokenStart;
+        int radix = 10;
+        if (tokenEnd - start > 2 && src[start] == '0' && (src[start + 1] == 'x' || src[start + 1] == 'b')) {
+            radix = src[start + 1] == 'x' ? 16 : 2;
+            start += 2;
+        }
+        long limit = radix != 10 ? 0xFFFFFFFFL : negative ? 1L + Integer.MAX_VALUE : Integer.MAX_VALUE;
+
+        long value = 0;
+        for (int i = start; i < tokenEnd; i++) {
+            int digit = Character.digit(src[i], radix);
+            value = value * radix + digit;
+            if (digit < 0 || value > limit) {
+                throw error(String.format("Invalid constant %s%s", negative ? "-" : "", tokenSource()));
+            }
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    /**
+     * Returns a HDLParseException for MSG, pointing at the current token.
+     */
+    public HDLParseException error(String msg) {
+        if (fileName == null) {
+            String expression = new String(src, StandardCharsets.UTF_8);
+            return new HDLParseException(String.format("%s at column %d in expression <<  %s  >>", msg, tokenColumn, expression));
+        }
+        return new HDLParseException(String.format("%s:%d:%d: %s", fileName, tokenLine, tokenColumn, msg));
+    }
+
+    public int getLine() {
+        return tokenLine;
+    }
+
+    public int getColumn() {
+        return tokenColumn;
+    }
+
+
+    // PRIVATE HELPER METHODS /////////////////////////////////////////////////
+
+    private void operator(String op) {
+        kind = Kind.OPERATOR;
+        text = op;
+    }
+
+    private void skipWhitespaceAndComments() {
+        while (pos < end) {
+            byte c = src[pos];
+            if (c == '\n') {
+                pos++;
+                line++;
+                lineStart = pos;
+            }
+            else if (c == ' ' || c == '\t' || c == '\r' || c == '\f') {
+                pos++;
+            }
+            else if (startsComment(pos)) {
+                while (pos < end && src[pos] != '\n') pos++;
+            }
+            else {
+                return;
+            }
+        }
+    }
+
+    private boolean startsComment(int i) {
+        return src[i] == '/' && i + 1 < end && src[i + 1] == '/';
+    }
+
+    private static boolean isDigit(byte c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // Bytes of multi-byte UTF-8 characters count as letters
+    private static boolean isLetter(byte c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c < 0;
+    }
+
+    private static boolean isNameStart(byte c) {
+        return isLetter(c) || c == '_' || c == '/';
+    }
+
+}
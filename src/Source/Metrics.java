@@ -0,0 +1,223 @@
+package Source;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Locale;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Run time metrics of one run: the time spent in each phase, and counts of
+ * what the simulation did. Every phase is also committed as an
+ * HDLSim.PhaseEvent for Flight Recorder.
+ *
+ * Only one phase runs at a time. Starting a phase ends the one before it,
+ * and a phase started more than once adds up its times.
+ */
+
+public class Metrics {
+
+    /**
+     * Phases of a run, in the order they happen. PARSE and ELABORATE are
+     * skipped when the netlist is loaded from the cache, which CACHE times.
+     */
+    public enum Phase {
+        PARSE("parse"),
+        ELABORATE("elaborate"),
+        OPTIMIZE("optimize"),
+        CACHE("cache"),
+        BUILD("build"),
+        SIMULATE("simulate"),
+        DUMP("dump");
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private final long[] phaseNanos;
+    private final long startNanos;
+    // Phase running now, when it started and its event. Null if none.
+    private Phase current;
+    private long currentStart;
+    private PhaseEvent currentEvent;
+    // Time from creation until finish(). -1 until then.
+    private long totalNanos;
+
+    // Counts reported by the simulation. -1 if not known, e.g. for batch runs.
+    private long cycles;
+    private long expressionEvaluations;
+    private long skippedRegEvaluations;
+    private long logBytes;
+
+    /**
+     * Creates the metrics of a run that starts now.
+     */
+    public Metrics() {
+        this.phaseNanos = new long[Phase.values().length];
+        this.startNanos = System.nanoTime();
+        this.current = null;
+        this.totalNanos = -1;
+        this.cycles = -1;
+        this.expressionEvaluations = -1;
+        this.skippedRegEvaluations = -1;
+        this.logBytes = -1;
+    }
+
+    /**
+     * Ends the running phase, if any, and starts timing PHASE.
+     */
+    public void start(Phase phase) {
+        stop();
+        current = phase;
+        currentEvent = new PhaseEvent();
+        currentEvent.phase = phase.getLabel();
+        currentEvent.begin();
+        currentStart = System.nanoTime();
+    }
+
+    /**
+     * Ends the running phase, if any.
+     */
+    public void stop() {
+        if (current == null) return;
+        phaseNanos[current.ordinal()] += System.nanoTime() - currentStart;
+        currentEvent.commit();
+        current = null;
+        currentEvent = null;
+    }
+
+    /**
+     * Ends the running phase and the run as a whole.
+     */
+    public void finish() {
+        stop();
+        totalNanos = System.nanoTime() - startNanos;
+    }
+
+    public void setCycles(long cycles) {
+        this.cycles = cycles;
+    }
+
+    public void setExpressionEvaluations(long expressionEvaluations) {
+        this.expressionEvaluations = expressionEvaluations;
+    }
+
+    public void setSkippedRegEvaluations(long skippedRegEvaluations) {
+        this.skippedRegEvaluations = skippedRegEvaluations;
+    }
+
+    public void setLogBytes(long logBytes) {
+        this.logBytes = logBytes;
+    }
+
+    /**
+     * Returns the seconds spent in PHASE so far.
+     */
+    public double getSeconds(Phase phase) {
+        return phaseNanos[phase.ordinal()] / 1e9;
+    }
+
+    /**
+     * Returns the seconds from creation until finish(), or until now if the
+     * run has not finished.
+     */
+    public double getTotalSeconds() {
+        return (totalNanos >= 0 ? totalNanos : System.nanoTime() - startNanos) / 1e9;
+    }
+
+    /**
+     * Returns the cycles simulated per second of the simulate phase, or -1 if
+     * the cycle count is not known.
+     */
+    public double getCyclesPerSecond() {
+        if (cycles < 0) return -1;
+        return cycles / Math.max(getSeconds(Phase.SIMULATE), 1e-9);
+    }
+
+    /**
+     * Returns the summary table printed by -t.
+     */
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        double total = getTotalSeconds();
+        sb.append(String.format(Locale.ROOT, "%-12s %10s %7s%n", "Phase", "Time (s)", "Share"));
+        for (Phase phase : Phase.values()) {
+            double seconds = getSeconds(phase);
+            sb.append(String.format(Locale.ROOT, "%-12s %10.3f %6.1f%%%n",
+                    phase.getLabel(), seconds, 100 * seconds / Math.max(total, 1e-9)));
+        }
+        sb.append(String.format(Locale.ROOT, "%-12s %10.3f%n", "total", total));
+        if (cycles >= 0) {
+            sb.append(String.format(Locale.ROOT, "Cycles: %d (%.0f cycles/s)%n", cycles, getCyclesPerSecond()));
+        }
+        if (expressionEvaluations >= 0) {
+            sb.append(String.format(Locale.ROOT, "Expression evaluations: %d%n", expressionEvaluations));
+        }
+        if (skippedRegEvaluations >= 0) {
+            sb.append(String.format(Locale.ROOT, "Reg evaluations skipped by enables: %d%n", skippedRegEvaluations));
+        }
+        if (logBytes >= 0) {
+            sb.append(String.format(Locale.ROOT, "Log bytes written: %d%n", logBytes));
+        }
+        sb.append(String.format(Locale.ROOT, "Peak heap: %.1fMB%n", peakHeapBytes() / 1e6));
+        return sb.toString();
+    }
+
+    /**
+     * Writes every metric to FILE as a JSON object. Counts that are not known
+     * are written as null.
+     */
+    public void writeJson(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+            out.println("{");
+            out.println("  \"phases\": {");
+            Phase[] phases = Phase.values();
+            for (int i = 0; i < phases.length; i++) {
+                out.printf(Locale.ROOT, "    \"%s\": %.6f%s%n",
+                        phases[i].getLabel(), getSeconds(phases[i]), i < phases.length - 1 ? "," : "");
+            }
+            out.println("  },");
+            out.printf(Locale.ROOT, "  \"total_seconds\": %.6f,%n", getTotalSeconds());
+            out.printf(Locale.ROOT, "  \"cycles\": %s,%n", jsonCount(cycles));
+            out.printf(Locale.ROOT, "  \"cycles_per_second\": %s,%n",
+                    cycles < 0 ? "null" : String.format(Locale.ROOT, "%.1f", getCyclesPerSecond()));
+            out.printf(Locale.ROOT, "  \"expression_evaluations\": %s,%n", jsonCount(expressionEvaluations));
+            out.printf(Locale.ROOT, "  \"reg_evaluations_skipped\": %s,%n", jsonCount(skippedRegEvaluations));
+            out.printf(Locale.ROOT, "  \"log_bytes\": %s,%n", jsonCount(logBytes));
+            out.printf(Locale.ROOT, "  \"peak_heap_bytes\": %d%n", peakHeapBytes());
+            out.println("}");
+        }
+    }
+
+    /**
+     * Returns the most heap that has been in use, summed over the peak of every heap memory pool.
+     */
+    public static long peakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    // PRIVATE HELPER METHODS /////////////////////////////////////////////////
+
+    private static String jsonCount(long count) {
+        return count < 0 ? "null" : Long.toString(count);
+    }
+
+}
@@ -1,29 +1,184 @@
 package Source;
 
-import java.io.BufferedReader;
+import Exceptions.HDLException;
+
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author Jonah Tharakan
  *
- * Class that stores the data for many files as String arrays.
+ * Class that stores the parsed form of every module file in one project
+ * directory. Each file is read and parsed into a HDLSim.ModuleTemplate the
+ * first time it is asked for, and every later instance of that module is
+ * stamped out of the same template.
+ *
+ * preload() reads a whole module hierarchy ahead of time, parsing the
+ * files of each level of the hierarchy concurrently so slow storage is
+ * waited on in parallel rather than one file at a time.
  */
 public class ModuleFileCache {
 
-    private HashMap<String, List<String>> data;
+    // Most files read at once when virtual threads are not available
+    private static final int MAX_PLATFORM_THREADS = 64;
+
+    // The directory that the source files are contained in
+    private final String dir;
+    // File name to its parsed module
+    private final HashMap<String, ModuleTemplate> data;
+
+    /**
+     * Constructs an empty module file cache for the source files in DIR.
+     */
+    public ModuleFileCache(String dir) {
+        this.dir = dir;
+        this.data = new HashMap<>();
+    }
+
+    /**
+     * Returns the parsed module in FILENAME, reading the file only if it has
+     * not been read yet.
+     *
+     * Throws FileNotFoundException if the file does not exist.
+     * Throws HDLException if the file is not a valid module.
+     */
+    public ModuleTemplate get(String fileName) throws FileNotFoundException, HDLException {
+        ModuleTemplate template = data.get(fileName);
+        if (template == null) {
+            template = HDLModuleReader.parse(new File(dir + "/" + fileName));
+            data.put(fileName, template);
+        }
+        return template;
+    }
+
+    /**
+     * Reads every module file reachable from ROOTFILENAME through submod
+     * lines. Starting from the root, each round parses all newly found
+     * files at the same time, then follows their submod lines to find the
+     * next round. Nothing is added to a HDLSim.Signals object, so instances
+     * can then be linked in file order exactly as without preloading.
+     *
+     * Files that do not exist are skipped and reported when an instance of
+     * them is linked.
+     *
+     * Throws HDLException if a file is not a valid module. If several are
+     * invalid, the first by name is reported.
+     */
+    public void preload(String rootFileName) throws HDLException {
+        LinkedHashSet<String> pending = new LinkedHashSet<>();
+        if (!data.containsKey(rootFileName)) pending.add(rootFileName);
+
+        ExecutorService executor = null;
+        try {
+            while (!pending.isEmpty()) {
+                ArrayList<String> round = new ArrayList<>(pending);
+                round.sort(null);
+                pending.clear();
+
+                ArrayList<ModuleTemplate> parsed;
+                if (round.size() == 1) {
+                    parsed = new ArrayList<>();
+                    parsed.add(parseIfExists(round.get(0)));
+                }
+                else {
+                    if (executor == null) executor = newReaderExecutor();
+                    parsed = parseAll(executor, round);
+                }
+
+                for (int i = 0; i < round.size(); i++) {
+                    ModuleTemplate template = parsed.get(i);
+                    if (template == null) continue;
+                    data.put(round.get(i), template);
+                    for (String type : template.getSubmodTypes()) {
+                        String fileName = type + ".txt";
+                        if (!data.containsKey(fileName) && !round.contains(fileName)) pending.add(fileName);
+                    }
+                }
+            }
+        }
+        finally {
+            if (executor != null) executor.shutdown();
+        }
+    }
+
+    /**
+     * Returns the names of every module file read so far.
+     */
+    public Set<String> getFileNames() {
+        return data.keySet();
+    }
 
     /**
-     * Constructs a module file cache given an array of strings representing file names.
+     * Returns the number of distinct module files read so far.
      */
-    public ModuleFileCache(String[] fileNames) throws FileNotFoundException {
-        BufferedReader reader;
+    public int size() {
+        return data.size();
+    }
+
+
+    // PRIVATE HELPER METHODS /////////////////////////////////////////////////
+
+    /**
+     * Parses every file in FILENAMES on EXECUTOR and returns the templates in
+     * the same order, with null for files that do not exist.
+     */
+    private ArrayList<ModuleTemplate> parseAll(ExecutorService executor, List<String> fileNames) throws HDLException {
+        ArrayList<Future<ModuleTemplate>> futures = new ArrayList<>();
         for (String fileName : fileNames) {
-            reader = new BufferedReader(new FileReader(fileName));
+            futures.add(executor.submit(() -> parseIfExists(fileName)));
+        }
 
+        ArrayList<ModuleTemplate> parsed = new ArrayList<>();
+        for (Future<ModuleTemplate> future : futures) {
+            try {
+                parsed.add(future.get());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new HDLException("Interrupted while reading module files");
+            }
+            catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException re) throw re;
+                throw new HDLException("Could not read module file: " + e.getCause());
+            }
+        }
+        return parsed;
+    }
+
+    private ModuleTemplate parseIfExists(String fileName) throws HDLException {
+        try {
+            return HDLModuleReader.parse(new File(dir + "/" + fileName));
+        }
+        catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns an executor that starts a virtual thread per file where the
+     * JVM has them (Java 21+), and a bounded pool of platform threads
+     * otherwise.
+     */
+    private static ExecutorService newReaderExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            int threads = Math.min(MAX_PLATFORM_THREADS, 4 * Runtime.getRuntime().availableProcessors());
+            return Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "HDLSim-module-reader");
+                thread.setDaemon(true);
+                return thread;
+            });
         }
     }
 
@@ -0,0 +1,181 @@
+package Source;
+
+import Exceptions.HDLException;
+import Exceptions.HDLParseException;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * One parsed HDL module file, with every signal name still relative to the
+ * module. Built once per file by HDLSim.HDLModuleReader and kept in a
+ * HDLSim.ModuleFileCache. instantiate() stamps out one copy of the module
+ * under a prefix by renaming the already parsed expressions, so a module
+ * that is instantiated many times is only ever read and parsed once.
+ *
+ * Statements are kept in file order, so instances are added to
+ * HDLSim.Signals in the same order as if the file was read again.
+ */
+
+public class ModuleTemplate {
+
+    private final String name;
+    private final boolean isMain;
+
+    // Module connections in declaration order
+    private final ArrayList<String> ports;
+    private final HashSet<String> inputs;
+    private final HashSet<String> outputs;
+
+    private final ArrayList<Statement> statements;
+
+    ModuleTemplate(String name) {
+        this.name = name;
+        this.isMain = name.equals("main");
+        this.ports = new ArrayList<>();
+        this.inputs = new HashSet<>();
+        this.outputs = new HashSet<>();
+        this.statements = new ArrayList<>();
+    }
+
+    /**
+     * Adds every signal and expression of this module to SIGNALS, with PREFIX
+     * in front of each name. Submodules are looked up in CACHE and
+     * instantiated under PREFIX + instance name + "/".
+     *
+     * Throws HDLException if a submodule file is missing or any statement is
+     * invalid for this instance.
+     */
+    void instantiate(Signals signals, String prefix, ModuleFileCache cache) throws HDLException {
+        for (String port : ports) {
+            signals.addWire(prefix + port);
+        }
+
+        for (Statement statement : statements) {
+            if (statement instanceof Reg reg) {
+                signals.addReg(prefix + reg.name(), reg.initVal());
+            }
+            else if (statement instanceof Wire wire) {
+                signals.addWire(prefix + wire.name());
+            }
+            else if (statement instanceof Assignment assignment) {
+                String target = prefix + assignment.target();
+                if (signals.getRegs().contains(target)) {
+                    if (!assignment.op().equals("<=")) {
+                        throw new HDLParseException("Must use <= when assigning to regs!");
+                    }
+                } else if (signals.getWires().contains(target)) {
+                    if (!assignment.op().equals("=")) {
+                        throw new HDLParseException("Must use = when assigning to regs!");
+                    }
+                }
+                signals.addExpression(target, assignment.expression().withPrefix(prefix));
+            }
+            else if (statement instanceof Submod submod) {
+                instantiateSubmod(signals, prefix, cache, submod);
+            }
+            else if (statement instanceof Terminate terminate) {
+                signals.addTerminate(terminate.expression().withPrefix(prefix));
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isMain() {
+        return isMain;
+    }
+
+    public HashSet<String> getInputs() {
+        return inputs;
+    }
+
+    public HashSet<String> getOutputs() {
+        return outputs;
+    }
+
+    /**
+     * Returns the module type of every submodule instance, in file order.
+     */
+    public List<String> getSubmodTypes() {
+        ArrayList<String> types = new ArrayList<>();
+        for (Statement statement : statements) {
+            if (statement instanceof Submod submod) types.add(submod.type());
+        }
+        return types;
+    }
+
+
+    // BUILDING ///////////////////////////////////////////////////////////////
+    // Called by HDLSim.HDLModuleReader while it parses the file
+
+    void addInput(String port) {
+        ports.add(port);
+        inputs.add(port);
+    }
+
+    void addOutput(String port) {
+        ports.add(port);
+        outputs.add(port);
+    }
+
+    void addStatement(Statement statement) {
+        statements.add(statement);
+    }
+
+
+    // STATEMENTS /////////////////////////////////////////////////////////////
+
+    interface Statement { }
+
+    record Reg(String name, int initVal) implements Statement { }
+
+    record Wire(String name) implements Statement { }
+
+    // OP is the assignment operator as written, "=" or "<="
+    record Assignment(String target, String op, Expression expression) implements Statement { }
+
+    // Each connection is {pin, wire in this module}
+    record Submod(String type, String instanceName, List<String[]> connections) implements Statement { }
+
+    record Terminate(Expression expression) implements Statement { }
+
+
+    // PRIVATE HELPER METHODS /////////////////////////////////////////////////
+
+    /**
+     * Instantiates SUBMOD under PREFIX, then creates the bridge expressions
+     * between its pins and the wires of this instance.
+     */
+    private void instantiateSubmod(Signals signals, String prefix, ModuleFileCache cache, Submod submod) {
+        ModuleTemplate template;
+        try {
+            template = cache.get(submod.type() + ".txt");
+        } catch (FileNotFoundException e) {
+            throw new HDLException(String.format("HDL file for %s %s %s could not be found", "submod", submod.type(), submod.instanceName()));
+        }
+        String subPrefix = prefix + submod.instanceName() + "/";
+        template.instantiate(signals, subPrefix, cache);
+
+        for (String[] cxn : submod.connections()) {
+            String pin = cxn[0];
+            String wireConnection = cxn[1];
+            if (template.getInputs().contains(pin)) {
+                signals.addExpression(subPrefix + pin, new Expression(prefix + wireConnection));
+            }
+            else if (template.getOutputs().contains(pin)) {
+                signals.addExpression(prefix + wireConnection, new Expression(subPrefix + pin));
+            }
+            else {
+                throw new HDLException("Specified pin is not a part of this submodule");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,282 @@
+package Source;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Saves an elaborated and sorted netlist to a binary file, so later runs on
+ * unchanged sources can skip reading module files and the topological sort.
+ * The file is keyed by a SHA-256 hash of every source file that went into
+ * the netlist. If any of them has changed, been removed or can not be
+ * read, the cache is ignored and rebuilt. The hash also covers a
+ * configuration string, so netlists built with different settings, such
+ * as with and without HDLSim.NetlistOptimizer, never get mixed up.
+ *
+ * File layout (all numbers big-endian):
+ * - Header: MAGIC, VERSION, the 32 byte hash, then the number of source
+ *   files and their names
+ * - Signals: signal count, then in slot order every signal's name, its kind
+ *   (wire or reg, and whether it is hidden), its starting value and its driving expression
+ * - Wire order: count of evaluated wires, then every one's signal index in
+ *   topological order. Aliases are found again by build() and not listed.
+ *
+ * Names are a 2 byte length followed by UTF-8 bytes. An expression is
+ * written in prefix order as a tag byte followed by a constant's value, a
+ * signal's index, or an operator's ordinal and its operands.
+ */
+
+public class NetlistCache {
+
+    public static final int MAGIC = 0x48444C4E; // "HDLN"
+    public static final int VERSION = 3;
+
+    private static final byte TAG_CONSTANT = 0;
+    private static final byte TAG_SIGNAL = 1;
+    private static final byte TAG_UNARY = 2;
+    private static final byte TAG_BINARY = 3;
+
+    private static final byte KIND_WIRE = 0;
+    private static final byte KIND_REG = 1;
+    private static final byte KIND_HIDDEN_WIRE = 2;
+    private static final byte KIND_HIDDEN_REG = 3;
+
+    // Directory the source file names are relative to
+    private final File sourceDir;
+    private final File cacheFile;
+    // Settings the netlist was built with
+    private final String config;
+
+    /**
+     * Prepares a cache in CACHEFILE for the sources in SOURCEDIR, built with
+     * the settings described by CONFIG.
+     */
+    public NetlistCache(File sourceDir, File cacheFile, String config) {
+        this.sourceDir = sourceDir;
+        this.cacheFile = cacheFile;
+        this.config = config;
+    }
+
+    /**
+     * Fills the empty SIGNALS with the cached netlist, including its wire
+     * order, if the cache exists and matches the current sources.
+     * SIGNALS is left untouched otherwise.
+     *
+     * Returns true if the netlist was loaded.
+     */
+    public boolean load(Signals signals) {
+        if (!cacheFile.isFile()) return false;
+
+        try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return false;
+
+            byte[] hash = new byte[32];
+            buffer.get(hash);
+            int numFiles = buffer.getInt();
+            ArrayList<String> fileNames = new ArrayList<>();
+            for (int i = 0; i < numFiles; i++) {
+                fileNames.add(getName(buffer));
+            }
+            if (!Arrays.equals(hash, hashSources(fileNames))) return false;
+
+            int numSignals = buffer.getInt();
+            String[] names = new String[numSignals];
+            byte[] kinds = new byte[numSignals];
+            int[] initValues = new int[numSignals];
+            ExpressionNode[] exprs = new ExpressionNode[numSignals];
+            for (int s = 0; s < numSignals; s++) {
+                names[s] = getName(buffer);
+                kinds[s] = buffer.get();
+                initValues[s] = buffer.getInt();
+            }
+            for (int s = 0; s < numSignals; s++) {
+                exprs[s] = getNode(buffer, names);
+            }
+            ArrayList<String> wireOrder = new ArrayList<>();
+            int numWires = buffer.getInt();
+            for (int i = 0; i < numWires; i++) {
+                wireOrder.add(names[buffer.getInt()]);
+            }
+
+            // Declare everything before adding expressions, which check their dependencies
+            for (int s = 0; s < numSignals; s++) {
+                if (names[s].equals("TERMINATE")) continue;
+                switch (kinds[s]) {
+                    case KIND_REG -> signals.addReg(names[s], initValues[s]);
+                    case KIND_HIDDEN_WIRE -> signals.addHiddenWire(names[s]);
+                    case KIND_HIDDEN_REG -> signals.addHiddenReg(names[s], initValues[s]);
+                    default -> signals.addWire(names[s]);
+                }
+            }
+            for (int s = 0; s < numSignals; s++) {
+                if (names[s].equals("TERMINATE")) signals.addTerminate(new Expression(exprs[s]));
+                else signals.addExpression(names[s], new Expression(exprs[s]));
+            }
+            signals.setWireOrder(wireOrder);
+            return true;
+        }
+        catch (IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the netlist of SIGNALS, which must just have been built from the
+     * source files in FILENAMES, to the cache file. The file is written under
+     * a temporary name and renamed, so an interrupted run never leaves a
+     * half written cache behind.
+     */
+    public void save(Signals signals, Collection<String> fileNames) throws IOException {
+        assert signals.isBuilt() : "Must call build() before caching the netlist!";
+
+        ArrayList<String> sortedFiles = new ArrayList<>(fileNames);
+        sortedFiles.sort(null);
+        List<String> names = signals.getSignalOrder();
+        HashMap<String, Integer> index = new HashMap<>(names.size() * 2);
+        for (int i = 0; i < names.size(); i++) {
+            index.put(names.get(i), i);
+        }
+        HashMap<String, Integer> initValues = signals.getInitialValues();
+
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(hashSources(sortedFiles));
+            out.writeInt(sortedFiles.size());
+            for (String fileName : sortedFiles) {
+                putName(out, fileName);
+            }
+
+            out.writeInt(names.size());
+            for (String name : names) {
+                putName(out, name);
+                out.writeByte(kindOf(signals, name));
+                out.writeInt(initValues.get(name));
+            }
+            for (String name : names) {
+                putNode(out, signals.getExpressions().get(name).getRoot(), index);
+            }
+
+            out.writeInt(signals.getWireOrder().size());
+            for (String wire : signals.getWireOrder()) {
+                out.writeInt(index.get(wire));
+            }
+        }
+        Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+
+    // PRIVATE HELPER METHODS /////////////////////////////////////////////////
+
+    /**
+     * Returns the SHA-256 hash of the configuration and the names and contents of FILENAMES, which
+     * must already be sorted. Returns null if a file can not be read.
+     */
+    private byte[] hashSources(List<String> fileNames) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(Integer.toString(VERSION).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(config.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            for (String fileName : fileNames) {
+                byte[] content = Files.readAllBytes(new File(sourceDir, fileName).toPath());
+                digest.update(fileName.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(Integer.toString(content.length).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(content);
+            }
+            return digest.digest();
+        }
+        catch (IOException e) {
+            return null;
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static byte kindOf(Signals signals, String name) {
+        boolean hidden = signals.getHiddenSignals().contains(name);
+        if (signals.getRegs().contains(name)) return hidden ? KIND_HIDDEN_REG : KIND_REG;
+        return hidden ? KIND_HIDDEN_WIRE : KIND_WIRE;
+    }
+
+    private static void putName(DataOutputStream out, String name) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getName(MappedByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes NODE in prefix order, with signals written as their INDEX.
+     */
+    private static void putNode(DataOutputStream out, ExpressionNode node, HashMap<String, Integer> index) throws IOException {
+        if (node instanceof ExpressionNode.Constant constant) {
+            out.writeByte(TAG_CONSTANT);
+            out.writeInt(constant.getValue());
+        }
+        else if (node instanceof ExpressionNode.SignalRef ref) {
+            out.writeByte(TAG_SIGNAL);
+            out.writeInt(index.get(ref.getName()));
+        }
+        else if (node instanceof ExpressionNode.Unary unary) {
+            out.writeByte(TAG_UNARY);
+            out.writeByte(unary.getOp().ordinal());
+            putNode(out, unary.getOperand(), index);
+        }
+        else {
+            ExpressionNode.Binary binary = (ExpressionNode.Binary) node;
+            out.writeByte(TAG_BINARY);
+            out.writeByte(binary.getOp().ordinal());
+            putNode(out, binary.getLeft(), index);
+            putNode(out, binary.getRight(), index);
+        }
+    }
+
+    /**
+     * Reads a node written by putNode(), turning signal indices back into NAMES.
+     */
+    private static ExpressionNode getNode(MappedByteBuffer buffer, String[] names) {
+        byte tag = buffer.get();
+        return switch (tag) {
+            case TAG_CONSTANT -> new ExpressionNode.Constant(buffer.getInt());
+            case TAG_SIGNAL -> new ExpressionNode.SignalRef(names[buffer.getInt()]);
+            case TAG_UNARY -> new ExpressionNode.Unary(Operator.values()[buffer.get()], getNode(buffer, names));
+            case TAG_BINARY -> {
+                Operator op = Operator.values()[buffer.get()];
+                ExpressionNode left = getNode(buffer, names);
+                yield new ExpressionNode.Binary(op, left, getNode(buffer, names));
+            }
+            default -> throw new IndexOutOfBoundsException("Unknown expression tag " + tag);
+        };
+    }
+
+}
@@ -0,0 +1,374 @@
+package Source;
+
+import Exceptions.HDLException;
+
+import javax.tools.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Compiles a built design into a HDLSim.CompiledNetlist. The whole design is
+ * emitted as Java source for a single class whose step() method computes
+ * every reg next-state and then every wire in topological order as
+ * straight-line code. The source is compiled in memory and loaded as a
+ * hidden class, so HotSpot can inline and register-allocate the design.
+ *
+ * Large designs are automatically split into several methods so no method
+ * goes over the JVM's 64KB limit, and into several classes so no class
+ * runs out of constant pool entries. A single expression too large for one
+ * method has its large subexpressions moved into helper methods that return
+ * their value.
+ *
+ * Each class's constant pool is budgeted explicitly. Array indices and
+ * constants outside the short range are loaded with ldc and take one entry
+ * each per distinct value, and every method takes three entries for its
+ * reference, name and type. Everything else fits in fixed overhead.
+ */
+
+public class NetlistCompiler {
+
+    // Expression nodes emitted into one method. Each node is at most ~8 bytes of bytecode.
+    private static final int MAX_NODES_PER_METHOD = 3000;
+    // Subexpressions larger than this are moved into a helper method. Two of them
+    // and their operator still fit in one method, and javac copes with their nesting.
+    private static final int MAX_NODES_PER_HELPER = MAX_NODES_PER_METHOD / 4;
+    // Constant pool entries used by one class. The limit is 65535, the rest is
+    // left for the class, interface and descriptor entries every class has.
+    private static final int MAX_POOL_ENTRIES = 60000;
+    // Pool entries taken by each method: its Methodref, NameAndType and name
+    private static final int POOL_ENTRIES_PER_METHOD = 3;
+    // Emitted nodes an ldc of a constant outside the short range counts as. A
+    // call to a helper method counts as the same.
+    private static final int CALL_NODES = 3;
+
+    private static final String CLASS_NAME = "GeneratedNetlist";
+
+    // Finished class sources
+    private final ArrayList<String> classSources;
+    // Body of every method in the class currently being emitted
+    private final ArrayList<String> methodBodies;
+    // Helper methods in the class currently being emitted, with their signature
+    private final ArrayList<String> helperMethods;
+    // Distinct ints the class currently being emitted loads from its constant pool
+    private final Set<Integer> poolInts;
+    // Method currently being emitted
+    private StringBuilder method;
+    private int methodNodes;
+
+    // Helper methods and pool ints of the statement currently being emitted.
+    // They join the class the statement goes into once that is known.
+    private final ArrayList<String> pendingHelpers;
+    private final Set<Integer> pendingInts;
+    // Helper methods emitted so far, names them uniquely
+    private int helperCount;
+
+    private NetlistCompiler() {
+        this.classSources = new ArrayList<>();
+        this.methodBodies = new ArrayList<>();
+        this.helperMethods = new ArrayList<>();
+        this.poolInts = new HashSet<>();
+        this.method = new StringBuilder();
+        this.methodNodes = 0;
+        this.pendingHelpers = new ArrayList<>();
+        this.pendingInts = new HashSet<>();
+        this.helperCount = 0;
+    }
+
+    /**
+     * Compiles the evaluation plan of a built design into a HDLSim.CompiledNetlist.
+     * REGSLOTS/REGEXPRS give the slot and slot-bound driving expression of
+     * every reg, WIRESLOTS/WIREEXPRS the same for every wire in topological order.
+     *
+     * Throws HDLException if no Java compiler is available or compilation fails.
+     */
+    public static CompiledNetlist compile(int[] regSlots, ExpressionNode[] regExprs,
+                                          int[] wireSlots, ExpressionNode[] wireExprs) throws HDLException {
+        NetlistCompiler compiler = new NetlistCompiler();
+        for (int i = 0; i < regSlots.length; i++) {
+            compiler.emitAssignment(regSlots[i], regExprs[i], "cur");
+        }
+        for (int i = 0; i < wireSlots.length; i++) {
+            compiler.emitAssignment(wireSlots[i], wireExprs[i], "next");
+        }
+        compiler.finishClass();
+
+        ArrayList<CompiledNetlist> segments = new ArrayList<>();
+        for (int i = 0; i < compiler.classSources.size(); i++) {
+            segments.add(defineClass(CLASS_NAME + i, compiler.classSources.get(i)));
+        }
+        if (segments.size() == 1) {
+            return segments.get(0);
+        }
+
+        CompiledNetlist[] segmentArr = segments.toArray(new CompiledNetlist[0]);
+        return (cur, next) -> {
+            for (CompiledNetlist segment : segmentArr) {
+                segment.step(cur, next);
+            }
+        };
+    }
+
+
+    // SOURCE GENERATION //////////////////////////////////////////////////////
+
+    /**
+     * Emits a statement assigning the value of EXPRESSION to SLOT in the next
+     * state array. Signals are read from the array named SOURCE.
+     */
+    private void emitAssignment(int slot, ExpressionNode expression, String source) {
+        StringBuilder statement = new StringBuilder();
+        // The store to SLOT costs bytecode like any other node
+        int nodes = emitOperand(expression, source, statement) + 1;
+        addPoolInt(slot);
+
+        if (methodNodes > 0 && methodNodes + nodes > MAX_NODES_PER_METHOD) {
+            finishMethod();
+        }
+        if (poolEntries() > MAX_POOL_ENTRIES && (methodNodes > 0 || !methodBodies.isEmpty())) {
+            finishClass();
+        }
+        helperMethods.addAll(pendingHelpers);
+        poolInts.addAll(pendingInts);
+        pendingHelpers.clear();
+        pendingInts.clear();
+
+        method.append("        next[").append(slot).append("] = ")
+                .append(statement).append(";\n");
+        methodNodes += nodes;
+    }
+
+    /**
+     * Appends the Java expression for NODE to OUT and returns the number of
+     * nodes it costs the method it is in. If NODE is larger than
+     * MAX_NODES_PER_HELPER it is moved into a helper method and a call to that
+     * is appended instead.
+     */
+    private int emitOperand(ExpressionNode node, String source, StringBuilder out) {
+        StringBuilder expression = new StringBuilder();
+        int nodes = emitNode(node, source, expression);
+        if (nodes <= MAX_NODES_PER_HELPER) {
+            out.append(expression);
+            return nodes;
+        }
+
+        String name = "expr" + helperCount++;
+        pendingHelpers.add("    private static int " + name + "(int[] cur, int[] next) {\n"
+                + "        return " + expression + ";\n"
+                + "    }\n");
+        out.append(name).append("(cur, next)");
+        return CALL_NODES;
+    }
+
+    /**
+     * Appends the Java expression for NODE to OUT and returns the number of
+     * nodes that were emitted. Operands are emitted with emitOperand(), so the
+     * result is at most twice MAX_NODES_PER_HELPER plus one.
+     */
+    private int emitNode(ExpressionNode node, String source, StringBuilder out) {
+        if (node instanceof ExpressionNode.Constant constant) {
+            out.append(String.format("0x%X", constant.getValue()));
+            addPoolInt(constant.getValue());
+            return 1;
+        }
+        else if (node instanceof ExpressionNode.SignalRef ref) {
+            out.append(source).append('[').append(ref.getSlot()).append(']');
+            addPoolInt(ref.getSlot());
+            return 1;
+        }
+        else if (node instanceof ExpressionNode.Unary unary) {
+            out.append('(');
+            if (unary.getOp() == Operator.BITWISE_NOT) out.append('~');
+            int nodes = emitOperand(unary.getOperand(), source, out);
+            if (unary.getOp() == Operator.LOGICAL_NOT) out.append(" == 0 ? 1 : 0");
+            out.append(')');
+            return nodes + 1;
+        }
+        else {
+            ExpressionNode.Binary binary = (ExpressionNode.Binary) node;
+            out.append('(');
+            int nodes = emitOperand(binary.getLeft(), source, out);
+            out.append(' ').append(binary.getOp().getSymbol()).append(' ');
+            nodes += emitOperand(binary.getRight(), source, out);
+            if (binary.getOp() == Operator.EQUALITY || binary.getOp() == Operator.INEQUALITY) {
+                out.append(" ? 1 : 0");
+            }
+            out.append(')');
+            return nodes + 1;
+        }
+    }
+
+    /**
+     * Records that the statement being emitted loads VALUE, if it takes a
+     * constant pool entry: ints outside the short range are loaded with ldc.
+     */
+    private void addPoolInt(int value) {
+        if (value < Short.MIN_VALUE || value > Short.MAX_VALUE) {
+            pendingInts.add(value);
+        }
+    }
+
+    /**
+     * Returns the constant pool entries the class being emitted would use if
+     * it also held the statement being emitted.
+     */
+    private int poolEntries() {
+        int methods = methodBodies.size() + 1 + helperMethods.size() + pendingHelpers.size();
+        int ints = poolInts.size();
+        for (int value : pendingInts) {
+            if (!poolInts.contains(value)) ints++;
+        }
+        return methods * POOL_ENTRIES_PER_METHOD + ints;
+    }
+
+    private void finishMethod() {
+        methodBodies.add(method.toString());
+        method = new StringBuilder();
+        methodNodes = 0;
+    }
+
+    private void finishClass() {
+        if (methodNodes > 0) {
+            methodBodies.add(method.toString());
+            method = new StringBuilder();
+            methodNodes = 0;
+        }
+        if (methodBodies.isEmpty() && helperMethods.isEmpty() && !classSources.isEmpty()) {
+            return;
+        }
+
+        int index = classSources.size();
+        StringBuilder src = new StringBuilder();
+        src.append("package Source;\n\n");
+        src.append("final class ").append(CLASS_NAME).append(index).append(" implements CompiledNetlist {\n\n");
+        src.append("    public void step(int[] cur, int[] next) {\n");
+        for (int i = 0; i < methodBodies.size(); i++) {
+            src.append("        step").append(i).append("(cur, next);\n");
+        }
+        src.append("    }\n");
+        for (int i = 0; i < methodBodies.size(); i++) {
+            src.append("\n    private static void step").append(i).append("(int[] cur, int[] next) {\n");
+            src.append(methodBodies.get(i));
+            src.append("    }\n");
+        }
+        for (String helper : helperMethods) {
+            src.append('\n').append(helper);
+        }
+        src.append("}\n");
+
+        classSources.add(src.toString());
+        methodBodies.clear();
+        helperMethods.clear();
+        poolInts.clear();
+    }
+
+
+    // COMPILATION ////////////////////////////////////////////////////////////
+
+    /**
+     * Compiles SOURCE in memory and defines it as a hidden class in this package.
+     */
+    private static CompiledNetlist defineClass(String className, String source) throws HDLException {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            throw new HDLException("The codegen engine requires a JDK, but no Java compiler is available");
+        }
+
+        JavaFileObject sourceFile = new SimpleJavaFileObject(
+                URI.create("string:///Source/" + className + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        JavaFileObject interfaceFile = classFileOf(CompiledNetlist.class);
+        ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+        // The generated class only refers to CompiledNetlist. It is served
+        // from the class loader that loaded it, since that need not be the
+        // application class path, e.g. under a test runner or an IDE.
+        JavaFileManager fileManager = new ForwardingJavaFileManager<>(javac.getStandardFileManager(null, null, null)) {
+            @Override
+            public Iterable<JavaFileObject> list(Location location, String packageName,
+                                                 Set<JavaFileObject.Kind> kinds, boolean recurse) throws IOException {
+                if (location == StandardLocation.CLASS_PATH && packageName.equals("Source")
+                        && kinds.contains(JavaFileObject.Kind.CLASS)) {
+                    return List.of(interfaceFile);
+                }
+                return super.list(location, packageName, kinds, recurse);
+            }
+
+            @Override
+            public String inferBinaryName(Location location, JavaFileObject file) {
+                if (file == interfaceFile) {
+                    return CompiledNetlist.class.getName();
+                }
+                return super.inferBinaryName(location, file);
+            }
+
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String name,
+                                                       JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("bytes:///" + name + ".class"), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        return classBytes;
+                    }
+                };
+            }
+        };
+
+        StringWriter diagnostics = new StringWriter();
+        List<String> options = List.of("-proc:none", "-g:none");
+        boolean ok = javac.getTask(diagnostics, fileManager, null, options, null, List.of(sourceFile)).call();
+        if (!ok) {
+            throw new HDLException("Failed to compile generated netlist:\n" + diagnostics);
+        }
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                    .defineHiddenClass(classBytes.toByteArray(), true);
+            return (CompiledNetlist) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class))
+                    .invoke();
+        }
+        catch (Throwable e) {
+            throw new HDLException("Failed to load generated netlist: " + e);
+        }
+    }
+
+    /**
+     * Returns the class file of TYPE, read through the class loader that loaded it.
+     */
+    private static JavaFileObject classFileOf(Class<?> type) throws HDLException {
+        String path = type.getName().replace('.', '/') + ".class";
+        byte[] bytes;
+        try (InputStream in = type.getClassLoader().getResourceAsStream(path)) {
+            if (in == null) {
+                throw new HDLException("Could not find " + path + " to compile the generated netlist against");
+            }
+            bytes = in.readAllBytes();
+        }
+        catch (IOException e) {
+            throw new HDLException("Could not read " + path + ": " + e.getMessage());
+        }
+
+        return new SimpleJavaFileObject(URI.create("bytes:///" + path), JavaFileObject.Kind.CLASS) {
+            @Override
+            public InputStream openInputStream() {
+                return new ByteArrayInputStream(bytes);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,389 @@
+package Source;
+
+import Exceptions.HDLParseException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Rewrites the driving expressions of a HDLSim.Signals object that has been
+ * read but not built yet, so the design does less work every cycle while
+ * every signal keeps exactly the same value.
+ *
+ * The pass runs in three steps:
+ * - Simplify: constant subexpressions such as (1 + 2) are folded, and
+ *   identities such as (x & 0), (x ^ x) and (x | 0) are reduced. The operands
+ *   of commutative operators are put in a fixed order so (a & b) and (b & a)
+ *   become the same tree.
+ * - Hash-cons: every simplified node is interned, so identical subexpressions
+ *   anywhere in the design, including in different module instances, become
+ *   one shared node.
+ * - Share: every operator node that is used more than once is computed once
+ *   by a wire and read from that wire's slot everywhere else. If some wire is
+ *   already driven by exactly that subexpression it is reused, otherwise a
+ *   hidden wire is added that does not show up in any output.
+ *
+ * Every canonical node gets an id when it is interned, and the sharing step
+ * works on int arrays indexed by those ids.
+ */
+
+public class NetlistOptimizer {
+
+    // Prefix of the hidden wires holding shared subexpressions. Can never appear in a HDL file.
+    static final String SHARED_PREFIX = "$shared";
+
+    private final Signals signals;
+
+    // Id of every canonical node, and the canonical node of every id
+    private final HashMap<ExpressionNode, Integer> ids;
+    private final ArrayList<ExpressionNode> nodes;
+    // Ids of the operands of every canonical node, -1 where it has fewer
+    private int[] firstOperand;
+    private int[] secondOperand;
+
+    // Number of distinct parents, plus driven signals, of every canonical node
+    private int[] refCounts;
+    // Name of the wire that computes every shared node, null for the others
+    private String[] holders;
+    // Shared nodes that need a new hidden wire, in the order they were found
+    private final ArrayList<Integer> hiddenNodes;
+    // Rewritten form of every canonical node, where shared nodes are replaced by their holder
+    private ExpressionNode[] rewritten;
+
+    private long nodesBefore;
+    private long nodesAfter;
+    private int foldedNodes;
+    private int sharedNodes;
+
+    /**
+     * Prepares an optimization pass over SIGNALS, which must have every
+     * driving expression added and must not be built yet.
+     */
+    public NetlistOptimizer(Signals signals) {
+        this.signals = signals;
+        this.ids = new HashMap<>();
+        this.nodes = new ArrayList<>();
+        this.firstOperand = new int[1024];
+        this.secondOperand = new int[1024];
+        this.hiddenNodes = new ArrayList<>();
+    }
+
+    /**
+     * Simplifies and shares the driving expressions of the signals, adding
+     * hidden wires where needed. Does nothing if a signal still has no
+     * driving expression, leaving build() to report it.
+     *
+     * Throws HDLParseException if a rewritten expression can not be added.
+     */
+    public void optimize() throws HDLParseException {
+        assert !signals.isBuilt() : "Must optimize before calling build()!";
+        if (!signals.getNoExpressionYet().isEmpty()) {
+            return;
+        }
+
+        // Sorted so the hidden wires are found and named the same way on every run
+        ArrayList<String> names = new ArrayList<>(signals.getExpressions().keySet());
+        names.sort(String::compareTo);
+
+        int[] roots = new int[names.size()];
+        for (int i = 0; i < roots.length; i++) {
+            ExpressionNode root = signals.getExpressions().get(names.get(i)).getRoot();
+            nodesBefore += countNodes(root);
+            roots[i] = simplify(root);
+        }
+
+        int numNodes = nodes.size();
+        refCounts = new int[numNodes];
+        holders = new String[numNodes];
+        rewritten = new ExpressionNode[numNodes];
+        for (int root : roots) {
+            addReference(root);
+        }
+        // A wire that is already driven by a shared node computes it for everyone else
+        for (int i = 0; i < roots.length; i++) {
+            if (isShared(roots[i]) && holders[roots[i]] == null && signals.getWires().contains(names.get(i))) {
+                holders[roots[i]] = names.get(i);
+                sharedNodes++;
+            }
+        }
+        boolean[] visited = new boolean[numNodes];
+        for (int root : roots) {
+            findHiddenNodes(root, visited);
+        }
+
+        // Declare every hidden wire before adding expressions, which check their dependencies
+        for (int node : hiddenNodes) {
+            signals.addHiddenWire(holders[node]);
+        }
+        for (int node : hiddenNodes) {
+            ExpressionNode expr = rewriteChildren(node);
+            nodesAfter += countNodes(expr);
+            signals.addExpression(holders[node], new Expression(expr));
+        }
+        for (int i = 0; i < roots.length; i++) {
+            ExpressionNode expr = names.get(i).equals(holders[roots[i]]) ? rewriteChildren(roots[i]) : rewrite(roots[i]);
+            nodesAfter += countNodes(expr);
+            if (expr != signals.getExpressions().get(names.get(i)).getRoot()) {
+                signals.replaceExpression(names.get(i), new Expression(expr));
+            }
+        }
+    }
+
+    // Number of expression nodes in the design before optimize() was called
+    public long getNodesBefore() {
+        return nodesBefore;
+    }
+
+    // Number of expression nodes in the design after optimize(), hidden wires included
+    public long getNodesAfter() {
+        return nodesAfter;
+    }
+
+    // Number of subexpressions that are now computed once and read by every user
+    public int getSharedCount() {
+        return sharedNodes;
+    }
+
+    // Number of hidden wires added to hold shared subexpressions
+    public int getHiddenWireCount() {
+        return hiddenNodes.size();
+    }
+
+    // Number of operator nodes that were folded into a constant or reduced by an identity
+    public int getFoldedCount() {
+        return foldedNodes;
+    }
+
+
+    // SIMPLIFYING ////////////////////////////////////////////////////////////
+
+    /**
+     * Simplifies NODE and returns the id of its canonical form.
+     */
+    private int simplify(ExpressionNode node) {
+        if (node instanceof ExpressionNode.Unary unary) {
+            return simplifyUnary(unary, simplify(unary.getOperand()));
+        }
+        else if (node instanceof ExpressionNode.Binary binary) {
+            int left = simplify(binary.getLeft());
+            return simplifyBinary(binary, left, simplify(binary.getRight()));
+        }
+        return intern(node, -1, -1);
+    }
+
+    /**
+     * Simplifies the operator of UNARY applied to the canonical node OPERAND.
+     * UNARY itself becomes the canonical node where possible, so a
+     * subexpression seen for the first time costs no allocation.
+     */
+    private int simplifyUnary(ExpressionNode.Unary unary, int operand) {
+        Operator op = unary.getOp();
+        if (nodes.get(operand) instanceof ExpressionNode.Constant c) {
+            return folded(constant(op.apply(c.getValue())));
+        }
+        if (nodes.get(operand) instanceof ExpressionNode.Unary inner && inner.getOp() == op) {
+            // ~~x is x, and !!!x is !x. !!x is left alone since it turns x into 0 or 1.
+            int innermost = firstOperand[operand];
+            if (op == Operator.BITWISE_NOT) return folded(innermost);
+            if (nodes.get(innermost) instanceof ExpressionNode.Unary u && u.getOp() == op) {
+                return folded(innermost);
+            }
+        }
+        ExpressionNode candidate = unary.getOperand() == nodes.get(operand) ? unary : new ExpressionNode.Unary(op, nodes.get(operand));
+        return intern(candidate, operand, -1);
+    }
+
+    /**
+     * Same as simplifyUnary(), for BINARY applied to LEFT and RIGHT.
+     */
+    private int simplifyBinary(ExpressionNode.Binary binary, int left, int right) {
+        Operator op = binary.getOp();
+        if (nodes.get(left) instanceof ExpressionNode.Constant l && nodes.get(right) instanceof ExpressionNode.Constant r) {
+            return folded(constant(op.apply(l.getValue(), r.getValue())));
+        }
+        if (isCommutative(op) && compare(nodes.get(left), nodes.get(right)) > 0) {
+            int temp = left;
+            left = right;
+            right = temp;
+        }
+
+        // Operands are interned, so identical subexpressions have the same id
+        boolean same = left == right;
+        // After ordering, a constant operand of a commutative operator is always on the right
+        Integer k = nodes.get(right) instanceof ExpressionNode.Constant c ? c.getValue() : null;
+        switch (op) {
+            case PLUS -> {
+                if (k != null && k == 0) return folded(left);
+            }
+            case MINUS -> {
+                if (k != null && k == 0) return folded(left);
+                if (same) return folded(constant(0));
+            }
+            case BITWISE_AND -> {
+                if (k != null && k == 0) return folded(constant(0));
+                if (k != null && k == -1) return folded(left);
+                if (same) return folded(left);
+            }
+            case BITWISE_OR -> {
+                if (k != null && k == 0) return folded(left);
+                if (k != null && k == -1) return folded(constant(-1));
+                if (same) return folded(left);
+            }
+            case BITWISE_XOR -> {
+                if (k != null && k == 0) return folded(left);
+                if (same) return folded(constant(0));
+            }
+            case EQUALITY -> {
+                if (same) return folded(constant(1));
+            }
+            case INEQUALITY -> {
+                if (same) return folded(constant(0));
+            }
+            default -> { }
+        }
+        ExpressionNode candidate = binary.getLeft() == nodes.get(left) && binary.getRight() == nodes.get(right)
+                ? binary : new ExpressionNode.Binary(op, nodes.get(left), nodes.get(right));
+        return intern(candidate, left, right);
+    }
+
+    private int folded(int node) {
+        foldedNodes++;
+        return node;
+    }
+
+    private int constant(int value) {
+        return intern(new ExpressionNode.Constant(value), -1, -1);
+    }
+
+    /**
+     * Returns the id of the canonical node equal to NODE, making NODE the
+     * canonical one if there is none yet. FIRST and SECOND are the ids of
+     * the operands of NODE, or -1 where it has fewer.
+     */
+    private int intern(ExpressionNode node, int first, int second) {
+        Integer existing = ids.putIfAbsent(node, nodes.size());
+        if (existing != null) return existing;
+
+        int id = nodes.size();
+        if (id == firstOperand.length) {
+            firstOperand = Arrays.copyOf(firstOperand, 2 * id);
+            secondOperand = Arrays.copyOf(secondOperand, 2 * id);
+        }
+        firstOperand[id] = first;
+        secondOperand[id] = second;
+        nodes.add(node);
+        return id;
+    }
+
+    private static boolean isCommutative(Operator op) {
+        return switch (op) {
+            case PLUS, BITWISE_AND, BITWISE_OR, BITWISE_XOR, EQUALITY, INEQUALITY -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Fixed order on nodes used for the operands of commutative operators.
+     * Constants go last, everything else is ordered by hash code and then by
+     * its text.
+     */
+    private static int compare(ExpressionNode a, ExpressionNode b) {
+        if (a == b) return 0;
+        boolean aConstant = a instanceof ExpressionNode.Constant;
+        boolean bConstant = b instanceof ExpressionNode.Constant;
+        if (aConstant != bConstant) return aConstant ? 1 : -1;
+        if (a.hashCode() != b.hashCode()) return Integer.compare(a.hashCode(), b.hashCode());
+        return a.toString().compareTo(b.toString());
+    }
+
+
+    // SHARING ////////////////////////////////////////////////////////////////
+
+    /**
+     * Counts one more reference to NODE, and the first time NODE is seen,
+     * one reference to each of its operands.
+     */
+    private void addReference(int node) {
+        if (refCounts[node]++ > 0) return;
+        if (firstOperand[node] >= 0) addReference(firstOperand[node]);
+        if (secondOperand[node] >= 0) addReference(secondOperand[node]);
+    }
+
+    /**
+     * Returns true if NODE is worth computing once for all of its users: it is
+     * used more than once and is more than one operator over signals.
+     */
+    private boolean isShared(int node) {
+        if (refCounts[node] < 2 || firstOperand[node] < 0) return false;
+        // A binary operator, or a unary one over another operator
+        return secondOperand[node] >= 0 || firstOperand[firstOperand[node]] >= 0;
+    }
+
+    /**
+     * Gives every shared node under NODE without a holder a new hidden wire.
+     */
+    private void findHiddenNodes(int node, boolean[] visited) {
+        if (visited[node]) return;
+        visited[node] = true;
+
+        if (firstOperand[node] >= 0) findHiddenNodes(firstOperand[node], visited);
+        if (secondOperand[node] >= 0) findHiddenNodes(secondOperand[node], visited);
+        if (isShared(node) && holders[node] == null) {
+            holders[node] = SHARED_PREFIX + hiddenNodes.size();
+            hiddenNodes.add(node);
+            sharedNodes++;
+        }
+    }
+
+    /**
+     * Returns NODE with every shared node in it, NODE included, replaced by
+     * a reference to the wire that holds it.
+     */
+    private ExpressionNode rewrite(int node) {
+        if (holders[node] != null) {
+            return new ExpressionNode.SignalRef(holders[node]);
+        }
+        return rewriteChildren(node);
+    }
+
+    /**
+     * Same as rewrite(), except NODE itself is kept even if it is shared.
+     */
+    private ExpressionNode rewriteChildren(int node) {
+        ExpressionNode result = rewritten[node];
+        if (result != null) return result;
+
+        ExpressionNode original = nodes.get(node);
+        if (original instanceof ExpressionNode.Unary unary) {
+            ExpressionNode operand = rewrite(firstOperand[node]);
+            result = operand == unary.getOperand() ? original : new ExpressionNode.Unary(unary.getOp(), operand);
+        }
+        else if (original instanceof ExpressionNode.Binary binary) {
+            ExpressionNode left = rewrite(firstOperand[node]);
+            ExpressionNode right = rewrite(secondOperand[node]);
+            result = left == binary.getLeft() && right == binary.getRight() ? original : new ExpressionNode.Binary(binary.getOp(), left, right);
+        }
+        else {
+            result = original;
+        }
+        rewritten[node] = result;
+        return result;
+    }
+
+    /**
+     * Returns the number of nodes in the tree under NODE.
+     */
+    static long countNodes(ExpressionNode node) {
+        if (node instanceof ExpressionNode.Unary unary) {
+            return 1 + countNodes(unary.getOperand());
+        }
+        else if (node instanceof ExpressionNode.Binary binary) {
+            return 1 + countNodes(binary.getLeft()) + countNodes(binary.getRight());
+        }
+        return 1;
+    }
+
+}
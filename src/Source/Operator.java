@@ -0,0 +1,115 @@
+package Source;
+
+import Exceptions.HDLParseException;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Enum of every operator that can appear in an expression. Operators are
+ * resolved from their source symbols once, when an expression is parsed,
+ * so evaluation never has to look at strings.
+ */
+
+public enum Operator {
+
+    // Unary operators
+    LOGICAL_NOT("!", true),
+    BITWISE_NOT("~", true),
+
+    // Binary operators
+    PLUS("+", false),
+    MINUS("-", false),
+    BITWISE_AND("&", false),
+    BITWISE_OR("|", false),
+    BITWISE_XOR("^", false),
+    EQUALITY("==", false),
+    INEQUALITY("!=", false);
+
+    private final String symbol;
+    private final boolean unary;
+
+    Operator(String symbol, boolean unary) {
+        this.symbol = symbol;
+        this.unary = unary;
+    }
+
+    /**
+     * Returns the binary operator with the given source symbol.
+     *
+     * Throws HDLParseException if SYMBOL is not a valid binary operator.
+     */
+    public static Operator fromBinarySymbol(String symbol) throws HDLParseException {
+        for (Operator op : values()) {
+            if (!op.unary && op.symbol.equals(symbol)) {
+                return op;
+            }
+        }
+        throw new HDLParseException("Either no or an invalid operator was provided!");
+    }
+
+    /**
+     * Applies this unary operator to A.
+     */
+    public int apply(int a) {
+        return switch (this) {
+            case LOGICAL_NOT -> a == 0 ? 1 : 0;
+            case BITWISE_NOT -> ~a;
+            default -> throw new IllegalStateException(this + " is not a unary operator");
+        };
+    }
+
+    /**
+     * Applies this binary operator to A and B.
+     */
+    public int apply(int a, int b) {
+        return switch (this) {
+            case PLUS -> a + b;
+            case MINUS -> a - b;
+            case BITWISE_AND -> a & b;
+            case BITWISE_OR -> a | b;
+            case BITWISE_XOR -> a ^ b;
+            case EQUALITY -> a == b ? 1 : 0;
+            case INEQUALITY -> a == b ? 0 : 1;
+            default -> throw new IllegalStateException(this + " is not a binary operator");
+        };
+    }
+
+    /**
+     * Applies this unary operator in place to the LANES values of A starting at OFF.
+     * Written as one simple loop per operator so the JIT can vectorize it.
+     */
+    public void applyLanes(int[] a, int off, int lanes) {
+        switch (this) {
+            case LOGICAL_NOT -> { for (int i = off; i < off + lanes; i++) a[i] = a[i] == 0 ? 1 : 0; }
+            case BITWISE_NOT -> { for (int i = off; i < off + lanes; i++) a[i] = ~a[i]; }
+            default -> throw new IllegalStateException(this + " is not a unary operator");
+        }
+    }
+
+    /**
+     * Applies this binary operator lane-wise to the LANES values of A starting
+     * at OFF and the first LANES values of B, storing the results back into A.
+     * Written as one simple loop per operator so the JIT can vectorize it.
+     */
+    public void applyLanes(int[] a, int off, int[] b, int lanes) {
+        switch (this) {
+            case PLUS -> { for (int i = 0; i < lanes; i++) a[off + i] += b[i]; }
+            case MINUS -> { for (int i = 0; i < lanes; i++) a[off + i] -= b[i]; }
+            case BITWISE_AND -> { for (int i = 0; i < lanes; i++) a[off + i] &= b[i]; }
+            case BITWISE_OR -> { for (int i = 0; i < lanes; i++) a[off + i] |= b[i]; }
+            case BITWISE_XOR -> { for (int i = 0; i < lanes; i++) a[off + i] ^= b[i]; }
+            case EQUALITY -> { for (int i = 0; i < lanes; i++) a[off + i] = a[off + i] == b[i] ? 1 : 0; }
+            case INEQUALITY -> { for (int i = 0; i < lanes; i++) a[off + i] = a[off + i] == b[i] ? 0 : 1; }
+            default -> throw new IllegalStateException(this + " is not a binary operator");
+        }
+    }
+
+    public String getSymbol() {
+        return symbol;
+    }
+
+    public boolean isUnary() {
+        return unary;
+    }
+
+}
@@ -0,0 +1,26 @@
+package Source;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Flight Recorder event spanning one phase of a run, committed by
+ * HDLSim.Metrics when the phase ends. Costs nothing unless a recording is
+ * running, e.g. one started with -XX:StartFlightRecording.
+ */
+
+@Name("HDLSim.Phase")
+@Label("Simulation Phase")
+@Category("HDLSim")
+@Description("One phase of a simulation run: parse, elaborate, optimize, cache, build, simulate or dump")
+public class PhaseEvent extends Event {
+
+    @Label("Phase")
+    public String phase;
+
+}
@@ -0,0 +1,312 @@
+package Source;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Sampling profiler of the time spent evaluating each signal's driving
+ * expression. Signals.step() runs one cycle in every sample interval through
+ * a timed evaluation loop and records the time and count of every expression
+ * it evaluates here, against the slot of the signal it drives. Every other
+ * cycle runs at full speed, so the overhead is about the timing cost of one
+ * cycle divided by the interval.
+ *
+ * The time of each evaluation includes one System.nanoTime() call, whose cost
+ * is measured when the profiler is created and subtracted in the reports.
+ * Evaluations that take longer than MAX_EVAL_NANOS were interrupted by a GC
+ * pause, the JIT or the OS. They are counted at the signal's average time so
+ * far instead, so that one pause does not make an arbitrary signal look costly.
+ *
+ * Subexpressions shared by NetlistOptimizer live in hidden $sharedN
+ * wires that belong to no instance. In the hierarchy totals and collapsed
+ * stacks, the time of each one is split evenly between the signals that
+ * read it, and charged to their instances. A shared wire read only by
+ * other shared wires passes its time on the same way.
+ */
+
+public class Profiler {
+
+    // Rounds of nanoTime() calls, and calls per round, timed to estimate the cost of one
+    private static final int CALIBRATION_ROUNDS = 5;
+    private static final int CALIBRATION_CALLS = 20_000;
+    // Longest time of one evaluation that is believed. One expression is a small tree, so longer ones were interrupted.
+    private static final long MAX_EVAL_NANOS = 100_000;
+    // Most signals listed by name in the report
+    private static final int MAX_REPORTED_SIGNALS = 50;
+
+    private final long sampleInterval;
+    // Time spent in and evaluations of the expression driving each slot, over the sampled cycles
+    private long[] nanos;
+    private long[] counts;
+    private long sampledCycles;
+    // Name of the signal in every slot, and the slots whose expressions read each
+    // shared wire's slot (null for other slots). Set by Signals.build().
+    private List<String> slotNames;
+    private int[][] sharedReaders;
+    // Evaluations whose time was left out for being longer than MAX_EVAL_NANOS
+    private long interrupted;
+    // Estimated cost of one nanoTime() call, already included in every recorded time
+    private final double timerNanos;
+
+    /**
+     * Creates a profiler that samples one cycle in every SAMPLEINTERVAL.
+     */
+    public Profiler(long sampleInterval) {
+        this.sampleInterval = Math.max(1, sampleInterval);
+        this.nanos = new long[0];
+        this.counts = new long[0];
+        this.slotNames = List.of();
+        this.sharedReaders = new int[0][];
+        this.sampledCycles = 0;
+        this.interrupted = 0;
+        this.timerNanos = calibrate();
+    }
+
+    /**
+     * Returns whether the cycle after CYCLE is to be profiled.
+     */
+    public boolean shouldSample(long cycle) {
+        return cycle % sampleInterval == 0;
+    }
+
+    /**
+     * Makes room for the slots of a design, whose signal names are SLOTNAMES
+     * indexed by slot. SHAREDREADERS holds the slots reading every shared
+     * wire's slot, and null for every other slot. Called by Signals.build().
+     */
+    void setSlots(List<String> slotNames, int[][] sharedReaders) {
+        this.slotNames = slotNames;
+        this.sharedReaders = sharedReaders;
+        nanos = new long[slotNames.size()];
+        counts = new long[slotNames.size()];
+    }
+
+    /**
+     * Records one evaluation of the expression driving SLOT that took TIME nanoseconds.
+     */
+    void record(int slot, long time) {
+        if (time > MAX_EVAL_NANOS) {
+            time = counts[slot] == 0 ? 0 : nanos[slot] / counts[slot];
+            interrupted++;
+        }
+        nanos[slot] += time;
+        counts[slot]++;
+    }
+
+    /**
+     * Records that one more cycle was profiled.
+     */
+    void countCycle() {
+        sampledCycles++;
+    }
+
+    public long getSampledCycles() {
+        return sampledCycles;
+    }
+
+    /**
+     * Returns the sampled evaluation time of the expression driving SLOT, without the timer cost.
+     */
+    public long getNanos(int slot) {
+        return Math.max(0, Math.round(nanos[slot] - counts[slot] * timerNanos));
+    }
+
+    /**
+     * Returns the number of sampled evaluations of the expression driving SLOT.
+     */
+    public long getCount(int slot) {
+        return counts[slot];
+    }
+
+    /**
+     * Returns the sampled time charged to the hierarchy PREFIX, e.g. /core0/alu/,
+     * without the timer cost: the time of every signal under it, and its
+     * share of every shared wire those signals read.
+     */
+    public double getPrefixNanos(String prefix) {
+        double[] sums = rollup().get(prefix);
+        return sums == null ? 0 : sums[0];
+    }
+
+    /**
+     * Writes the report to REPORTFILE and the collapsed stacks to STACKFILE.
+     *
+     * The report lists the costliest signals, then the total of every
+     * hierarchy prefix (/core0/alu/ holds every signal in that instance and
+     * the instances under it, and their share of the shared wires they
+     * read), both sorted by time.
+     *
+     * The collapsed stacks have one line per signal, e.g.
+     * "main;core0;alu;sum 1234" for /core0/alu/sum, with its nanoseconds as the
+     * weight, so that flamegraph.pl or speedscope show each module instance
+     * as a frame. A shared wire is a frame under each signal reading it,
+     * e.g. "main;core0;alu;sum;$shared3 56".
+     */
+    public void writeReports(File reportFile, File stackFile) throws IOException {
+        ArrayList<Integer> slots = new ArrayList<>();
+        long total = 0;
+        for (int slot = 0; slot < counts.length; slot++) {
+            if (counts[slot] == 0) continue;
+            slots.add(slot);
+            total += getNanos(slot);
+        }
+        slots.sort((a, b) -> Long.compare(getNanos(b), getNanos(a)));
+
+        ArrayList<Map.Entry<String, double[]>> rollup = new ArrayList<>(rollup().entrySet());
+        rollup.sort((a, b) -> a.getValue()[0] != b.getValue()[0]
+                ? Double.compare(b.getValue()[0], a.getValue()[0])
+                : a.getKey().compareTo(b.getKey()));
+
+        try (PrintWriter out = new PrintWriter(new FileWriter(reportFile))) {
+            out.printf(Locale.ROOT, "Sampled %d cycles, one in every %d. Times are the sampled cycles only.%n",
+                    sampledCycles, sampleInterval);
+            if (interrupted > 0) {
+                out.printf(Locale.ROOT, "Replaced the time of %d evaluations interrupted for over %dus by GC, the JIT or the OS.%n",
+                        interrupted, MAX_EVAL_NANOS / 1000);
+            }
+            out.println();
+            out.printf(Locale.ROOT, "%12s %7s %12s %9s  %s%n", "Time (us)", "Share", "Evaluations", "ns/eval", "Signal");
+            for (int i = 0; i < Math.min(MAX_REPORTED_SIGNALS, slots.size()); i++) {
+                int slot = slots.get(i);
+                printRow(out, getNanos(slot), total, counts[slot], slotNames.get(slot));
+            }
+            if (slots.size() > MAX_REPORTED_SIGNALS) {
+                out.printf("... %d more signals%n", slots.size() - MAX_REPORTED_SIGNALS);
+            }
+
+            out.println();
+            out.println("Shared subexpressions (" + NetlistOptimizer.SHARED_PREFIX + "N) are charged to the signals that read them.");
+            out.printf(Locale.ROOT, "%12s %7s %12s %9s  %s%n", "Time (us)", "Share", "Evaluations", "ns/eval", "Hierarchy (signals)");
+            for (Map.Entry<String, double[]> entry : rollup) {
+                double[] sums = entry.getValue();
+                printRow(out, Math.round(sums[0]), total, Math.round(sums[1]),
+                        entry.getKey() + " (" + Math.round(sums[2]) + ")");
+            }
+        }
+
+        HashMap<Integer, Map<Integer, Double>> shares = new HashMap<>();
+        try (PrintWriter out = new PrintWriter(new FileWriter(stackFile))) {
+            for (int slot : slots) {
+                if (sharedReaders[slot] == null || sharedReaders[slot].length == 0) {
+                    out.println(stackOf(slotNames.get(slot)) + " " + getNanos(slot));
+                    continue;
+                }
+                for (Map.Entry<Integer, Double> share : sharesOf(slot, shares).entrySet()) {
+                    out.println(stackOf(slotNames.get(share.getKey())) + ";" + slotNames.get(slot)
+                            + " " + Math.round(getNanos(slot) * share.getValue()));
+                }
+            }
+        }
+    }
+
+    // PRIVATE HELPER METHODS /////////////////////////////////////////////////
+
+    /**
+     * Returns the time, evaluations and signal count charged to every
+     * hierarchy prefix. Shared wires are charged to the signals that read
+     * them, in the shares given by sharesOf(), and are not counted as signals.
+     */
+    private HashMap<String, double[]> rollup() {
+        HashMap<String, double[]> prefixes = new HashMap<>();
+        HashMap<Integer, Map<Integer, Double>> shares = new HashMap<>();
+        for (int slot = 0; slot < counts.length; slot++) {
+            if (counts[slot] == 0) continue;
+            for (Map.Entry<Integer, Double> share : sharesOf(slot, shares).entrySet()) {
+                for (String prefix : prefixesOf(slotNames.get(share.getKey()))) {
+                    double[] sums = prefixes.computeIfAbsent(prefix, k -> new double[3]);
+                    sums[0] += getNanos(slot) * share.getValue();
+                    sums[1] += counts[slot] * share.getValue();
+                    if (share.getKey() == slot) sums[2]++;
+                }
+            }
+        }
+        return prefixes;
+    }
+
+    /**
+     * Returns the share of the time of SLOT that each slot is charged, by
+     * slot. A slot that is not a shared wire, or that nothing reads, is
+     * charged all of its own time. A shared wire splits its time evenly
+     * between the slots reading it, passing on the shares of readers that
+     * are shared wires themselves. MEMO holds the shares found so far.
+     */
+    private Map<Integer, Double> sharesOf(int slot, HashMap<Integer, Map<Integer, Double>> memo) {
+        int[] readers = sharedReaders[slot];
+        if (readers == null || readers.length == 0) {
+            return Collections.singletonMap(slot, 1.0);
+        }
+        Map<Integer, Double> shares = memo.get(slot);
+        if (shares != null) return shares;
+
+        HashMap<Integer, Double> split = new HashMap<>();
+        for (int reader : readers) {
+            for (Map.Entry<Integer, Double> share : sharesOf(reader, memo).entrySet()) {
+                split.merge(share.getKey(), share.getValue() / readers.length, Double::sum);
+            }
+        }
+        memo.put(slot, split);
+        return split;
+    }
+
+    private static void printRow(PrintWriter out, long nanos, long total, long count, String label) {
+        out.printf(Locale.ROOT, "%12.1f %6.1f%% %12d %9.1f  %s%n",
+                nanos / 1e3, 100.0 * nanos / Math.max(total, 1), count, (double) nanos / Math.max(count, 1), label);
+    }
+
+    /**
+     * Returns every hierarchy prefix of the signal NAME, from / down to the
+     * instance that holds it: /, /core0/ and /core0/alu/ for /core0/alu/sum.
+     * Signals that belong to no instance, such as TERMINATE, only have /.
+     */
+    private static List<String> prefixesOf(String name) {
+        ArrayList<String> prefixes = new ArrayList<>();
+        prefixes.add("/");
+        if (!name.startsWith("/")) return prefixes;
+        for (int end = name.indexOf('/', 1); end >= 0; end = name.indexOf('/', end + 1)) {
+            prefixes.add(name.substring(0, end + 1));
+        }
+        return prefixes;
+    }
+
+    /**
+     * Returns the collapsed stack of the signal NAME: main, then every module
+     * instance on its path, then the signal itself, separated by semicolons.
+     * Signals that belong to no instance, such as TERMINATE, sit under main.
+     */
+    private static String stackOf(String name) {
+        StringBuilder sb = new StringBuilder("main");
+        for (String frame : name.split("/")) {
+            if (frame.isEmpty()) continue;
+            sb.append(';').append(frame.replace(';', '_').replace(' ', '_'));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the cost of one System.nanoTime() call, in nanoseconds. The
+     * cheapest of several rounds is taken, so the estimate errs low.
+     */
+    private static double calibrate() {
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < CALIBRATION_ROUNDS; round++) {
+            long start = System.nanoTime();
+            long last = start;
+            for (int i = 0; i < CALIBRATION_CALLS; i++) {
+                last = System.nanoTime();
+            }
+            best = Math.min(best, (double) (last - start) / CALIBRATION_CALLS);
+        }
+        return best;
+    }
+
+}
@@ -2,14 +2,19 @@ package Source;
 
 import Exceptions.HDLDuplicateSignalException;
 import Exceptions.HDLException;
+import Exceptions.HDLNonTerminationException;
 import Exceptions.HDLParseException;
 import Source.HDLSim;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
 
 /**
  * @author Jonah Tharakan
@@ -21,7 +26,31 @@ import java.util.*;
 
 public class Signals {
 
-    // Maps signal name to current value
+    /**
+     * The engines that can be used to execute the design once it is built.
+     * INTERPRETER walks each driving expression every cycle.
+     * CODEGEN compiles the whole design into a JVM class, see HDLSim.NetlistCompiler.
+     * EVENT only re-evaluates wires in the fan-out of signals that changed value.
+     * PARALLEL evaluates wide levels of independent wires on all cores.
+     */
+    public enum Engine { INTERPRETER, CODEGEN, EVENT, PARALLEL }
+
+    // Largest number of values the async trace ring holds by default, about 64MB
+    private static final int DEFAULT_TRACE_BUFFER_VALUES = 1 << 24;
+
+    // Default for the smallest number of independent evaluations that the PARALLEL engine spreads across cores
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 4096;
+    // Number of evaluations a single PARALLEL engine task is split down to
+    private static final int PARALLEL_GRAIN = 512;
+    // Most combinational loops, and wires per loop, named in a cycle error
+    private static final int MAX_REPORTED_LOOPS = 10;
+    private static final int MAX_REPORTED_LOOP_WIRES = 20;
+    // stepToTerminate() checks whether a checkpoint is due once every this many cycles. Must be a power of two.
+    private static final int CHECKPOINT_POLL_CYCLES = 64;
+    // Cycles between reviews of how often each reg enable makes its reg hold
+    private static final int ENABLE_REVIEW_CYCLES = 1024;
+
+    // Maps signal name to its starting value. State moves into the slot arrays once build() is called.
     private HashMap<String, Integer> values;
     // Maps signal name to driving expression
     private HashMap<String, Expression> expressions;
@@ -29,6 +58,12 @@ public class Signals {
     // For convenience
     private HashSet<String> regs;
     private HashSet<String> wires;
+    /**
+     * Signals that are evaluated but never written to the output: wires added
+     * by HDLSim.NetlistOptimizer to hold shared subexpressions, and signals
+     * kept by pruneToObserved() only because an observed signal depends on them.
+     */
+    private HashSet<String> hiddenSignals;
     // Stores signals that are declared. HDLSim.Signals get removed when a driving expression is added.
     private HashSet<String> noExpressionYet;
 
@@ -49,7 +84,7 @@ public class Signals {
 
     /**
      * The topological order. Will be null until build() is called.
-     * Only includes wires. Used for updating signals.
+     * Only includes wires that are evaluated, so no aliases. Used for updating signals.
      */
     private ArrayList<String> wireOrder;
     /**
@@ -57,11 +92,131 @@ public class Signals {
      * Includes wires and regs. Used for writing output.
      */
     private ArrayList<String> lexicographicalOrder;
+    /**
+     * Every signal. Will be null until build() is called.
+     * lexicographicalOrder followed by the hidden signals in alphabetical order.
+     */
+    private ArrayList<String> signalOrder;
+    /**
+     * Wires whose driving expression is nothing but another signal, such as
+     * the bridges between submodule pins and the wires they connect to.
+     * Maps each one to the signal that holds its value, following chains of
+     * aliases. Aliases share that signal's slot and are never evaluated.
+     * Will be null until build() is called.
+     */
+    private HashMap<String, String> aliases;
+    /**
+     * The signal that owns every slot of the state arrays, in signalOrder
+     * without the aliases. Will be null until build() is called.
+     */
+    private ArrayList<String> storageOrder;
+    // Slot of every signal in lexicographicalOrder. Used for writing output.
+    private int[] outputSlots;
 
     // Output directory where .../result.txt and .../log.txt will be added
     private File outputDir;
-    // Fast file writer, used to write to .../log.txt
-    private BufferedWriter logWriter;
+    // Writes the values of every cycle to .../log.txt or another trace format. Null if not logging.
+    private TraceWriter traceWriter;
+    // Cycles the async trace ring holds. 0 writes on the simulation thread, -1 picks a size from the design.
+    private int traceBufferCycles;
+    private AsyncTraceWriter.OverflowPolicy traceOverflowPolicy;
+
+    // Engine used to execute the design
+    private Engine engine;
+    // Compiled design. Only used by the CODEGEN engine, null until build() is called.
+    private CompiledNetlist compiledNetlist;
+
+    // Maps signal name to its index in the state arrays. Index matches storageOrder, aliases map to their source's slot.
+    private HashMap<String, Integer> slots;
+    // Signal values of the current and next cycle, indexed by slot. Swapped every cycle.
+    private int[] currentValues;
+    private int[] nextValues;
+    // Slot of the TERMINATE signal
+    private int terminateSlot;
+
+    /**
+     * The evaluation plan. Will be null until build() is called.
+     * Slot and slot-bound driving expression of every reg, and of every wire
+     * in topological order.
+     */
+    private int[] regSlots;
+    private ExpressionNode[] regExprs;
+    private int[] wireSlots;
+    private ExpressionNode[] wireExprs;
+    /**
+     * Inferred enable of every reg, see HDLSim.EnableInference, or null for
+     * a reg without one. While its enable is 0 a reg holds and its driving
+     * expression is not evaluated. The array is null if no reg has an
+     * enable, or if the engine does not use them.
+     *
+     * Every ENABLE_REVIEW_CYCLES cycles, enables that did not make their reg
+     * hold often enough to pay for their own evaluation are dropped for the
+     * rest of the run.
+     */
+    private ExpressionNode[] regEnables;
+    // Whether build() infers reg enables
+    private boolean inferEnables;
+    private int enabledRegCount;
+    // Cycles each reg held because of its enable since the last review, and when that was
+    private int[] regHoldCounts;
+    private long enablesReviewedAt;
+
+    /**
+     * Level of every wire in wireOrder: the length of its longest path from
+     * regs and constants. Wires on the same level never depend on each other.
+     */
+    private int[] wireLevels;
+    /**
+     * Used by the PARALLEL engine, which sorts the wire plan by level.
+     * The wires of level L are at wireSlots[levelStart[L]] up to (not including)
+     * wireSlots[levelStart[L + 1]].
+     */
+    private int[] levelStart;
+    // Levels and reg sets at least this wide are evaluated in parallel
+    private int parallelThreshold;
+
+    // stepToTerminate() gives up after this many cycles. -1 for no limit.
+    private long cycleLimit;
+    // Whether stepToTerminate() watches for the reg state repeating
+    private boolean loopCheck;
+
+    // Number of cycles stepped since the starting values, including those before a resumed checkpoint
+    private long cycle;
+    // Where the run is checkpointed to or resumed from. Null if neither.
+    private Checkpoint checkpoint;
+    // Time between checkpoints taken by stepToTerminate(). 0 takes none.
+    private long checkpointIntervalNanos;
+    // Whether build() continues from the checkpoint instead of the starting values
+    private boolean resume;
+    // Identifies the regs and trace format a checkpoint belongs to. Set by build() when checkpointing.
+    private int checkpointFingerprint;
+    // stepToTerminate() commits a CycleSampleEvent every this many cycles. 0 commits none.
+    private long sampleCycles;
+
+    // Driving expressions evaluated by step() since build()
+    private long expressionEvaluations;
+    // Reg expressions step() did not evaluate since build() because the reg's enable was 0
+    private long skippedRegEvaluations;
+    // Times the expressions of sampled cycles. Null if not profiling.
+    private Profiler profiler;
+    // File the trace is written to, and its length when it was opened. Null if not logging.
+    private Path tracePath;
+    private long traceStartLength;
+
+    /**
+     * Fan-out graph used by the EVENT engine, in compressed sparse row form.
+     * The wires that read the signal in slot S are at topological positions
+     * fanoutWires[fanoutStart[S]] up to (not including) fanoutWires[fanoutStart[S + 1]].
+     */
+    private int[] fanoutStart;
+    private int[] fanoutWires;
+    // Topological positions of the wires that must be re-evaluated this cycle
+    private BitSet pendingWires;
+    // Scratch space for reg next-states computed by the EVENT engine
+    private int[] regNextValues;
+
+    // Name to value view of currentValues handed out by getValues(). Null until requested.
+    private HashMap<String, Integer> valuesView;
 
     /**
      * Creates a new HDLSim.Signals object, initializing all relevant internal data structures
@@ -72,34 +227,183 @@ public class Signals {
 
         this.regs = new HashSet<>();
         this.wires = new HashSet<>();
+        this.hiddenSignals = new HashSet<>();
 
         this.noExpressionYet = new HashSet<>();
         this.dependencies = new HashMap<>();
 
         this.wireOrder = null;
         this.lexicographicalOrder = null;
+        this.signalOrder = null;
+        this.aliases = null;
+        this.storageOrder = null;
 
         this.outputDir = null;
+
+        this.engine = Engine.INTERPRETER;
+        this.compiledNetlist = null;
+        this.parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+        this.cycleLimit = -1;
+        this.loopCheck = false;
+
+        this.cycle = 0;
+        this.checkpoint = null;
+        this.checkpointIntervalNanos = 0;
+        this.resume = false;
+        this.sampleCycles = 0;
+        this.expressionEvaluations = 0;
+        this.skippedRegEvaluations = 0;
+        this.inferEnables = true;
+        this.regEnables = null;
+        this.enabledRegCount = 0;
+        this.tracePath = null;
+        this.profiler = null;
+
+        this.traceBufferCycles = -1;
+        this.traceOverflowPolicy = AsyncTraceWriter.OverflowPolicy.BLOCK;
+    }
+
+    /**
+     * Selects the engine used to execute the design. Must be called before build().
+     */
+    public void setEngine(Engine engine) {
+        assert !this.built : "Engine must be selected before calling build()!";
+        this.engine = engine;
+    }
+
+    /**
+     * Sets whether build() infers reg enables, which lets the INTERPRETER and
+     * EVENT engines skip the driving expression of a reg that holds. On by
+     * default. Must be called before build().
+     */
+    public void setInferEnables(boolean inferEnables) {
+        assert !this.built : "Enable inference must be set before calling build()!";
+        this.inferEnables = inferEnables;
+    }
+
+    /**
+     * Sets the smallest number of independent evaluations, either regs or
+     * wires on one level, that the PARALLEL engine spreads across cores.
+     * Anything narrower is evaluated on the calling thread.
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = Math.max(1, parallelThreshold);
+    }
+
+    /**
+     * Makes stepToTerminate() stop after MAXCYCLES cycles. -1 removes the limit.
+     */
+    public void setCycleLimit(long maxCycles) {
+        this.cycleLimit = maxCycles;
+    }
+
+    /**
+     * Makes stepToTerminate() stop as soon as the design is known to never
+     * terminate. The next state only depends on the reg values, so once a
+     * state repeats without TERMINATE having become non-zero the run is
+     * periodic and would go on forever.
+     */
+    public void setLoopCheck(boolean loopCheck) {
+        this.loopCheck = loopCheck;
+    }
+
+    /**
+     * Makes stepToTerminate() save a CHECKPOINT of the run every INTERVALMILLIS
+     * milliseconds, or never if it is 0. If RESUME is set, build() continues
+     * the run from the last checkpoint instead of the starting values, and
+     * continues the trace file the checkpoint was taken with.
+     * Must be called before build().
+     */
+    public void setCheckpoint(Checkpoint checkpoint, long intervalMillis, boolean resume) {
+        assert !built : "Checkpointing must be set up before calling build()!";
+        this.checkpoint = checkpoint;
+        this.checkpointIntervalNanos = Math.max(0, intervalMillis) * 1_000_000L;
+        this.resume = resume;
+    }
+
+    /**
+     * Makes stepToTerminate() commit a CycleSampleEvent for every SAMPLECYCLES
+     * cycles simulated, or never if it is 0.
+     */
+    public void setSampleInterval(long sampleCycles) {
+        this.sampleCycles = Math.max(0, sampleCycles);
+    }
+
+    /**
+     * Makes step() time the expressions of the cycles PROFILER samples, and
+     * record them there. Must be called before build().
+     */
+    public void setProfiler(Profiler profiler) {
+        assert !built : "Profiler must be set before calling build()!";
+        this.profiler = profiler;
+    }
+
+    /**
+     * Configures how the trace is written. With a BUFFERCYCLES of 0 it is
+     * written on the simulation thread. Otherwise a writer thread formats and
+     * writes it from a ring of BUFFERCYCLES snapshots, and POLICY decides what
+     * happens when the ring fills. A BUFFERCYCLES of -1 sizes the ring from
+     * the number of signals.
+     */
+    public void setTraceBuffer(int bufferCycles, AsyncTraceWriter.OverflowPolicy policy) {
+        this.traceBufferCycles = bufferCycles;
+        this.traceOverflowPolicy = policy;
     }
 
     /**
      * Sets the output directory to the specified path.
      * Creates a directory at that location if one does not already exist.
-     * Exits program with status code 1 if a problem occurs.
+     * The log itself is opened by build(), once all signals are known.
      */
     public void setOutputDir(String outputDirPath) {
-        try {
-            outputDir = new File(outputDirPath);
-            outputDir.mkdirs();
+        outputDir = new File(outputDirPath);
+        outputDir.mkdirs();
+    }
 
-            if (!HDLSim.checkFlag("no-log")) {
-                FileWriter fw = new FileWriter(outputDir.getPath() + "/log.txt");
-                this.logWriter = new BufferedWriter(fw);
+    /**
+     * Opens the trace writer selected by the flags in the output directory:
+     * .../trace.vcd with -vcd, .../trace.bin with -bt, .../log.txt otherwise,
+     * and none with -nl. Wraps it in an HDLSim.AsyncTraceWriter unless
+     * the trace buffer is turned off.
+     * Exits program with status code 1 if a problem occurs.
+     */
+    private void openTraceWriter() {
+        if (outputDir == null || HDLSim.checkFlag("no-log")) {
+            return;
+        }
+        long length = resume ? checkpoint.getTraceLength() : -1;
+        try {
+            if (HDLSim.checkFlag("vcd")) {
+                Path path = Paths.get(outputDir.getPath(), "trace.vcd");
+                this.traceWriter = resume
+                        ? VcdTraceWriter.resume(lexicographicalOrder, outputSlots, regs, path, length, cycle, currentValues)
+                        : new VcdTraceWriter(lexicographicalOrder, outputSlots, regs, path);
+                this.tracePath = path;
+            } else if (HDLSim.checkFlag("binary-trace")) {
+                Path path = Paths.get(outputDir.getPath(), "trace.bin");
+                this.traceWriter = new BinaryTraceWriter(lexicographicalOrder, outputSlots, path);
+                this.tracePath = path;
+            } else {
+                Path path = Paths.get(outputDir.getPath(), "log.txt");
+                boolean hex = HDLSim.checkFlag("hex");
+                this.traceWriter = resume
+                        ? TextTraceWriter.resume(lexicographicalOrder, outputSlots, path, hex, length)
+                        : new TextTraceWriter(lexicographicalOrder, outputSlots, path, hex);
+                this.tracePath = path;
             }
+            this.traceStartLength = Math.max(0, length);
         }
         catch (IOException e) {
             fatalIOException(e);
         }
+
+        int bufferCycles = traceBufferCycles;
+        if (bufferCycles < 0) {
+            bufferCycles = Math.max(4, Math.min(1024, DEFAULT_TRACE_BUFFER_VALUES / currentValues.length));
+        }
+        if (bufferCycles > 0) {
+            this.traceWriter = new AsyncTraceWriter(traceWriter, currentValues.length, bufferCycles, traceOverflowPolicy);
+        }
     }
 
 
@@ -135,6 +439,28 @@ public class Signals {
         noExpressionYet.add(signal);
     }
 
+    /**
+     * Adds a wire that is evaluated like any other but left out of the
+     * trace, the final output and getValues(). Used for signals that are
+     * not part of the design as written.
+     *
+     * Throws HDLDuplicateSignalException if SIGNAL has already been declared.
+     */
+    void addHiddenWire(String signal) throws HDLDuplicateSignalException {
+        addWire(signal);
+        hiddenSignals.add(signal);
+    }
+
+    /**
+     * Same as addReg(), for a reg that is left out of the output like a hidden wire.
+     *
+     * Throws HDLDuplicateSignalException if SIGNAL has already been declared.
+     */
+    void addHiddenReg(String signal, int initVal) throws HDLDuplicateSignalException {
+        addReg(signal, initVal);
+        hiddenSignals.add(signal);
+    }
+
     /**
      * Adds an expression for a signal that is being tracked. SIGNAL must match
      * the name of a signal that was previously added via addReg or addWire.
@@ -144,6 +470,14 @@ public class Signals {
      * the signals it depends on has not been declared yet.
      */
     public void addExpression(String signal, String expressionStr) throws HDLDuplicateSignalException, HDLParseException {
+        addExpression(signal, new Expression(expressionStr));
+    }
+
+    /**
+     * Same as addExpression(String, String), for an EXPRESSION that has
+     * already been parsed.
+     */
+    public void addExpression(String signal, Expression expression) throws HDLDuplicateSignalException, HDLParseException {
         if (expressions.containsKey(signal)) {
             String msg = String.format("%s already has a driving expression!", signal);
             throw new HDLDuplicateSignalException(msg);
@@ -153,7 +487,6 @@ public class Signals {
             throw new HDLParseException(msg);
         }
 
-        Expression expression = new Expression(expressionStr);
         expressions.put(signal, expression);
         noExpressionYet.remove(signal);
 
@@ -162,7 +495,7 @@ public class Signals {
         for (String d : dependenciesSet) {
             if (!wires.contains(d) && !regs.contains(d)) {
                 String msg = String.format("The expression for %s, <<  %s  >>, has a dependency on %s, which has not been declared.",
-                        signal, expressionStr, d);
+                        signal, expression, d);
                 throw new HDLParseException(msg);
             }
         }
@@ -173,6 +506,77 @@ public class Signals {
         }
     }
 
+    /**
+     * Replaces the driving expression of SIGNAL with EXPRESSION, which must
+     * compute the same value every cycle. Must be called before build().
+     *
+     * Throws HDLParseException if SIGNAL has no driving expression yet or one
+     * of the signals EXPRESSION depends on has not been declared.
+     */
+    void replaceExpression(String signal, Expression expression) throws HDLParseException {
+        assert !built : "Expressions must be replaced before calling build()!";
+        if (!expressions.containsKey(signal)) {
+            throw new HDLParseException(String.format("%s has no driving expression to replace!", signal));
+        }
+        expressions.remove(signal);
+        dependencies.remove(signal);
+        addExpression(signal, expression);
+    }
+
+    /**
+     * Cone of influence pruning. Removes every signal that neither TERMINATE
+     * nor any signal in OBSERVED depends on, following wire dependencies and
+     * reg expressions back through any number of cycles, so none of it is
+     * evaluated. Signals that are kept only because something observed
+     * depends on them are hidden, so the output lists TERMINATE and
+     * OBSERVED only. Must be called before build().
+     *
+     * Returns the number of signals removed.
+     *
+     * Throws HDLParseException if a signal has no driving expression.
+     * Throws HDLException if a signal in OBSERVED has not been declared.
+     */
+    public int pruneToObserved(Collection<String> observed) throws HDLException {
+        assert !built : "Signals must be pruned before calling build()!";
+        checkForExpressions();
+        HashSet<String> observedSet = new HashSet<>(observed);
+
+        HashSet<String> cone = new HashSet<>();
+        ArrayDeque<String> pending = new ArrayDeque<>();
+        cone.add("TERMINATE");
+        pending.add("TERMINATE");
+        for (String signal : observedSet) {
+            if (!values.containsKey(signal)) {
+                throw new HDLException(String.format("Observed signal %s has not been declared!", signal));
+            }
+            if (cone.add(signal)) pending.add(signal);
+        }
+        while (!pending.isEmpty()) {
+            String signal = pending.poll();
+            Set<String> reads = wires.contains(signal) ? dependencies.get(signal) : expressions.get(signal).getSignalNames();
+            for (String d : reads) {
+                if (cone.add(d)) pending.add(d);
+            }
+        }
+
+        ArrayList<String> removed = new ArrayList<>();
+        for (String signal : values.keySet()) {
+            if (!cone.contains(signal)) removed.add(signal);
+        }
+        for (String signal : removed) {
+            values.remove(signal);
+            expressions.remove(signal);
+            dependencies.remove(signal);
+            regs.remove(signal);
+            wires.remove(signal);
+            hiddenSignals.remove(signal);
+        }
+        for (String signal : cone) {
+            if (!signal.equals("TERMINATE") && !observedSet.contains(signal)) hiddenSignals.add(signal);
+        }
+        return removed.size();
+    }
+
     /**
      * Adds a termination condition to the HDLSim.Signals object. The program execution
      * will be stopped as soon as this expression evaluates to any value other than 0.
@@ -181,8 +585,15 @@ public class Signals {
      * Throws HDLParseException if one of the signals it depends on has not been declared yet.
      */
     public void addTerminate(String expressionStr) throws HDLDuplicateSignalException, HDLParseException {
+        addTerminate(new Expression(expressionStr));
+    }
+
+    /**
+     * Same as addTerminate(String), for an EXPRESSION that has already been parsed.
+     */
+    public void addTerminate(Expression expression) throws HDLDuplicateSignalException, HDLParseException {
         addWire("TERMINATE");
-        addExpression("TERMINATE", expressionStr);
+        addExpression("TERMINATE", expression);
     }
 
     /**
@@ -195,71 +606,570 @@ public class Signals {
     public void build() throws HDLException {
         checkForExpressions();
         buildLexicographicOrder();
+        findAliases();
 
-        // Use DFS Topological Sort Algorithm
-        ArrayList<String> topologicalSort = new ArrayList<>();
+        ExpressionNode[] boundExprs = buildSlots();
+        buildWireOrder(boundExprs);
+        buildWirePlan(boundExprs);
 
-        HashMap<String, Integer> inDegree = new HashMap<>();
-        for (String wire : wires) { inDegree.put(wire, 0); }
-        for (String u : wires) {
-            for (String v : dependencies.get(u)) {
-                if (wires.contains(v)) {
-                    inDegree.put(v, inDegree.get(v) + 1);
-                }
+        // Get first values of wires
+        for (int i = 0; i < wireSlots.length; i++) {
+            currentValues[wireSlots[i]] = wireExprs[i].eval(currentValues);
+        }
+
+        if (engine == Engine.CODEGEN) {
+            try {
+                compiledNetlist = NetlistCompiler.compile(regSlots, regExprs, wireSlots, wireExprs);
+            }
+            catch (HDLException e) {
+                // The interpreter gives the same results, only slower
+                System.out.println("Could not compile the design, falling back to the interpreter: " + e.getMessage());
+                engine = Engine.INTERPRETER;
+            }
+        }
+        else if (engine == Engine.EVENT) {
+            buildFanout();
+        }
+        else if (engine == Engine.PARALLEL) {
+            sortWirePlanByLevel();
+        }
+        if (inferEnables && (engine == Engine.INTERPRETER || engine == Engine.EVENT)) {
+            buildRegEnables();
+        }
+        if (profiler != null) {
+            profiler.setSlots(storageOrder, findSharedReaders());
+        }
+
+        if (checkpoint != null) {
+            checkpointFingerprint = fingerprint();
+            if (resume) restoreCheckpoint();
+        }
+
+        openTraceWriter();
+        // A resumed trace already holds the starting values
+        if (traceWriter != null && !resume) {
+            try {
+                traceWriter.writeCycle(currentValues);
+            }
+            catch (IOException e) {
+                fatalIOException(e);
+            }
+        }
+
+        this.built = true;
+    }
+
+    /**
+     * Returns a hash of the trace format and the name of every reg, in the
+     * order their values are saved in a checkpoint.
+     */
+    private int fingerprint() {
+        String traceFormat;
+        if (outputDir == null || HDLSim.checkFlag("no-log")) traceFormat = "none";
+        else if (HDLSim.checkFlag("vcd")) traceFormat = "vcd";
+        else if (HDLSim.checkFlag("binary-trace")) traceFormat = "binary";
+        else traceFormat = HDLSim.checkFlag("hex") ? "hex" : "text";
+
+        CRC32 crc = new CRC32();
+        crc.update(traceFormat.getBytes());
+        for (int slot : regSlots) {
+            crc.update(0);
+            crc.update(storageOrder.get(slot).getBytes());
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Loads the checkpoint into the reg slots and recomputes every wire from them.
+     *
+     * Throws HDLException if there is no readable checkpoint, or it was taken
+     * of other regs or with another trace format.
+     */
+    private void restoreCheckpoint() throws HDLException {
+        checkpoint.load();
+        if (checkpoint.getFingerprint() != checkpointFingerprint || checkpoint.getRegValues().length != regSlots.length) {
+            throw new HDLException("The checkpoint was taken of a different design or with a different trace format");
+        }
+        int[] regValues = checkpoint.getRegValues();
+        for (int i = 0; i < regSlots.length; i++) {
+            currentValues[regSlots[i]] = regValues[i];
+        }
+        for (int i = 0; i < wireSlots.length; i++) {
+            currentValues[wireSlots[i]] = wireExprs[i].eval(currentValues);
+        }
+        cycle = checkpoint.getCycle();
+        // Hold counts start over from the resumed cycle, so the first review only covers cycles run since
+        enablesReviewedAt = cycle;
+        if (regHoldCounts != null) Arrays.fill(regHoldCounts, 0);
+    }
+
+    /**
+     * Finds every wire that is a pure alias of another signal and the signal
+     * at the end of its chain of aliases. Aliases that form a loop are kept
+     * as ordinary wires, so the loop is reported when the wires are sorted.
+     */
+    private void findAliases() {
+        HashMap<String, String> targets = new HashMap<>();
+        for (String wire : wires) {
+            if (expressions.get(wire).getRoot() instanceof ExpressionNode.SignalRef ref) {
+                targets.put(wire, ref.getName());
             }
         }
 
-        int notVisited = wires.size();
+        aliases = new HashMap<>(targets.size() * 2);
+        HashSet<String> looping = new HashSet<>();
+        ArrayList<String> path = new ArrayList<>();
+        HashSet<String> onPath = new HashSet<>();
+        for (String wire : targets.keySet()) {
+            if (aliases.containsKey(wire) || looping.contains(wire)) continue;
 
-        Stack<String> inDegree0 = new Stack<>();
+            // Walk the chain until a signal that is not an alias, or one that is already resolved
+            String current = wire;
+            while (targets.containsKey(current) && !aliases.containsKey(current)
+                    && !looping.contains(current) && onPath.add(current)) {
+                path.add(current);
+                current = targets.get(current);
+            }
+            boolean loops = onPath.contains(current) || looping.contains(current);
+            String source = aliases.getOrDefault(current, current);
+            for (String alias : path) {
+                if (loops) looping.add(alias);
+                else aliases.put(alias, source);
+            }
+            path.clear();
+            onPath.clear();
+        }
+    }
+
+    /**
+     * Interns every signal that is not an alias to a slot in the state
+     * arrays, following signalOrder, and builds the reg part of the
+     * evaluation plan. Aliases are given the slot of their source.
+     * Returns the driving expression of every slot's signal bound to those
+     * slots, indexed by slot.
+     */
+    private ExpressionNode[] buildSlots() throws HDLParseException {
+        int numSlots = signalOrder.size() - aliases.size();
+        slots = new HashMap<>(signalOrder.size() * 2);
+        storageOrder = new ArrayList<>(numSlots);
+        currentValues = new int[numSlots];
+        nextValues = new int[numSlots];
+        for (String signal : signalOrder) {
+            if (aliases.containsKey(signal)) continue;
+            int slot = storageOrder.size();
+            slots.put(signal, slot);
+            currentValues[slot] = values.get(signal);
+            storageOrder.add(signal);
+        }
+        for (Map.Entry<String, String> alias : aliases.entrySet()) {
+            slots.put(alias.getKey(), slots.get(alias.getValue()));
+        }
+        outputSlots = new int[lexicographicalOrder.size()];
+        for (int i = 0; i < outputSlots.length; i++) {
+            outputSlots[i] = slots.get(lexicographicalOrder.get(i));
+        }
+        terminateSlot = slots.get("TERMINATE");
+
+        ExpressionNode[] boundExprs = new ExpressionNode[numSlots];
+        regSlots = new int[regs.size()];
+        regExprs = new ExpressionNode[regs.size()];
+        int r = 0;
+        for (int i = 0; i < numSlots; i++) {
+            String signal = storageOrder.get(i);
+            boundExprs[i] = expressions.get(signal).getRoot().bind(slots);
+            if (regs.contains(signal)) {
+                regSlots[r] = i;
+                regExprs[r] = boundExprs[i];
+                r++;
+            }
+        }
+        return boundExprs;
+    }
+
+    /**
+     * Orders the wires so each one comes after every wire it depends on, and
+     * assigns every wire its level: one more than the highest level among the
+     * wires it depends on, or 0 if it only depends on regs and constants.
+     * Wires on the same level never depend on each other.
+     *
+     * Uses Kahn's algorithm over int-indexed adjacency arrays in compressed
+     * sparse row form, read off the slot-bound expressions BOUNDEXPRS, so it
+     * takes time linear in the number of wires and dependencies. A wire order
+     * loaded from a HDLSim.NetlistCache is kept and only used to compute the
+     * levels.
+     *
+     * Throws HDLException naming the wires of every combinational loop if the
+     * wire dependency graph has a cycle.
+     */
+    private void buildWireOrder(ExpressionNode[] boundExprs) throws HDLException {
+        int numSignals = storageOrder.size();
+        boolean[] isWire = new boolean[numSignals];
         for (String wire : wires) {
-            if (inDegree.get(wire) == 0) { inDegree0.add(wire); }
-        }
-
-        while (inDegree0.size() > 0) {
-            String u = inDegree0.pop();
-            topologicalSort.add(0, u);
-            notVisited--;
-            for (String v : dependencies.get(u)) {
-                if (wires.contains(v)) {
-                    inDegree.put(v, inDegree.get(v) - 1);
-                    if (inDegree.get(v) == 0) {
-                        inDegree0.add(v);
+            if (!aliases.containsKey(wire)) isWire[slots.get(wire)] = true;
+        }
+
+        // Signals each wire reads, at deps[depStart[W]] up to deps[depStart[W + 1]].
+        // A signal read twice is listed twice, which Kahn's algorithm and the levels do not mind.
+        int[] depStart = new int[numSignals + 1];
+        for (int s = 0; s < numSignals; s++) {
+            depStart[s + 1] = depStart[s] + (isWire[s] ? countSignalRefs(boundExprs[s]) : 0);
+        }
+        int[] deps = new int[depStart[numSignals]];
+        for (int s = 0; s < numSignals; s++) {
+            if (isWire[s]) collectSignalRefs(boundExprs[s], deps, depStart[s]);
+        }
+
+        // Keep only the wires, counting how many wires depend on each wire
+        int[] depCount = new int[numSignals];
+        int[] userStart = new int[numSignals + 1];
+        for (int s = 0; s < numSignals; s++) {
+            for (int i = depStart[s]; i < depStart[s + 1]; i++) {
+                int dep = deps[i];
+                if (isWire[dep]) {
+                    deps[depStart[s] + depCount[s]++] = dep;
+                    userStart[dep + 1]++;
+                }
+            }
+        }
+
+        // Wires that depend on each wire, at users[userStart[W]] up to users[userStart[W + 1]]
+        for (int s = 0; s < numSignals; s++) {
+            userStart[s + 1] += userStart[s];
+        }
+        int[] users = new int[userStart[numSignals]];
+        int[] userFill = Arrays.copyOf(userStart, numSignals);
+        for (int s = 0; s < numSignals; s++) {
+            for (int i = depStart[s]; i < depStart[s] + depCount[s]; i++) {
+                users[userFill[deps[i]]++] = s;
+            }
+        }
+
+        int[] order = new int[wires.size() - aliases.size()];
+        int[] level = new int[numSignals];
+        if (wireOrder == null) {
+            // Kahn's algorithm, starting from the wires without wire dependencies in slot order
+            int[] remaining = Arrays.copyOf(depCount, numSignals);
+            int tail = 0;
+            for (int s = 0; s < numSignals; s++) {
+                if (isWire[s] && remaining[s] == 0) order[tail++] = s;
+            }
+            for (int head = 0; head < tail; head++) {
+                int w = order[head];
+                for (int i = userStart[w]; i < userStart[w + 1]; i++) {
+                    int u = users[i];
+                    level[u] = Math.max(level[u], level[w] + 1);
+                    if (--remaining[u] == 0) order[tail++] = u;
+                }
+            }
+            if (tail < order.length) {
+                throw new HDLException(describeCycles(remaining, deps, depStart, depCount));
+            }
+
+            wireOrder = new ArrayList<>(order.length);
+            for (int w : order) {
+                wireOrder.add(storageOrder.get(w));
+            }
+        }
+        else {
+            for (int i = 0; i < order.length; i++) {
+                int w = slots.get(wireOrder.get(i));
+                order[i] = w;
+                for (int j = depStart[w]; j < depStart[w] + depCount[w]; j++) {
+                    level[w] = Math.max(level[w], level[deps[j]] + 1);
+                }
+            }
+        }
+
+        wireSlots = order;
+        wireLevels = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            wireLevels[i] = level[order[i]];
+        }
+    }
+
+    /**
+     * Completes the evaluation plan with the bound driving expression of
+     * every wire, from BOUNDEXPRS, in topological order.
+     */
+    private void buildWirePlan(ExpressionNode[] boundExprs) {
+        wireExprs = new ExpressionNode[wireSlots.length];
+        for (int i = 0; i < wireSlots.length; i++) {
+            wireExprs[i] = boundExprs[wireSlots[i]];
+        }
+    }
+
+    /**
+     * Returns the slots of the regs and wires whose expressions read every
+     * shared wire made by NetlistOptimizer, indexed by the shared wire's
+     * slot, and null for every other slot. Lets the profiler charge shared
+     * subexpressions to the signals that use them.
+     */
+    private int[][] findSharedReaders() {
+        int[][] readers = new int[storageOrder.size()][];
+        ArrayList<LinkedHashSet<Integer>> found = new ArrayList<>(storageOrder.size());
+        for (int slot = 0; slot < storageOrder.size(); slot++) {
+            found.add(storageOrder.get(slot).startsWith(NetlistOptimizer.SHARED_PREFIX) ? new LinkedHashSet<>() : null);
+        }
+        for (int i = 0; i < regSlots.length + wireSlots.length; i++) {
+            int slot = i < regSlots.length ? regSlots[i] : wireSlots[i - regSlots.length];
+            ExpressionNode expr = i < regSlots.length ? regExprs[i] : wireExprs[i - regSlots.length];
+            int[] refs = new int[countSignalRefs(expr)];
+            collectSignalRefs(expr, refs, 0);
+            for (int ref : refs) {
+                if (found.get(ref) != null) found.get(ref).add(slot);
+            }
+        }
+        for (int slot = 0; slot < readers.length; slot++) {
+            if (found.get(slot) == null) continue;
+            readers[slot] = found.get(slot).stream().mapToInt(Integer::intValue).toArray();
+        }
+        return readers;
+    }
+
+    /**
+     * Returns the number of SignalRefs in NODE.
+     */
+    private static int countSignalRefs(ExpressionNode node) {
+        if (node instanceof ExpressionNode.SignalRef) {
+            return 1;
+        }
+        else if (node instanceof ExpressionNode.Unary unary) {
+            return countSignalRefs(unary.getOperand());
+        }
+        else if (node instanceof ExpressionNode.Binary binary) {
+            return countSignalRefs(binary.getLeft()) + countSignalRefs(binary.getRight());
+        }
+        return 0;
+    }
+
+    /**
+     * Writes the slot of every SignalRef in the bound NODE to OUT starting at
+     * POS, and returns the position after the last one written.
+     */
+    private static int collectSignalRefs(ExpressionNode node, int[] out, int pos) {
+        if (node instanceof ExpressionNode.SignalRef ref) {
+            out[pos++] = ref.getSlot();
+        }
+        else if (node instanceof ExpressionNode.Unary unary) {
+            pos = collectSignalRefs(unary.getOperand(), out, pos);
+        }
+        else if (node instanceof ExpressionNode.Binary binary) {
+            pos = collectSignalRefs(binary.getLeft(), out, pos);
+            pos = collectSignalRefs(binary.getRight(), out, pos);
+        }
+        return pos;
+    }
+
+    /**
+     * Returns the error message for a wire graph with cycles. Runs Tarjan's
+     * strongly connected components algorithm over the wires Kahn's algorithm
+     * could not order, those with REMAINING dependencies, and lists the wires
+     * of every component that forms a loop.
+     */
+    private String describeCycles(int[] remaining, int[] deps, int[] depStart, int[] depCount) {
+        int numSignals = remaining.length;
+        int[] index = new int[numSignals];
+        int[] low = new int[numSignals];
+        Arrays.fill(index, -1);
+        boolean[] onStack = new boolean[numSignals];
+        int[] stack = new int[numSignals];
+        int sp = 0;
+        // Explicit call stack of wires and the next dependency each one will visit
+        int[] callStack = new int[numSignals];
+        int[] nextDep = new int[numSignals];
+        int nextIndex = 0;
+
+        ArrayList<ArrayList<String>> loops = new ArrayList<>();
+        for (int root = 0; root < numSignals; root++) {
+            if (remaining[root] == 0 || index[root] >= 0) continue;
+
+            int csp = 0;
+            callStack[csp++] = root;
+            index[root] = low[root] = nextIndex++;
+            nextDep[root] = depStart[root];
+            stack[sp++] = root;
+            onStack[root] = true;
+
+            while (csp > 0) {
+                int v = callStack[csp - 1];
+                if (nextDep[v] < depStart[v] + depCount[v]) {
+                    int w = deps[nextDep[v]++];
+                    if (remaining[w] == 0) continue;
+                    if (index[w] < 0) {
+                        index[w] = low[w] = nextIndex++;
+                        nextDep[w] = depStart[w];
+                        stack[sp++] = w;
+                        onStack[w] = true;
+                        callStack[csp++] = w;
+                    }
+                    else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                    continue;
+                }
+
+                csp--;
+                if (csp > 0) {
+                    int parent = callStack[csp - 1];
+                    low[parent] = Math.min(low[parent], low[v]);
+                }
+                if (low[v] == index[v]) {
+                    ArrayList<String> component = new ArrayList<>();
+                    int w;
+                    do {
+                        w = stack[--sp];
+                        onStack[w] = false;
+                        component.add(storageOrder.get(w));
+                    } while (w != v);
+                    if (component.size() > 1 || dependsOnItself(v, deps, depStart, depCount)) {
+                        component.sort(String::compareTo);
+                        loops.add(component);
                     }
                 }
             }
         }
+        loops.sort((a, b) -> a.get(0).compareTo(b.get(0)));
 
-        if (notVisited > 0) {
-            throw new HDLException("Cycle detected in wire dependencies!");
+        StringBuilder msg = new StringBuilder("Cycle detected in wire dependencies! Wires in combinational loops: ");
+        for (int i = 0; i < loops.size() && i < MAX_REPORTED_LOOPS; i++) {
+            ArrayList<String> loop = loops.get(i);
+            if (i > 0) msg.append(", ");
+            msg.append("{");
+            msg.append(String.join(", ", loop.subList(0, Math.min(loop.size(), MAX_REPORTED_LOOP_WIRES))));
+            if (loop.size() > MAX_REPORTED_LOOP_WIRES) {
+                msg.append(String.format(", ... %d more", loop.size() - MAX_REPORTED_LOOP_WIRES));
+            }
+            msg.append("}");
         }
+        if (loops.size() > MAX_REPORTED_LOOPS) {
+            msg.append(String.format(" and %d more loops", loops.size() - MAX_REPORTED_LOOPS));
+        }
+        return msg.toString();
+    }
 
-        this.wireOrder = topologicalSort;
+    private static boolean dependsOnItself(int w, int[] deps, int[] depStart, int[] depCount) {
+        for (int i = depStart[w]; i < depStart[w] + depCount[w]; i++) {
+            if (deps[i] == w) return true;
+        }
+        return false;
+    }
 
-        // Get first values of wires
-        for (String wire : wireOrder) {
-            int val = expressions.get(wire).eval(values);
-            values.put(wire, val);
+    /**
+     * Reorders the wire plan so wires are grouped by level, keeping the
+     * topological order within each level. Since a wire only depends on wires
+     * of lower levels, the result is still a valid topological order.
+     */
+    private void sortWirePlanByLevel() {
+        int numLevels = 0;
+        for (int level : wireLevels) {
+            numLevels = Math.max(numLevels, level + 1);
         }
 
-        try {
-            dumpCurrentValues(this.logWriter);
+        levelStart = new int[numLevels + 1];
+        for (int level : wireLevels) {
+            levelStart[level + 1]++;
         }
-        catch (IOException e) {
-            fatalIOException(e);
+        for (int l = 0; l < numLevels; l++) {
+            levelStart[l + 1] += levelStart[l];
         }
 
-        this.built = true;
+        int[] fill = Arrays.copyOf(levelStart, numLevels);
+        int[] sortedSlots = new int[wireSlots.length];
+        ExpressionNode[] sortedExprs = new ExpressionNode[wireExprs.length];
+        for (int i = 0; i < wireSlots.length; i++) {
+            int position = fill[wireLevels[i]]++;
+            sortedSlots[position] = wireSlots[i];
+            sortedExprs[position] = wireExprs[i];
+        }
+        wireSlots = sortedSlots;
+        wireExprs = sortedExprs;
+    }
+
+    /**
+     * Infers the enable of every reg in the evaluation plan. Leaves regEnables
+     * null if no reg has one, so step() keeps its plain loop.
+     */
+    private void buildRegEnables() {
+        ExpressionNode[] enables = new ExpressionNode[regSlots.length];
+        int count = 0;
+        for (int i = 0; i < regSlots.length; i++) {
+            enables[i] = EnableInference.inferEnable(regSlots[i], regExprs[i]);
+            if (enables[i] != null) count++;
+        }
+        enabledRegCount = count;
+        regEnables = count > 0 ? enables : null;
+        regHoldCounts = new int[regSlots.length];
+        enablesReviewedAt = cycle;
+    }
+
+    /**
+     * Drops every enable whose reg held too rarely since the last review to
+     * make up for evaluating the enable: the nodes saved by the holds must
+     * be more than the nodes spent on the enable every cycle.
+     */
+    private void reviewRegEnables() {
+        long cycles = cycle - enablesReviewedAt;
+        for (int i = 0; i < regSlots.length; i++) {
+            if (regEnables[i] == null) continue;
+            long saved = regHoldCounts[i] * NetlistOptimizer.countNodes(regExprs[i]);
+            long spent = cycles * NetlistOptimizer.countNodes(regEnables[i]);
+            if (saved <= spent) {
+                regEnables[i] = null;
+                enabledRegCount--;
+            }
+            regHoldCounts[i] = 0;
+        }
+        enablesReviewedAt = cycle;
+        if (enabledRegCount == 0) {
+            regEnables = null;
+        }
+    }
+
+    /**
+     * Inverts the dependencies map into the fan-out graph used by the EVENT
+     * engine, mapping every slot to the topological positions of the wires
+     * that read it.
+     */
+    private void buildFanout() {
+        fanoutStart = new int[currentValues.length + 1];
+        for (String wire : wireOrder) {
+            for (String d : dependencies.get(wire)) {
+                fanoutStart[slots.get(d) + 1]++;
+            }
+        }
+        for (int s = 0; s < currentValues.length; s++) {
+            fanoutStart[s + 1] += fanoutStart[s];
+        }
+
+        fanoutWires = new int[fanoutStart[currentValues.length]];
+        int[] fill = Arrays.copyOf(fanoutStart, currentValues.length);
+        for (int i = 0; i < wireOrder.size(); i++) {
+            for (String d : dependencies.get(wireOrder.get(i))) {
+                fanoutWires[fill[slots.get(d)]++] = i;
+            }
+        }
+
+        pendingWires = new BitSet(wireOrder.size());
+        regNextValues = new int[regSlots.length];
     }
 
     /**
-     * Generates an alphabetical ordering of the signals.
+     * Generates an alphabetical ordering of the signals, and the order of
+     * every signal with the hidden signals after the others.
      */
     private void buildLexicographicOrder() {
-        lexicographicalOrder = new ArrayList<>(values.keySet());
+        lexicographicalOrder = new ArrayList<>(values.size() - hiddenSignals.size());
+        for (String signal : values.keySet()) {
+            if (!hiddenSignals.contains(signal)) lexicographicalOrder.add(signal);
+        }
         lexicographicalOrder.sort(String::compareTo);
         lexicographicalOrder.remove("TERMINATE");
         lexicographicalOrder.add(0, "TERMINATE");
+
+        ArrayList<String> hidden = new ArrayList<>(hiddenSignals);
+        hidden.sort(String::compareTo);
+        signalOrder = new ArrayList<>(lexicographicalOrder);
+        signalOrder.addAll(hidden);
     }
 
 
@@ -276,24 +1186,171 @@ public class Signals {
 
     /**
      * Executes a single clock cycle of the HDL. Adds the signal values to the log.
+     * Reg next-states are computed from the current values, then wires are
+     * computed in topological order from the next values. Allocates nothing.
+     * Cycles sampled by the profiler, if any, are run by stepProfiled() instead.
      */
     public void step() {
         assert this.built : "Must call build() before stepping!";
 
-        HashMap<String, Integer> nextValues = new HashMap<>();
-        for (String reg : regs) {
-            int nextVal = expressions.get(reg).eval(values);
-            nextValues.put(reg, nextVal);
+        if (profiler != null && profiler.shouldSample(cycle)) {
+            stepProfiled();
+            return;
         }
-        for (String wire : wireOrder) {
-            int val = expressions.get(wire).eval(nextValues);
-            nextValues.put(wire, val);
+        if (engine == Engine.EVENT) {
+            stepActivityDriven();
+        }
+        else {
+            if (compiledNetlist != null) {
+                compiledNetlist.step(currentValues, nextValues);
+            }
+            else if (engine == Engine.PARALLEL) {
+                evalRange(regSlots, regExprs, 0, regSlots.length, currentValues, nextValues);
+                for (int l = 0; l < levelStart.length - 1; l++) {
+                    evalRange(wireSlots, wireExprs, levelStart[l], levelStart[l + 1], nextValues, nextValues);
+                }
+            }
+            else if (regEnables != null) {
+                int skipped = 0;
+                for (int i = 0; i < regSlots.length; i++) {
+                    int slot = regSlots[i];
+                    ExpressionNode enable = regEnables[i];
+                    if (enable != null && enable.eval(currentValues) == 0) {
+                        nextValues[slot] = currentValues[slot];
+                        regHoldCounts[i]++;
+                        skipped++;
+                    }
+                    else {
+                        nextValues[slot] = regExprs[i].eval(currentValues);
+                    }
+                }
+                for (int i = 0; i < wireSlots.length; i++) {
+                    nextValues[wireSlots[i]] = wireExprs[i].eval(nextValues);
+                }
+                skippedRegEvaluations += skipped;
+                expressionEvaluations -= skipped;
+            }
+            else {
+                for (int i = 0; i < regSlots.length; i++) {
+                    nextValues[regSlots[i]] = regExprs[i].eval(currentValues);
+                }
+                for (int i = 0; i < wireSlots.length; i++) {
+                    nextValues[wireSlots[i]] = wireExprs[i].eval(nextValues);
+                }
+            }
+
+            int[] temp = currentValues;
+            currentValues = nextValues;
+            nextValues = temp;
+            expressionEvaluations += regSlots.length + wireSlots.length;
+        }
+        endStep();
+    }
+
+    /**
+     * Executes a single clock cycle like step(), but walks every expression
+     * on the calling thread and records how long each one took in the
+     * profiler. The EVENT engine still only evaluates the wires whose inputs
+     * changed. Every engine computes the same values, so a profiled cycle
+     * leaves the same state behind as any other.
+     */
+    private void stepProfiled() {
+        long time = System.nanoTime();
+        if (engine == Engine.EVENT) {
+            long evaluated = regSlots.length;
+            for (int i = 0; i < regSlots.length; i++) {
+                if (regHolds(i)) {
+                    regNextValues[i] = currentValues[regSlots[i]];
+                    evaluated--;
+                }
+                else {
+                    regNextValues[i] = regExprs[i].eval(currentValues);
+                }
+                long now = System.nanoTime();
+                profiler.record(regSlots[i], now - time);
+                time = now;
+            }
+            skippedRegEvaluations += regSlots.length - evaluated;
+            for (int i = 0; i < regSlots.length; i++) {
+                int slot = regSlots[i];
+                if (regNextValues[i] != currentValues[slot]) {
+                    currentValues[slot] = regNextValues[i];
+                    markFanout(slot);
+                }
+            }
+            time = System.nanoTime();
+            for (int i = pendingWires.nextSetBit(0); i >= 0; i = pendingWires.nextSetBit(i + 1)) {
+                pendingWires.clear(i);
+                evaluated++;
+                int slot = wireSlots[i];
+                int val = wireExprs[i].eval(currentValues);
+                long now = System.nanoTime();
+                profiler.record(slot, now - time);
+                if (val != currentValues[slot]) {
+                    currentValues[slot] = val;
+                    markFanout(slot);
+                }
+                time = System.nanoTime();
+            }
+            expressionEvaluations += evaluated;
+        }
+        else {
+            long skipped = 0;
+            for (int i = 0; i < regSlots.length; i++) {
+                int slot = regSlots[i];
+                if (regHolds(i)) {
+                    nextValues[slot] = currentValues[slot];
+                    skipped++;
+                }
+                else {
+                    nextValues[slot] = regExprs[i].eval(currentValues);
+                }
+                long now = System.nanoTime();
+                profiler.record(slot, now - time);
+                time = now;
+            }
+            skippedRegEvaluations += skipped;
+            expressionEvaluations -= skipped;
+            for (int i = 0; i < wireSlots.length; i++) {
+                nextValues[wireSlots[i]] = wireExprs[i].eval(nextValues);
+                long now = System.nanoTime();
+                profiler.record(wireSlots[i], now - time);
+                time = now;
+            }
+
+            int[] temp = currentValues;
+            currentValues = nextValues;
+            nextValues = temp;
+            expressionEvaluations += regSlots.length + wireSlots.length;
         }
-        values = nextValues;
+        profiler.countCycle();
+        endStep();
+    }
 
-        if (!HDLSim.checkFlag("no-log")) {
+    /**
+     * Returns whether reg I of the evaluation plan has an enable that is 0
+     * in the current values, so that it holds this cycle.
+     */
+    private boolean regHolds(int i) {
+        if (regEnables == null || regEnables[i] == null || regEnables[i].eval(currentValues) != 0) return false;
+        regHoldCounts[i]++;
+        return true;
+    }
+
+    /**
+     * Finishes a clock cycle once the new values are in currentValues, and
+     * adds them to the log. Reviews the reg enables when a review is due.
+     */
+    private void endStep() {
+        cycle++;
+        valuesView = null;
+        if (regEnables != null && cycle - enablesReviewedAt >= ENABLE_REVIEW_CYCLES) {
+            reviewRegEnables();
+        }
+
+        if (traceWriter != null) {
             try {
-                dumpCurrentValues(this.logWriter);
+                traceWriter.writeCycle(currentValues);
             }
             catch (IOException e) {
                 fatalIOException(e);
@@ -301,47 +1358,309 @@ public class Signals {
         }
     }
 
+    /**
+     * Evaluates EXPRS[FROM] up to (not including) EXPRS[TO] against SOURCE and
+     * stores each result in DEST at the matching slot of SLOTS. The range is
+     * spread across the common ForkJoin pool if it is at least parallelThreshold
+     * wide, and this method only returns once every evaluation is done.
+     */
+    private void evalRange(int[] slots, ExpressionNode[] exprs, int from, int to, int[] source, int[] dest) {
+        if (to - from >= parallelThreshold) {
+            ForkJoinPool.commonPool().invoke(new EvalTask(slots, exprs, from, to, source, dest));
+        }
+        else {
+            for (int i = from; i < to; i++) {
+                dest[slots[i]] = exprs[i].eval(source);
+            }
+        }
+    }
+
+    /**
+     * Fork/join task used by the PARALLEL engine to evaluate a range of
+     * independent expressions.
+     */
+    private static class EvalTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] slots;
+        private final ExpressionNode[] exprs;
+        private final int from;
+        private final int to;
+        private final int[] source;
+        private final int[] dest;
+
+        EvalTask(int[] slots, ExpressionNode[] exprs, int from, int to, int[] source, int[] dest) {
+            this.slots = slots;
+            this.exprs = exprs;
+            this.from = from;
+            this.to = to;
+            this.source = source;
+            this.dest = dest;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_GRAIN) {
+                for (int i = from; i < to; i++) {
+                    dest[slots[i]] = exprs[i].eval(source);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new EvalTask(slots, exprs, from, mid, source, dest),
+                      new EvalTask(slots, exprs, mid, to, source, dest));
+        }
+    }
+
+    /**
+     * Executes a single clock cycle for the EVENT engine, updating currentValues
+     * in place. Every reg next-state is computed first, then only the regs
+     * whose value changed are written back, and only wires in their transitive
+     * fan-out are re-evaluated, in topological order.
+     */
+    private void stepActivityDriven() {
+        long evaluated = regSlots.length;
+        if (regEnables != null) {
+            for (int i = 0; i < regSlots.length; i++) {
+                ExpressionNode enable = regEnables[i];
+                if (enable != null && enable.eval(currentValues) == 0) {
+                    regNextValues[i] = currentValues[regSlots[i]];
+                    regHoldCounts[i]++;
+                    evaluated--;
+                }
+                else {
+                    regNextValues[i] = regExprs[i].eval(currentValues);
+                }
+            }
+            skippedRegEvaluations += regSlots.length - evaluated;
+        }
+        else {
+            for (int i = 0; i < regSlots.length; i++) {
+                regNextValues[i] = regExprs[i].eval(currentValues);
+            }
+        }
+        for (int i = 0; i < regSlots.length; i++) {
+            int slot = regSlots[i];
+            if (regNextValues[i] != currentValues[slot]) {
+                currentValues[slot] = regNextValues[i];
+                markFanout(slot);
+            }
+        }
+
+        // Fan-out always lies later in the topological order, so one forward pass is enough
+        for (int i = pendingWires.nextSetBit(0); i >= 0; i = pendingWires.nextSetBit(i + 1)) {
+            pendingWires.clear(i);
+            evaluated++;
+            int slot = wireSlots[i];
+            int val = wireExprs[i].eval(currentValues);
+            if (val != currentValues[slot]) {
+                currentValues[slot] = val;
+                markFanout(slot);
+            }
+        }
+        expressionEvaluations += evaluated;
+    }
+
+    /**
+     * Marks every wire that reads SLOT for re-evaluation.
+     */
+    private void markFanout(int slot) {
+        for (int j = fanoutStart[slot]; j < fanoutStart[slot + 1]; j++) {
+            pendingWires.set(fanoutWires[j]);
+        }
+    }
+
     /**
      * Executes as many clock cycles as necessary until the TERMINATE signal
      * takes on a value other than 0.
      * Returns the final value of the TERMINATE signal.
+     *
+     * Saves a checkpoint every checkpoint interval, if one is set, and commits
+     * a CycleSampleEvent every sample interval, if one is set.
+     *
+     * Throws HDLNonTerminationException if the cycle limit is reached first,
+     * or if loop checking is on and the reg state repeats.
      */
     public int stepToTerminate() {
-        while (values.get("TERMINATE") == 0) {
+        if (cycleLimit < 0 && !loopCheck && checkpointIntervalNanos == 0 && sampleCycles == 0) {
+            while (currentValues[terminateSlot] == 0) {
+                step();
+            }
+            return currentValues[terminateSlot];
+        }
+
+        /*
+         * Brent's cycle detection. One saved state is compared against every
+         * following cycle, and moved forward each time the distance reaches
+         * the next power of two. Wires are a function of the regs, so only
+         * the regs are saved and compared. Besides it, the full starting
+         * state is kept for findLoopStart() to replay from.
+         */
+        long startCycle = cycle;
+        int[] startState = loopCheck ? currentValues.clone() : null;
+        int[] saved = loopCheck ? new int[regSlots.length] : null;
+        if (loopCheck) saveRegs(saved);
+        long savedCycle = cycle;
+        long power = 1;
+        long nextCheckpoint = System.nanoTime() + checkpointIntervalNanos;
+        CycleSampleEvent sample = sampleCycles > 0 ? startSample() : null;
+        long sampleStart = System.nanoTime();
+        while (currentValues[terminateSlot] == 0) {
+            if (cycleLimit >= 0 && cycle >= cycleLimit) {
+                throw new HDLNonTerminationException(String.format(
+                        "Non-terminating, TERMINATE is still 0 after the limit of %d cycles", cycleLimit));
+            }
             step();
+            if (loopCheck) {
+                if (regsEqual(saved)) {
+                    long period = cycle - savedCycle;
+                    long start = startCycle + findLoopStart(startState, period);
+                    throw new HDLNonTerminationException(String.format(
+                            "Non-terminating, period %d from cycle %d", period, start), start, period);
+                }
+                if (cycle - savedCycle == power) {
+                    saveRegs(saved);
+                    savedCycle = cycle;
+                    power *= 2;
+                }
+            }
+            if (checkpointIntervalNanos > 0 && (cycle & (CHECKPOINT_POLL_CYCLES - 1)) == 0
+                    && System.nanoTime() - nextCheckpoint >= 0) {
+                saveCheckpoint();
+                nextCheckpoint = System.nanoTime() + checkpointIntervalNanos;
+            }
+            if (sample != null && cycle - sample.firstCycle == sampleCycles) {
+                commitSample(sample, sampleStart);
+                sample = startSample();
+                sampleStart = System.nanoTime();
+            }
+        }
+        if (sample != null && cycle > sample.firstCycle) {
+            commitSample(sample, sampleStart);
         }
-        return values.get("TERMINATE");
+        return currentValues[terminateSlot];
     }
 
     /**
-     * Writes the current values of all signals to the log in alphabetical order.
+     * Returns a CycleSampleEvent for the window of cycles starting now.
      */
-    private void dumpCurrentValues(BufferedWriter bw) throws IOException {
-        for (String signal : lexicographicalOrder) {
-            bw.write(signal + " ");
-            if (HDLSim.checkFlag("hex")) {
-                bw.write("0x" + Integer.toHexString(values.get(signal)).toUpperCase());
-            } else {
-                bw.write(Integer.toString(values.get(signal)));
-            }
-            bw.write('\n');
+    private CycleSampleEvent startSample() {
+        CycleSampleEvent sample = new CycleSampleEvent();
+        sample.firstCycle = cycle;
+        sample.begin();
+        return sample;
+    }
+
+    /**
+     * Ends the window of SAMPLE, which started at STARTNANOS, at the current
+     * cycle and commits it.
+     */
+    private void commitSample(CycleSampleEvent sample, long startNanos) {
+        sample.end();
+        if (sample.shouldCommit()) {
+            sample.cycles = cycle - sample.firstCycle;
+            sample.cyclesPerSecond = sample.cycles / Math.max((System.nanoTime() - startNanos) / 1e9, 1e-9);
+            sample.commit();
         }
-        bw.write('\n');
     }
 
     /**
-     * Writes the final values of all signals to the log in alphabetical order.
+     * Saves the current cycle to the checkpoint, once the trace has been
+     * written up to it. Takes time in the number of regs, plus whatever the
+     * trace writer still had buffered.
      */
-    public void dumpFinalOutput() {
-        File out = new File(outputDir.getPath() + "/result.txt");
+    public void saveCheckpoint() {
+        assert this.built && checkpoint != null : "Must set up checkpointing and call build() before saving a checkpoint!";
         try {
-            FileWriter fw = new FileWriter(out);
-            BufferedWriter bw = new BufferedWriter(fw);
+            long traceLength = traceWriter == null ? -1 : traceWriter.checkpoint();
+            checkpoint.save(checkpointFingerprint, cycle, traceLength, currentValues, regSlots);
+        }
+        catch (IOException e) {
+            fatalIOException(e);
+        }
+    }
+
+    /**
+     * Copies the value of every reg into SAVED, in the order of regSlots.
+     */
+    private void saveRegs(int[] saved) {
+        for (int i = 0; i < regSlots.length; i++) {
+            saved[i] = currentValues[regSlots[i]];
+        }
+    }
+
+    /**
+     * Returns whether every reg has the value saved in SAVED by saveRegs().
+     */
+    private boolean regsEqual(int[] saved) {
+        for (int i = 0; i < regSlots.length; i++) {
+            if (currentValues[regSlots[i]] != saved[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the first cycle, counting from STARTSTATE as cycle 0, whose
+     * state comes back PERIOD cycles later. Replays the design from
+     * STARTSTATE on two copies of the state PERIOD cycles apart, without
+     * touching currentValues or the trace.
+     */
+    private long findLoopStart(int[] startState, long period) {
+        int[][] lead = { startState.clone(), new int[startState.length] };
+        int[][] trail = { startState.clone(), new int[startState.length] };
+        for (long i = 0; i < period; i++) {
+            replayStep(lead);
+        }
+        long start = 0;
+        while (!Arrays.equals(lead[0], trail[0])) {
+            replayStep(lead);
+            replayStep(trail);
+            start++;
+        }
+        return start;
+    }
 
-            dumpCurrentValues(bw);
+    /**
+     * Executes a single clock cycle from STATE[0] into STATE[1], then swaps them.
+     */
+    private void replayStep(int[][] state) {
+        int[] current = state[0];
+        int[] next = state[1];
+        for (int i = 0; i < regSlots.length; i++) {
+            next[regSlots[i]] = regExprs[i].eval(current);
+        }
+        for (int i = 0; i < wireSlots.length; i++) {
+            next[wireSlots[i]] = wireExprs[i].eval(next);
+        }
+        state[0] = next;
+        state[1] = current;
+    }
 
-            bw.close();
-            fw.close();
+    /**
+     * Returns the current value of SIGNAL.
+     */
+    public int getValue(String signal) {
+        if (built) {
+            return currentValues[slots.get(signal)];
+        }
+        return values.get(signal);
+    }
+
+    /**
+     * Writes VALUES, indexed by slot, to the file OUT in alphabetical order of the signals.
+     */
+    void dumpValues(File out, int[] values) throws IOException {
+        TextTraceWriter writer = new TextTraceWriter(lexicographicalOrder, outputSlots, out.toPath(), HDLSim.checkFlag("hex"));
+        writer.writeCycle(values);
+        writer.close();
+    }
+
+    /**
+     * Writes the final values of all signals to the log in alphabetical order.
+     */
+    public void dumpFinalOutput() {
+        try {
+            dumpValues(new File(outputDir.getPath() + "/result.txt"), currentValues);
         }
         catch (IOException e) {
             fatalIOException(e);
@@ -349,11 +1668,14 @@ public class Signals {
     }
 
     /**
-     * Closes the log writer and flushes it's output.
+     * Closes the trace writer and flushes it's output.
      */
     public void cleanUp() {
+        if (this.traceWriter == null) {
+            return;
+        }
         try {
-            this.logWriter.close();
+            this.traceWriter.close();
         }
         catch (IOException e) {
             fatalIOException(e);
@@ -371,8 +1693,25 @@ public class Signals {
 
     // GETTERS ////////////////////////////////////////////////////////////////
 
+    /**
+     * Returns a map from signal name to current value. Once built, the map is
+     * a snapshot of the state arrays that is only created when asked for.
+     */
     public HashMap<String, Integer> getValues() {
-        return values;
+        if (!built) {
+            return values;
+        }
+        if (valuesView == null) {
+            valuesView = new HashMap<>();
+            for (int i = 0; i < lexicographicalOrder.size(); i++) {
+                valuesView.put(lexicographicalOrder.get(i), currentValues[outputSlots[i]]);
+            }
+        }
+        return valuesView;
+    }
+
+    public Engine getEngine() {
+        return engine;
     }
 
     public HashMap<String, Expression> getExpressions() {
@@ -403,4 +1742,116 @@ public class Signals {
         return wireOrder;
     }
 
+    /**
+     * Sets the topological order of the wires, so build() does not have to
+     * sort them again. WIREORDER must be a valid order for the current wires.
+     */
+    void setWireOrder(ArrayList<String> wireOrder) {
+        assert !built : "Wire order must be set before build()";
+        this.wireOrder = wireOrder;
+    }
+
+    /**
+     * Returns the number of cycles stepped since the starting values.
+     */
+    public long getCycle() {
+        return cycle;
+    }
+
+    /**
+     * Returns the number of reg and wire expressions evaluated by step()
+     * since build(). The EVENT engine only counts the wires it re-evaluated,
+     * and regs skipped because their enable was 0 are not counted.
+     */
+    public long getExpressionEvaluations() {
+        return expressionEvaluations;
+    }
+
+    /**
+     * Returns the number of regs that have an enable: those given one by
+     * build(), less those dropped since for rarely making their reg hold.
+     */
+    public int getEnabledRegCount() {
+        return enabledRegCount;
+    }
+
+    /**
+     * Returns the number of reg expressions step() skipped since build()
+     * because the reg's enable was 0.
+     */
+    public long getSkippedRegEvaluations() {
+        return skippedRegEvaluations;
+    }
+
+    /**
+     * Returns the number of bytes this run added to the trace file, or -1 if
+     * no trace is written. Only complete once cleanUp() has been called.
+     */
+    public long getTraceBytes() {
+        if (tracePath == null) return -1;
+        try {
+            return Files.size(tracePath) - traceStartLength;
+        }
+        catch (IOException e) {
+            return -1;
+        }
+    }
+
+    public ArrayList<String> getLexicographicalOrder() {
+        return lexicographicalOrder;
+    }
+
+    ArrayList<String> getSignalOrder() {
+        return signalOrder;
+    }
+
+    /**
+     * Returns every wire that shares the slot of another signal instead of
+     * being evaluated, mapped to that signal. Null until build() is called.
+     */
+    public HashMap<String, String> getAliases() {
+        return aliases;
+    }
+
+    HashSet<String> getHiddenSignals() {
+        return hiddenSignals;
+    }
+
+    // Starting value of every signal, as declared
+    HashMap<String, Integer> getInitialValues() {
+        return values;
+    }
+
+    public int[] getWireLevels() {
+        return wireLevels;
+    }
+
+    public HashMap<String, Integer> getSlots() {
+        return slots;
+    }
+
+    int[] getCurrentValues() {
+        return currentValues;
+    }
+
+    int getTerminateSlot() {
+        return terminateSlot;
+    }
+
+    int[] getRegSlots() {
+        return regSlots;
+    }
+
+    ExpressionNode[] getRegExprs() {
+        return regExprs;
+    }
+
+    int[] getWireSlots() {
+        return wireSlots;
+    }
+
+    ExpressionNode[] getWireExprs() {
+        return wireExprs;
+    }
+
 }
@@ -0,0 +1,167 @@
+package Source;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Writes the plain text log.txt format: every signal's name and value on
+ * its own line, with a blank line after each cycle. The same format is
+ * used for result.txt.
+ *
+ * Signal names are encoded to bytes once, when the writer is created.
+ * Values are formatted digit by digit straight into a reusable direct
+ * buffer that is written to the file in large blocks, so writing a cycle
+ * allocates nothing.
+ */
+
+public class TextTraceWriter implements TraceWriter {
+
+    // Size of the buffer the file is written through
+    private static final int BUFFER_SIZE = 1 << 20;
+    // Longest value text, "-2147483648"
+    private static final int MAX_VALUE_LENGTH = 11;
+    private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final boolean hex;
+    // Slot of every signal, indexed the same way as the names
+    private final int[] slots;
+
+    // Every signal's name followed by a space, as bytes
+    private final byte[][] namePrefixes;
+    // Scratch space that value digits are formatted into, right to left
+    private final byte[] digits;
+
+    /**
+     * Creates the file at PATH for a text trace of the signals in NAMES.
+     * Values are written in hex if HEX is set and in decimal otherwise.
+     */
+    public TextTraceWriter(List<String> names, Path path, boolean hex) throws IOException {
+        this(names, TraceWriter.identitySlots(names.size()), path, hex);
+    }
+
+    /**
+     * Same as above, for signals whose values are at SLOTS in the state array.
+     */
+    public TextTraceWriter(List<String> names, int[] slots, Path path, boolean hex) throws IOException {
+        this(names, slots, FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), hex);
+    }
+
+    /**
+     * Reopens the text trace at PATH written by an earlier run, to continue
+     * it after its first LENGTH bytes.
+     */
+    public static TextTraceWriter resume(List<String> names, int[] slots, Path path, boolean hex, long length) throws IOException {
+        return new TextTraceWriter(names, slots, TraceWriter.reopen(path, length), hex);
+    }
+
+    private TextTraceWriter(List<String> names, int[] slots, FileChannel channel, boolean hex) {
+        this.slots = slots;
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.hex = hex;
+
+        this.namePrefixes = new byte[names.size()][];
+        for (int i = 0; i < names.size(); i++) {
+            namePrefixes[i] = (names.get(i) + " ").getBytes(StandardCharsets.UTF_8);
+        }
+        this.digits = new byte[MAX_VALUE_LENGTH];
+    }
+
+    /**
+     * Writes the name and value of every signal, followed by a blank line.
+     * VALUES is indexed by slot.
+     */
+    @Override
+    public void writeCycle(int[] values) throws IOException {
+        for (int i = 0; i < namePrefixes.length; i++) {
+            byte[] name = namePrefixes[i];
+            if (buffer.remaining() < name.length + MAX_VALUE_LENGTH + 1) {
+                drain();
+                if (buffer.remaining() < name.length + MAX_VALUE_LENGTH + 1) {
+                    // Name does not fit in the buffer at all, write it on its own
+                    channel.write(ByteBuffer.wrap(name));
+                    name = new byte[0];
+                }
+            }
+            buffer.put(name);
+            if (hex) {
+                putHex(values[slots[i]]);
+            } else {
+                putDecimal(values[slots[i]]);
+            }
+            buffer.put((byte) '\n');
+        }
+        if (!buffer.hasRemaining()) drain();
+        buffer.put((byte) '\n');
+    }
+
+    @Override
+    public void close() throws IOException {
+        drain();
+        channel.close();
+    }
+
+    @Override
+    public long checkpoint() throws IOException {
+        drain();
+        channel.force(false);
+        return channel.position();
+    }
+
+
+    // PRIVATE HELPER METHODS /////////////////////////////////////////////////
+
+    /**
+     * Puts VALUE as signed decimal, matching Integer.toString.
+     */
+    private void putDecimal(int value) {
+        long v = value;
+        boolean negative = v < 0;
+        if (negative) v = -v;
+
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v != 0);
+        if (negative) digits[--pos] = '-';
+        buffer.put(digits, pos, digits.length - pos);
+    }
+
+    /**
+     * Puts VALUE as 0x followed by unsigned uppercase hex without leading
+     * zeros, matching "0x" + Integer.toHexString(value).toUpperCase().
+     */
+    private void putHex(int value) {
+        int pos = digits.length;
+        do {
+            digits[--pos] = HEX_DIGITS[value & 0xF];
+            value >>>= 4;
+        } while (value != 0);
+        digits[--pos] = 'x';
+        digits[--pos] = '0';
+        buffer.put(digits, pos, digits.length - pos);
+    }
+
+    /**
+     * Writes everything in the buffer to the file and empties it.
+     */
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+}
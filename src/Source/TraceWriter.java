@@ -0,0 +1,69 @@
+package Source;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Destination for the value of every signal on every cycle of a run.
+ * Implementations decide the file format. Values are always handed over
+ * as the state array, indexed by slot. A writer is created with the
+ * signals' names in alphabetical order and the slot each one reads, since
+ * several signals can share a slot and some slots hold hidden signals.
+ */
+
+public interface TraceWriter {
+
+    /**
+     * Records the values of one cycle. The first call records the starting
+     * values, and each later call records one more cycle.
+     */
+    void writeCycle(int[] values) throws IOException;
+
+    /**
+     * Flushes all output and releases the underlying file.
+     */
+    void close() throws IOException;
+
+    /**
+     * Writes every cycle recorded so far through to the disk and returns the
+     * length of the file. A run resumed from this cycle continues the file
+     * from that length.
+     *
+     * Throws UnsupportedOperationException if the format can not be resumed.
+     */
+    long checkpoint() throws IOException;
+
+    /**
+     * Returns the slots of N signals that each have their own slot, in order.
+     */
+    static int[] identitySlots(int n) {
+        int[] slots = new int[n];
+        for (int i = 0; i < n; i++) {
+            slots[i] = i;
+        }
+        return slots;
+    }
+
+    /**
+     * Opens the existing file at PATH for writing, dropping everything after
+     * its first LENGTH bytes, and moves to its end.
+     *
+     * Throws IOException if the file is missing or shorter than LENGTH.
+     */
+    static FileChannel reopen(Path path, long length) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        if (channel.size() < length) {
+            channel.close();
+            throw new IOException(String.format("%s is %d bytes, shorter than the %d bytes it had at the checkpoint",
+                    path, channel.size(), length));
+        }
+        channel.truncate(length);
+        channel.position(length);
+        return channel;
+    }
+
+}
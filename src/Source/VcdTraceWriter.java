@@ -0,0 +1,234 @@
+package Source;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Writes a Value Change Dump (IEEE 1364 VCD) waveform that can be opened by
+ * standard waveform viewers. Each submodule instance becomes a scope, taken
+ * from the /a/b/ prefix of the signal names. Every signal gets a short
+ * identifier code, and after the starting values only the signals that
+ * changed in a cycle are written. Aliases, which share a slot with the
+ * signal they copy, share its identifier code too, so their values are
+ * only written once.
+ *
+ * Cycle N of the run is written as time #N.
+ */
+
+public class VcdTraceWriter implements TraceWriter {
+
+    // Printable ASCII characters that VCD allows in identifier codes
+    private static final char FIRST_ID_CHAR = '!';
+    private static final int NUM_ID_CHARS = '~' - '!' + 1;
+
+    private final List<String> names;
+    private final Set<String> regs;
+    // Slot of every signal, indexed the same way as names
+    private final int[] slots;
+    private final Writer writer;
+    // File under the writer. Null if the writer was handed in, which can not be checkpointed.
+    private final FileChannel channel;
+
+    // Identifier code of every signal, indexed the same way as names
+    private final String[] ids;
+    // Whether each signal is the first with its identifier code, and so the one whose values are written
+    private final boolean[] dumped;
+    // Values from the previous cycle. Null until the first cycle is written.
+    private int[] lastValues;
+    private long cycle;
+
+    /**
+     * Creates a VCD trace of the signals in NAMES that writes to WRITER.
+     * Signals in REGS are declared as regs, all others as wires.
+     */
+    public VcdTraceWriter(List<String> names, Set<String> regs, Writer writer) {
+        this(names, TraceWriter.identitySlots(names.size()), regs, writer);
+    }
+
+    /**
+     * Same as above, for signals whose values are at SLOTS in the state array.
+     */
+    public VcdTraceWriter(List<String> names, int[] slots, Set<String> regs, Writer writer) {
+        this(names, slots, regs, writer, null);
+    }
+
+    /**
+     * Same as above, creating the file at PATH to write to.
+     */
+    public VcdTraceWriter(List<String> names, int[] slots, Set<String> regs, Path path) throws IOException {
+        this(names, slots, regs, FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+    }
+
+    private VcdTraceWriter(List<String> names, int[] slots, Set<String> regs, FileChannel channel) {
+        this(names, slots, regs, new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8)), channel);
+    }
+
+    private VcdTraceWriter(List<String> names, int[] slots, Set<String> regs, Writer writer, FileChannel channel) {
+        this.names = names;
+        this.slots = slots;
+        this.regs = regs;
+        this.writer = writer;
+        this.channel = channel;
+
+        this.ids = new String[names.size()];
+        this.dumped = new boolean[names.size()];
+        HashMap<Integer, String> slotIds = new HashMap<>();
+        for (int i = 0; i < names.size(); i++) {
+            String id = slotIds.get(slots[i]);
+            if (id == null) {
+                id = idCode(slotIds.size());
+                slotIds.put(slots[i], id);
+                dumped[i] = true;
+            }
+            ids[i] = id;
+        }
+        this.lastValues = null;
+        this.cycle = 0;
+    }
+
+    /**
+     * Reopens the VCD trace at PATH written by an earlier run, to continue it
+     * after its first LENGTH bytes. The trace went up to cycle CYCLE, whose
+     * values are VALUES.
+     */
+    public static VcdTraceWriter resume(List<String> names, int[] slots, Set<String> regs, Path path,
+                                        long length, long cycle, int[] values) throws IOException {
+        VcdTraceWriter trace = new VcdTraceWriter(names, slots, regs, TraceWriter.reopen(path, length));
+        trace.cycle = cycle;
+        trace.lastValues = new int[names.size()];
+        for (int i = 0; i < names.size(); i++) {
+            trace.lastValues[i] = values[slots[i]];
+        }
+        return trace;
+    }
+
+    @Override
+    public void writeCycle(int[] values) throws IOException {
+        if (lastValues == null) {
+            writeHeader();
+            writer.write("#0\n$dumpvars\n");
+            lastValues = new int[names.size()];
+            for (int i = 0; i < names.size(); i++) {
+                lastValues[i] = values[slots[i]];
+                if (dumped[i]) writeValue(i, lastValues[i]);
+            }
+            writer.write("$end\n");
+            return;
+        }
+
+        cycle++;
+        boolean timeWritten = false;
+        for (int i = 0; i < names.size(); i++) {
+            int value = values[slots[i]];
+            if (dumped[i] && value != lastValues[i]) {
+                if (!timeWritten) {
+                    writer.write("#" + cycle + "\n");
+                    timeWritten = true;
+                }
+                writeValue(i, value);
+                lastValues[i] = value;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Mark the end of the run even if nothing changed in the last cycles
+        writer.write("#" + (cycle + 1) + "\n");
+        writer.close();
+    }
+
+    @Override
+    public long checkpoint() throws IOException {
+        if (channel == null) {
+            throw new UnsupportedOperationException("A VCD trace can only be resumed if it was opened from a path");
+        }
+        writer.flush();
+        channel.force(false);
+        return channel.position();
+    }
+
+
+    // PRIVATE HELPER METHODS /////////////////////////////////////////////////
+
+    /**
+     * Writes the header, declaring every signal inside the scope of the
+     * submodule instance it belongs to.
+     */
+    private void writeHeader() throws IOException {
+        writer.write("$version HDLSim $end\n");
+        writer.write("$timescale 1ns $end\n");
+
+        Scope top = new Scope();
+        for (int i = 0; i < names.size(); i++) {
+            String[] path = names.get(i).split("/");
+            Scope scope = top;
+            // path[0] is empty for names starting with /, and the last entry is the signal itself
+            for (int p = 1; p < path.length - 1; p++) {
+                scope = scope.children.computeIfAbsent(path[p], k -> new Scope());
+            }
+            scope.signals.add(i);
+        }
+        writeScope("main", top);
+
+        writer.write("$enddefinitions $end\n");
+    }
+
+    private void writeScope(String name, Scope scope) throws IOException {
+        writer.write("$scope module " + name + " $end\n");
+        for (int i : scope.signals) {
+            String fullName = names.get(i);
+            String type = regs.contains(fullName) ? "reg" : "wire";
+            String shortName = fullName.substring(fullName.lastIndexOf('/') + 1);
+            writer.write("$var " + type + " 32 " + ids[i] + " " + shortName + " $end\n");
+        }
+        for (String child : scope.children.keySet()) {
+            writeScope(child, scope.children.get(child));
+        }
+        writer.write("$upscope $end\n");
+    }
+
+    private void writeValue(int i, int value) throws IOException {
+        writer.write('b');
+        writer.write(Integer.toBinaryString(value));
+        writer.write(' ');
+        writer.write(ids[i]);
+        writer.write('\n');
+    }
+
+    /**
+     * Returns the shortest identifier code for the Nth signal, counting in
+     * base 94 over the printable ASCII characters.
+     */
+    private static String idCode(int n) {
+        StringBuilder code = new StringBuilder();
+        do {
+            code.append((char) (FIRST_ID_CHAR + n % NUM_ID_CHARS));
+            n = n / NUM_ID_CHARS - 1;
+        } while (n >= 0);
+        return code.toString();
+    }
+
+    /**
+     * One level of the module hierarchy. Children are kept sorted by name.
+     */
+    private static class Scope {
+        private final ArrayList<Integer> signals = new ArrayList<>();
+        private final TreeMap<String, Scope> children = new TreeMap<>();
+    }
+
+}
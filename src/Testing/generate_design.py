@@ -0,0 +1,200 @@
+"""
+Generates large HDL projects in HDLSim's own syntax, for performance testing.
+
+Usage:
+    python3 generate_design.py KIND SIZE OUT_DIR [--cycles N]
+
+KIND is one of:
+    adder_tree      SIZE registers summed by a balanced tree of adder submodules
+    lfsr_bank       SIZE 16 bit LFSR submodules with different taps, XORed together
+    counter_array   SIZE counter submodules with different steps, summed in a chain
+    deep_hierarchy  a binary tree of submodules SIZE levels deep (2^SIZE leaves)
+
+Every design counts its cycles in the reg cycle and terminates after N cycles
+(1000 by default). The same arguments always give the same files.
+"""
+
+import os
+import sys
+
+KINDS = ["adder_tree", "lfsr_bank", "counter_array", "deep_hierarchy"]
+DEFAULT_CYCLES = 1000
+
+
+def main():
+    args = sys.argv[1:]
+    cycles = DEFAULT_CYCLES
+    if "--cycles" in args:
+        i = args.index("--cycles")
+        cycles = int(args[i + 1])
+        del args[i:i + 2]
+    if len(args) != 3 or args[0] not in KINDS:
+        print(__doc__)
+        sys.exit(1)
+
+    generate(args[0], int(args[1]), args[2], cycles)
+
+
+def generate(kind, size, out_dir, cycles=DEFAULT_CYCLES):
+    """
+    Writes the KIND design of the given SIZE to OUT_DIR, which is created if
+    needed. Returns the number of signals in the design.
+    """
+    os.makedirs(out_dir, exist_ok=True)
+    files = GENERATORS[kind](size, cycles)
+    for name, lines in files.items():
+        with open(os.path.join(out_dir, name + ".txt"), "w") as f:
+            f.write("\n".join(lines) + "\n")
+    return sum(1 for lines in files.values() for line in lines
+               if line.startswith("reg ") or line.startswith("wire "))
+
+
+# DESIGNS ####################################################################
+
+def adder_tree(size, cycles):
+    adder = [
+        "module adder (input in_1, input in_2, output out);",
+        "out = in_1 + in_2;",
+    ]
+    main = main_header()
+    level = []
+    for i in range(size):
+        main.append(f"reg x{i} = {i};")
+        main.append(f"x{i} <= x{i} + {i % 7 + 1};")
+        level.append(f"x{i}")
+
+    # Pair up the signals of each level until one sum is left
+    depth = 0
+    while len(level) > 1:
+        next_level = []
+        for i in range(0, len(level) - 1, 2):
+            out = f"s{depth}_{i // 2}"
+            main.append(f"wire {out};")
+            main.append(f"submod adder a{depth}_{i // 2} (.in_1({level[i]}), .in_2({level[i + 1]}), .out({out}));")
+            next_level.append(out)
+        if len(level) % 2 == 1:
+            next_level.append(level[-1])
+        level = next_level
+        depth += 1
+
+    main.append("reg acc = 0;")
+    main.append(f"acc <= acc ^ {level[0]};")
+    main += main_footer(cycles)
+    return {"main": main, "adder": adder}
+
+
+def lfsr_bank(size, cycles):
+    # Galois LFSR: shift left, and XOR in the taps when the bit shifted out was set
+    lfsr = [
+        "module lfsr (input taps, output out);",
+        "reg state = 1;",
+        "wire msb;",
+        "msb = (state & 0x8000) != 0;",
+        "state <= ((state + state) & 0xFFFF) ^ ((0 - msb) & taps);",
+        "out = state;",
+    ]
+    main = main_header()
+    mix = None
+    for i in range(size):
+        main.append(f"wire taps{i};")
+        main.append(f"taps{i} = {LFSR_TAPS[i % len(LFSR_TAPS)]};")
+        main.append(f"wire o{i};")
+        main.append(f"submod lfsr l{i} (.taps(taps{i}), .out(o{i}));")
+        if mix is None:
+            mix = f"o{i}"
+        else:
+            main.append(f"wire m{i};")
+            main.append(f"m{i} = {mix} ^ o{i};")
+            mix = f"m{i}"
+
+    main.append("reg acc = 0;")
+    main.append(f"acc <= acc + {mix};")
+    main += main_footer(cycles)
+    return {"main": main, "lfsr": lfsr}
+
+
+def counter_array(size, cycles):
+    counter = [
+        "module counter (input step, output count);",
+        "reg value = 0;",
+        "value <= value + step;",
+        "count = value;",
+    ]
+    main = main_header()
+    total = None
+    for i in range(size):
+        main.append(f"wire step{i};")
+        main.append(f"step{i} = {i % 13 + 1};")
+        main.append(f"wire c{i};")
+        main.append(f"submod counter k{i} (.step(step{i}), .count(c{i}));")
+        if total is None:
+            total = f"c{i}"
+        else:
+            main.append(f"wire t{i};")
+            main.append(f"t{i} = {total} + c{i};")
+            total = f"t{i}"
+
+    main.append("reg acc = 0;")
+    main.append(f"acc <= {total};")
+    main += main_footer(cycles)
+    return {"main": main, "counter": counter}
+
+
+def deep_hierarchy(size, cycles):
+    files = {}
+    for level in range(size):
+        child = f"level{level + 1}"
+        files[f"level{level}"] = [
+            f"module level{level} (input in, output out);",
+            "wire a;",
+            "wire b;",
+            f"submod {child} left (.in(in), .out(a));",
+            f"submod {child} right (.in(a), .out(b));",
+            f"reg r = {level};",
+            "r <= r + b;",
+            "out = b ^ r;",
+        ]
+    files[f"level{size}"] = [
+        f"module level{size} (input in, output out);",
+        "reg r = 0;",
+        "r <= (r + in) + 1;",
+        "out = r;",
+    ]
+
+    main = main_header()
+    main.append("wire top;")
+    main.append("submod level0 root (.in(cycle), .out(top));")
+    main.append("reg acc = 0;")
+    main.append("acc <= acc ^ top;")
+    main += main_footer(cycles)
+    files["main"] = main
+    return files
+
+
+GENERATORS = {
+    "adder_tree": adder_tree,
+    "lfsr_bank": lfsr_bank,
+    "counter_array": counter_array,
+    "deep_hierarchy": deep_hierarchy,
+}
+
+# Feedback taps of the 16 bit LFSRs, handed out to the instances in turn
+LFSR_TAPS = ["0xB400", "0xD008", "0xA801", "0x8016", "0x9C00", "0xE100"]
+
+
+# HELPERS ####################################################################
+
+def main_header():
+    return [
+        "module main();",
+        "reg cycle = 0;",
+        "cycle <= cycle + 1;",
+    ]
+
+
+def main_footer(cycles):
+    return [f"TERMINATE cycle == {cycles};"]
+
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,167 @@
+"""
+Performance regression gate. Generates every design in SUITE with
+generate_design.py, runs each one with HDLSim and compares the simulation
+speed (cycles/s) and peak heap use it reports in out/metrics.json against a
+baseline file.
+
+Usage:
+    python3 perf_regression.py [--record] [--baseline FILE] [--tolerance T]
+                               [--heap-tolerance T] [--repeat N] [--flags "..."]
+                               [--only NAME]
+
+--record writes the measurements to the baseline file instead of comparing.
+Otherwise the run fails (exit code 1) if any design is more than TOLERANCE
+slower, or uses more than HEAP_TOLERANCE more heap, than its baseline.
+Each design is run REPEAT times and the best run counts, which keeps noise
+from other processes out of the comparison.
+
+Baselines only mean something on the machine they were recorded on, so
+record one per machine before gating on it.
+"""
+
+import argparse
+import json
+import os
+import shutil
+import subprocess
+import sys
+import tempfile
+
+from generate_design import generate
+from testing import bcolors
+
+TESTING_PATH = os.path.dirname(os.path.abspath(__file__))
+SRC_PATH = os.path.dirname(TESTING_PATH)
+BIN_PATH = os.path.join(SRC_PATH, "..", "bin")
+DEFAULT_BASELINE = os.path.join(TESTING_PATH, "perf_baseline.json")
+
+# Name, generator kind, size and cycles of every design in the suite. Each
+# runs for a few seconds, long enough for the JIT warm up not to dominate.
+SUITE = [
+    ("adder_tree_4096", "adder_tree", 4096, 40000),
+    ("lfsr_bank_2048", "lfsr_bank", 2048, 15000),
+    ("counter_array_4096", "counter_array", 4096, 25000),
+    ("deep_hierarchy_12", "deep_hierarchy", 12, 15000),
+]
+
+
+def main():
+    parser = argparse.ArgumentParser(description="HDLSim performance regression gate")
+    parser.add_argument("--record", action="store_true", help="write the baseline instead of comparing")
+    parser.add_argument("--baseline", default=DEFAULT_BASELINE)
+    parser.add_argument("--tolerance", type=float, default=0.15, help="allowed slowdown, 0.15 is 15%%")
+    parser.add_argument("--heap-tolerance", type=float, default=0.25, help="allowed growth of the peak heap")
+    parser.add_argument("--repeat", type=int, default=3)
+    parser.add_argument("--flags", default="", help="extra HDLSim flags, e.g. \"--engine=codegen\"")
+    parser.add_argument("--only", help="only run the design with this name")
+    args = parser.parse_args()
+
+    build()
+    flags = args.flags.split()
+    results = {}
+    for name, kind, size, cycles in SUITE:
+        if args.only and name != args.only:
+            continue
+        results[key(name, flags)] = measure(kind, size, cycles, flags, args.repeat)
+
+    if args.record:
+        record(args.baseline, results)
+    elif not compare(args.baseline, results, args.tolerance, args.heap_tolerance):
+        sys.exit(1)
+
+
+def build():
+    cmd = ['javac']
+    for dirpath, dirnames, filenames in os.walk(SRC_PATH):
+        for filename in filenames:
+            if filename.endswith(".java"):
+                cmd.append(dirpath + '/' + filename)
+    cmd.append('-d')
+    cmd.append(BIN_PATH)
+    subprocess.run(cmd, check=True)
+
+
+def key(name, flags):
+    """
+    Returns the baseline entry name of design NAME run with FLAGS.
+    """
+    return " ".join([name] + flags)
+
+
+def measure(kind, size, cycles, flags, repeat):
+    """
+    Generates the design and runs it REPEAT times. Returns the best speed and
+    the lowest peak heap seen.
+    """
+    design_dir = tempfile.mkdtemp(prefix="hdlperf_")
+    try:
+        generate(kind, size, design_dir, cycles)
+        best = None
+        for _ in range(repeat):
+            cmd = ["java", "-cp", BIN_PATH, "Source.HDLSim", design_dir, "-nl", "-nc"] + flags
+            subprocess.run(cmd, stdout=subprocess.DEVNULL, check=True)
+            with open(os.path.join(design_dir, "out", "metrics.json")) as f:
+                metrics = json.load(f)
+            speed = round(metrics["cycles_per_second"])
+            heap = round(metrics["peak_heap_bytes"] / 1e6, 1)
+            if best is None:
+                best = {"cycles_per_sec": speed, "peak_heap_mb": heap}
+            else:
+                best["cycles_per_sec"] = max(best["cycles_per_sec"], speed)
+                best["peak_heap_mb"] = min(best["peak_heap_mb"], heap)
+        return best
+    finally:
+        shutil.rmtree(design_dir)
+
+
+def record(baseline_path, results):
+    baseline = {}
+    if os.path.exists(baseline_path):
+        with open(baseline_path) as f:
+            baseline = json.load(f)
+    baseline.update(results)
+    with open(baseline_path, "w") as f:
+        json.dump(baseline, f, indent=2, sort_keys=True)
+        f.write("\n")
+
+    for name, result in results.items():
+        print(f"{name}: {result['cycles_per_sec']} cycles/s, {result['peak_heap_mb']}MB peak heap")
+    print(bcolors.OKGREEN + "Baseline written to " + baseline_path + bcolors.ENDC)
+
+
+def compare(baseline_path, results, tolerance, heap_tolerance):
+    """
+    Prints every design's change against the baseline. Returns False if any
+    design regressed or has no baseline.
+    """
+    if not os.path.exists(baseline_path):
+        print(bcolors.FAIL + "No baseline at " + baseline_path + ", run with --record first" + bcolors.ENDC)
+        return False
+    with open(baseline_path) as f:
+        baseline = json.load(f)
+
+    passed = True
+    for name, result in results.items():
+        if name not in baseline:
+            print(bcolors.FAIL + name + ": no baseline, run with --record first" + bcolors.ENDC)
+            passed = False
+            continue
+
+        base = baseline[name]
+        speed_change = result["cycles_per_sec"] / base["cycles_per_sec"] - 1
+        heap_change = result["peak_heap_mb"] / base["peak_heap_mb"] - 1
+        regressed = speed_change < -tolerance or heap_change > heap_tolerance
+        color = bcolors.FAIL if regressed else bcolors.OKGREEN
+        print(color + f"{name}: {result['cycles_per_sec']} cycles/s ({speed_change:+.1%}), "
+                      f"{result['peak_heap_mb']}MB peak heap ({heap_change:+.1%})" + bcolors.ENDC)
+        passed = passed and not regressed
+
+    if passed:
+        print(bcolors.OKGREEN + "No performance regressions!" + bcolors.ENDC)
+    else:
+        print(bcolors.FAIL + "Performance regressed!" + bcolors.ENDC)
+    return passed
+
+
+if __name__ == '__main__':
+    main()
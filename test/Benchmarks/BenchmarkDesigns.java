@@ -0,0 +1,106 @@
+package Benchmarks;
+
+import Source.HDLModuleReader;
+import Source.Signals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Generates the designs the benchmarks run on. A design of N signals has
+ * about N / 2 regs and N / 2 wires. Every wire is a random expression up to
+ * three operators deep over regs and earlier wires, and every reg adds its
+ * wire to a smaller expression, so most of the state changes every cycle.
+ * A counter drives a TERMINATE that never fires within a benchmark.
+ * The same size always gives the same design.
+ */
+
+final class BenchmarkDesigns {
+
+    private static final long SEED = 42;
+    private static final String[] OPERATORS = {"+", "-", "&", "|", "^", "==", "!="};
+    private static final int[] CONSTANTS = {0, 1, 2, 0xFF, 0xFFFF};
+
+    private BenchmarkDesigns() { }
+
+    /**
+     * Returns the source of a main module with NUMSIGNALS signals.
+     */
+    static String mainSource(int numSignals) {
+        Random random = new Random(SEED);
+        int pairs = Math.max(1, (numSignals - 2) / 2);
+        StringBuilder source = new StringBuilder(numSignals * 48);
+        source.append("module main();\n");
+        source.append("reg cnt = 0;\n");
+        for (int i = 0; i < pairs; i++) {
+            source.append("reg r").append(i).append(" = ").append(i).append(";\n");
+            source.append("wire w").append(i).append(";\n");
+        }
+        for (int i = 0; i < pairs; i++) {
+            source.append('w').append(i).append(" = ").append(term(random, i, 3)).append(";\n");
+            source.append('r').append(i).append(" <= (w").append(i).append(" + ").append(term(random, i, 2)).append(");\n");
+        }
+        source.append("cnt <= (cnt + 1);\n");
+        source.append("TERMINATE (cnt == 2147483647);\n");
+        return source.toString();
+    }
+
+    /**
+     * Writes the design of NUMSIGNALS signals to main.txt in a new temporary
+     * directory and returns the directory.
+     */
+    static Path writeDesign(int numSignals) throws IOException {
+        Path dir = Files.createTempDirectory("hdlbench");
+        Files.writeString(dir.resolve("main.txt"), mainSource(numSignals));
+        return dir;
+    }
+
+    /**
+     * Reads the design in DIR into a new, unbuilt HDLSim.Signals object.
+     */
+    static Signals readDesign(Path dir) throws IOException {
+        Signals signals = new Signals();
+        new HDLModuleReader(signals, dir.toString(), "main.txt", "/").readModule();
+        return signals;
+    }
+
+    /**
+     * Deletes DIR and everything in it.
+     */
+    static void deleteDesign(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+
+    // PRIVATE HELPER METHODS /////////////////////////////////////////////////
+
+    /**
+     * Returns a random expression at most DEPTH operators deep for wire I.
+     * It may only read wires declared before wire I, so the design has no
+     * combinational loops.
+     */
+    private static String term(Random random, int i, int depth) {
+        if (depth == 0 || random.nextInt(10) < 3) {
+            int pick = random.nextInt(10);
+            if (pick < 2) return Integer.toString(CONSTANTS[random.nextInt(CONSTANTS.length)]);
+            if (pick < 6 || i == 0) return "r" + random.nextInt(i + 1);
+            return "w" + random.nextInt(i);
+        }
+        if (random.nextInt(100) < 15) {
+            return (random.nextBoolean() ? "!" : "~") + term(random, i, depth - 1);
+        }
+        return "(" + term(random, i, depth - 1) + " " + OPERATORS[random.nextInt(OPERATORS.length)]
+                + " " + term(random, i, depth - 1) + ")";
+    }
+
+}
@@ -0,0 +1,34 @@
+package Benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Runs the JMH benchmarks with the GC profiler, so every result lists the
+ * allocation rate (gc.alloc.rate) and bytes allocated per operation
+ * (gc.alloc.rate.norm) next to the operations per second. For
+ * StepBenchmark an operation is one cycle.
+ *
+ * Takes the usual JMH command line, e.g. "StepBenchmark -p engine=CODEGEN"
+ * to run one benchmark on one engine, or "-rf json -rff out.json" to keep
+ * the results for comparing two builds.
+ */
+
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+
+}
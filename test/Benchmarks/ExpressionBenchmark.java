@@ -0,0 +1,85 @@
+package Benchmarks;
+
+import Source.Expression;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Evaluation speed of a single slot-bound HDLSim.Expression, for a one
+ * operator expression and for a balanced tree of 255 operators over 16
+ * signals.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExpressionBenchmark {
+
+    private static final int NUM_SIGNALS = 16;
+    private static final int DEEP_DEPTH = 8;
+    private static final String[] OPERATORS = {"+", "-", "&", "|", "^", "==", "!="};
+
+    private Expression shallow;
+    private Expression deep;
+    private int[] values;
+
+    @Setup
+    public void setUp() {
+        HashMap<String, Integer> slots = new HashMap<>();
+        for (int s = 0; s < NUM_SIGNALS; s++) {
+            slots.put(signalName(s), s);
+        }
+        Random random = new Random(42);
+        values = new int[NUM_SIGNALS];
+        for (int s = 0; s < NUM_SIGNALS; s++) {
+            values[s] = random.nextInt();
+        }
+
+        shallow = new Expression("(A + B)").bind(slots);
+        deep = new Expression(tree(random, DEEP_DEPTH)).bind(slots);
+    }
+
+    @Benchmark
+    public int evalShallow() {
+        return shallow.eval(values);
+    }
+
+    @Benchmark
+    public int evalDeep() {
+        return deep.eval(values);
+    }
+
+
+    // PRIVATE HELPER METHODS /////////////////////////////////////////////////
+
+    /**
+     * Returns a balanced expression DEPTH operators deep with random operators and signals.
+     */
+    private static String tree(Random random, int depth) {
+        if (depth == 0) return signalName(random.nextInt(NUM_SIGNALS));
+        return "(" + tree(random, depth - 1) + " " + OPERATORS[random.nextInt(OPERATORS.length)]
+                + " " + tree(random, depth - 1) + ")";
+    }
+
+    private static String signalName(int s) {
+        return String.valueOf((char) ('A' + s));
+    }
+
+}
@@ -0,0 +1,57 @@
+package Benchmarks;
+
+import Source.Signals;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Speed of HDLModuleReader.readModule() on generated sources, in reads per
+ * second. Every read parses the file again into a new HDLSim.Signals object.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ReadModuleBenchmark {
+
+    @Param({"100", "10000", "1000000"})
+    public int signals;
+
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void writeDesign() throws IOException {
+        dir = BenchmarkDesigns.writeDesign(signals);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteDesign() throws IOException {
+        BenchmarkDesigns.deleteDesign(dir);
+    }
+
+    @Benchmark
+    public Signals readModule() throws IOException {
+        return BenchmarkDesigns.readDesign(dir);
+    }
+
+}
@@ -0,0 +1,65 @@
+package Benchmarks;
+
+import Source.Signals;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Simulation speed of Signals.step() on every engine, in cycles per second.
+ * Nothing is logged, so only evaluation is measured.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class StepBenchmark {
+
+    @Param({"100", "1000", "10000", "100000", "1000000"})
+    public int signals;
+
+    @Param({"INTERPRETER", "CODEGEN", "EVENT", "PARALLEL"})
+    public Signals.Engine engine;
+
+    private Signals design;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Path dir = BenchmarkDesigns.writeDesign(signals);
+        try {
+            design = BenchmarkDesigns.readDesign(dir);
+        }
+        finally {
+            BenchmarkDesigns.deleteDesign(dir);
+        }
+        design.setEngine(engine);
+        design.build();
+    }
+
+    /**
+     * One operation is one clock cycle.
+     */
+    @Benchmark
+    public void step() {
+        design.step();
+    }
+
+}
@@ -0,0 +1,134 @@
+package UnitTests;
+
+import Source.AsyncTraceWriter;
+import Source.TraceWriter;
+import Exceptions.HDLException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Unit tests for HDLSim.AsyncTraceWriter
+ */
+class AsyncTraceWriterTest {
+
+    private static final int CAPACITY = 4;
+
+    /**
+     * Trace writer that records the first value of every cycle. Each write
+     * waits for RELEASE first, so tests can hold the writer thread back.
+     */
+    private static class RecordingWriter implements TraceWriter {
+        private final List<Integer> cycles = new ArrayList<>();
+        private final CountDownLatch release;
+        private final int failAt;
+        private volatile boolean closed = false;
+
+        RecordingWriter(CountDownLatch release, int failAt) {
+            this.release = release;
+            this.failAt = failAt;
+        }
+
+        @Override
+        public void writeCycle(int[] values) throws IOException {
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (cycles.size() == failAt) throw new IOException("Disk full");
+            cycles.add(values[0]);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public long checkpoint() {
+            return cycles.size();
+        }
+    }
+
+    @Test
+    public void wrapAroundTest() throws IOException {
+        // The ring wraps around many times, and every cycle arrives once and in order
+        RecordingWriter delegate = new RecordingWriter(new CountDownLatch(0), -1);
+        AsyncTraceWriter writer = new AsyncTraceWriter(delegate, 2, CAPACITY, AsyncTraceWriter.OverflowPolicy.BLOCK);
+        int[] values = new int[2];
+        for (int c = 0; c < 1000; c++) {
+            values[0] = c;
+            writer.writeCycle(values);
+        }
+        assertEquals(1000, writer.checkpoint());
+        writer.close();
+
+        assertTrue(delegate.closed);
+        for (int c = 0; c < 1000; c++) assertEquals(c, delegate.cycles.get(c));
+    }
+
+    @Test
+    public void blockTest() throws Exception {
+        // With the writer held back, a full ring makes the simulation wait instead of losing cycles
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingWriter delegate = new RecordingWriter(release, -1);
+        AsyncTraceWriter writer = new AsyncTraceWriter(delegate, 1, CAPACITY, AsyncTraceWriter.OverflowPolicy.BLOCK);
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            }
+            catch (InterruptedException ignored) { }
+            release.countDown();
+        });
+        releaser.start();
+        for (int c = 0; c < 3 * CAPACITY; c++) {
+            writer.writeCycle(new int[] {c});
+        }
+        writer.close();
+        releaser.join();
+
+        assertEquals(3 * CAPACITY, delegate.cycles.size());
+        for (int c = 0; c < 3 * CAPACITY; c++) assertEquals(c, delegate.cycles.get(c));
+    }
+
+    @Test
+    public void failTest() throws IOException {
+        // The writer thread takes cycle 0 and waits, leaving CAPACITY free snapshots
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingWriter delegate = new RecordingWriter(release, -1);
+        AsyncTraceWriter writer = new AsyncTraceWriter(delegate, 1, CAPACITY, AsyncTraceWriter.OverflowPolicy.FAIL);
+        for (int c = 0; c < CAPACITY; c++) {
+            writer.writeCycle(new int[] {c});
+        }
+        assertThrows(HDLException.class, () -> writer.writeCycle(new int[] {CAPACITY}));
+
+        // What was published is still written out on close
+        release.countDown();
+        writer.close();
+        assertTrue(delegate.closed);
+        assertEquals(CAPACITY, delegate.cycles.size());
+    }
+
+    @Test
+    public void writerFailureTest() throws IOException {
+        // An exception on the writer thread is reported on the simulation thread
+        RecordingWriter delegate = new RecordingWriter(new CountDownLatch(0), 2);
+        AsyncTraceWriter writer = new AsyncTraceWriter(delegate, 1, CAPACITY, AsyncTraceWriter.OverflowPolicy.BLOCK);
+        for (int c = 0; c < 3; c++) {
+            writer.writeCycle(new int[] {c});
+        }
+        IOException e = assertThrows(IOException.class, writer::close);
+        assertEquals("Disk full", e.getMessage());
+        assertFalse(delegate.closed);
+    }
+
+}
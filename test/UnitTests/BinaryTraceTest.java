@@ -0,0 +1,70 @@
+package UnitTests;
+
+import Source.BinaryTraceReader;
+import Source.BinaryTraceWriter;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Unit tests for HDLSim.BinaryTraceWriter and HDLSim.BinaryTraceReader
+ */
+class BinaryTraceTest {
+
+    /**
+     * Value of signal S on cycle C in the test traces. Mixes constant,
+     * counting, toggling and negative values.
+     */
+    private int valueAt(int s, int c) {
+        return switch (s) {
+            case 0 -> 7;
+            case 1 -> c;
+            case 2 -> c % 2 == 0 ? -1 : Integer.MAX_VALUE;
+            default -> (c / 1000) * -3;
+        };
+    }
+
+    @Test
+    public void roundTripTest() throws IOException {
+        Path path = Files.createTempFile("trace", ".bin");
+        try {
+            List<String> names = Arrays.asList("TERMINATE", "/count", "/toggle", "/sub/step");
+            int cycles = 3 * BinaryTraceWriter.CHUNK_CYCLES + 17;
+
+            BinaryTraceWriter writer = new BinaryTraceWriter(names, path);
+            for (int c = 0; c < cycles; c++) {
+                int[] values = new int[names.size()];
+                for (int s = 0; s < names.size(); s++) values[s] = valueAt(s, c);
+                writer.writeCycle(values);
+            }
+            writer.close();
+
+            try (BinaryTraceReader reader = new BinaryTraceReader(path)) {
+                assertEquals(names, reader.getSignalNames());
+                assertEquals(cycles, reader.getCycles());
+
+                // Whole trace, and a range that crosses a chunk boundary
+                for (int s = 0; s < names.size(); s++) {
+                    int[] all = reader.read(names.get(s), 0, cycles);
+                    int from = BinaryTraceWriter.CHUNK_CYCLES - 5;
+                    int[] part = reader.read(names.get(s), from, from + 10);
+                    for (int c = 0; c < cycles; c++) assertEquals(valueAt(s, c), all[c]);
+                    for (int c = 0; c < 10; c++) assertEquals(valueAt(s, from + c), part[c]);
+                }
+            }
+        }
+        finally {
+            new File(path.toString()).delete();
+        }
+    }
+
+}
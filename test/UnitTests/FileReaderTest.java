@@ -1,9 +1,16 @@
 package UnitTests;
 
 import Exceptions.HDLException;
+import Source.HDLModuleReader;
+import Source.ModuleFileCache;
+import Source.Signals;
 import org.junit.jupiter.api.Test;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -17,4 +24,104 @@ public class FileReaderTest {
         System.out.println(processed);
     }
 
+    @Test
+    public void templateCacheTest() throws IOException {
+        Path dir = Files.createTempDirectory("hdl");
+        try {
+            Files.writeString(dir.resolve("main.txt"), String.join("\n",
+                    "module main();",
+                    "reg A = 0;",
+                    "wire B;",
+                    "wire C;",
+                    "A <= C;",
+                    "submod mask m0 (.in(A), .out(B));",
+                    "submod mask m1 (.in(B), .out(C));",
+                    "TERMINATE A == 0xAB;"));
+            Files.writeString(dir.resolve("mask.txt"), String.join("\n",
+                    "module mask (input in, output out);",
+                    "out = (in | 0xAB) & 0xFF;"));
+
+            Signals signals = new Signals();
+            ModuleFileCache cache = new ModuleFileCache(dir.toString());
+            new HDLModuleReader(signals, cache, "main.txt", "/").readModule();
+            signals.build();
+
+            // Each file is parsed once, however many instances it has
+            assertEquals(2, cache.size());
+            assertEquals("((/m1/in | 171) & 255)", signals.getExpressions().get("/m1/out").toString());
+            signals.step();
+            assertEquals(0xAB, signals.getValue("/A"));
+        }
+        finally {
+            for (File f : dir.toFile().listFiles()) f.delete();
+            dir.toFile().delete();
+        }
+    }
+
+    /**
+     * Writes a design to DIR whose main module instantiates three modules,
+     * which between them instantiate three more, so that preload() parses
+     * several files in each round.
+     */
+    private void writeHierarchy(Path dir) throws IOException {
+        Files.writeString(dir.resolve("main.txt"), String.join("\n",
+                "module main();",
+                "reg A = 0;",
+                "wire B;",
+                "wire C;",
+                "wire D;",
+                "A <= (B + C) + D;",
+                "submod c c0 (.in(A), .out(B));",
+                "submod a a0 (.in(A), .out(C));",
+                "submod b b0 (.in(A), .out(D));",
+                "TERMINATE (A & ~255) != 0;"));
+        String[][] levels = {{"a", "z"}, {"b", "x"}, {"c", "y"}, {"x", null}, {"y", null}, {"z", null}};
+        for (String[] level : levels) {
+            String body = level[1] == null
+                    ? "out = in ^ " + (int) level[0].charAt(0) + ";"
+                    : "wire t;\nsubmod " + level[1] + " s0 (.in(in), .out(t));\nout = t + 1;";
+            Files.writeString(dir.resolve(level[0] + ".txt"), String.join("\n",
+                    "module " + level[0] + " (input in, output out);", body));
+        }
+    }
+
+    private Signals readHierarchy(Path dir, boolean preload) throws IOException {
+        Signals signals = new Signals();
+        ModuleFileCache cache = new ModuleFileCache(dir.toString());
+        if (preload) cache.preload("main.txt");
+        new HDLModuleReader(signals, cache, "main.txt", "/").readModule();
+        signals.build();
+        return signals;
+    }
+
+    @Test
+    public void preloadTest() throws IOException {
+        Path dir = Files.createTempDirectory("hdl");
+        try {
+            writeHierarchy(dir);
+            Signals plain = readHierarchy(dir, false);
+            Signals preloaded = readHierarchy(dir, true);
+
+            // Preloading parses files out of order, but the netlist comes out the same
+            assertEquals(plain.getSlots(), preloaded.getSlots());
+            assertEquals(plain.getWireOrder(), preloaded.getWireOrder());
+            assertEquals(plain.getExpressions().toString(), preloaded.getExpressions().toString());
+            assertEquals(plain.stepToTerminate(), preloaded.stepToTerminate());
+            assertEquals(plain.getValues(), preloaded.getValues());
+
+            // With several invalid files in one round, the first by name is reported every time
+            Files.writeString(dir.resolve("y.txt"), "module y (input in, output out);\nout = in + ;");
+            Files.writeString(dir.resolve("x.txt"), "module x (input in, output out);\nout = ;");
+            for (int i = 0; i < 20; i++) {
+                HDLException e = assertThrows(HDLException.class,
+                        () -> new ModuleFileCache(dir.toString()).preload("main.txt"));
+                assertTrue(e.getMessage().startsWith("x.txt:"), e.getMessage());
+            }
+        }
+        finally {
+            for (File f : dir.toFile().listFiles()) f.delete();
+            dir.toFile().delete();
+        }
+    }
+
 }
@@ -0,0 +1,89 @@
+package UnitTests;
+
+import Source.LaneSimulator;
+import Source.Signals;
+import Exceptions.HDLException;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Unit tests for HDLSim.LaneSimulator class
+ */
+class LaneSimulatorTest {
+
+    private static final int LANES = 16;
+
+    /**
+     * Creates a HDLSim.Signals object that counts A up by STEP until it passes
+     * 63, so lanes with different starting values terminate on different cycles.
+     */
+    private Signals makeCountingSignals(int a, int step) throws HDLException {
+        Signals signals = new Signals();
+        signals.addReg("/A", a);
+        signals.addReg("/step", step);
+        signals.addReg("/n", 0);
+        signals.addWire("/next");
+        signals.addExpression("/A", "/next");
+        signals.addExpression("/step", "/step");
+        signals.addExpression("/n", "(/n + 1)");
+        signals.addExpression("/next", "(/A + /step)");
+        signals.addTerminate("((/A & ~63) != 0)");
+        return signals;
+    }
+
+    @Test
+    public void batchTest() throws IOException {
+        Path dir = Files.createTempDirectory("lanes");
+        try {
+            List<HashMap<String, Integer>> laneRegValues = new ArrayList<>();
+            for (int l = 0; l < LANES; l++) {
+                HashMap<String, Integer> regValues = new HashMap<>();
+                regValues.put("/A", l);
+                regValues.put("/step", 1 + l % 5);
+                laneRegValues.add(regValues);
+            }
+
+            Signals signals = makeCountingSignals(0, 1);
+            signals.build();
+            LaneSimulator lanes = new LaneSimulator(signals, laneRegValues);
+            lanes.run(dir.resolve("lanes").toFile());
+            // Lanes finish at different cycles, so the finished ones were compacted away
+            assertTrue(lanes.getEvaluatedLanes() < LANES);
+
+            // Each lane ends the same as a single run that starts from its values
+            for (int l = 0; l < LANES; l++) {
+                Signals single = makeCountingSignals(l, 1 + l % 5);
+                single.setOutputDir(dir.resolve("single_" + l).toString());
+                single.build();
+                single.stepToTerminate();
+                single.dumpFinalOutput();
+                single.cleanUp();
+                assertEquals(Files.readString(dir.resolve("single_" + l + "/result.txt")),
+                        Files.readString(dir.resolve("lanes/lane_" + l + "/result.txt")));
+            }
+        }
+        finally {
+            delete(dir.toFile());
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) delete(child);
+        }
+        file.delete();
+    }
+
+}
@@ -0,0 +1,75 @@
+package UnitTests;
+
+import Source.Expression;
+import Source.ModuleFileCache;
+import Exceptions.HDLParseException;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Unit tests for HDLSim.Lexer, through the parsers that use it
+ */
+class LexerTest {
+
+    /**
+     * Parses a module file holding SOURCE and returns the message of the
+     * HDLParseException it fails with.
+     */
+    private String fileError(String source) throws IOException {
+        Path dir = Files.createTempDirectory("hdl");
+        try {
+            Files.writeString(dir.resolve("main.txt"), source);
+            return assertThrows(HDLParseException.class,
+                    () -> new ModuleFileCache(dir.toString()).get("main.txt")).getMessage();
+        }
+        finally {
+            for (File f : dir.toFile().listFiles()) f.delete();
+            dir.toFile().delete();
+        }
+    }
+
+    @Test
+    public void errorPositionTest() throws IOException {
+        // Lines and columns count from 1, and point at the start of the offending token
+        assertEquals("main.txt:3:10: Unexpected ';'",
+                fileError("module main();\nreg A = 0;\nA <= A + ;\nTERMINATE A == 2;"));
+        assertEquals("main.txt:4:13: Unexpected '<'",
+                fileError("module main();\nreg A = 0;\nA <= A + 1;\nTERMINATE A < 2;"));
+        // Comments and blank lines still count
+        assertEquals("main.txt:5:6: Unexpected '#'",
+                fileError("module main(); // top\n\nreg A = 0;\n// A <= 1;\nA <= #;"));
+    }
+
+    @Test
+    public void numberLimitTest() {
+        // Decimal constants must fit in a signed int, so only the negative limit has one more
+        assertEquals(Integer.MIN_VALUE, new Expression("-2147483648").eval());
+        assertEquals(Integer.MAX_VALUE, new Expression("2147483647").eval());
+        assertThrows(HDLParseException.class, () -> new Expression("2147483648"));
+        assertThrows(HDLParseException.class, () -> new Expression("-2147483649"));
+
+        // Hex and binary constants are 32 bit patterns
+        assertEquals(-1, new Expression("0xFFFFFFFF").eval());
+        assertEquals(Integer.MIN_VALUE, new Expression("0b10000000000000000000000000000000").eval());
+        assertThrows(HDLParseException.class, () -> new Expression("0x100000000"));
+        assertThrows(HDLParseException.class, () -> new Expression("0x1FFFFFFFF"));
+
+        // A prefix needs digits after it, and digits must belong to the radix
+        assertThrows(HDLParseException.class, () -> new Expression("0x"));
+        assertThrows(HDLParseException.class, () -> new Expression("0b"));
+        assertThrows(HDLParseException.class, () -> new Expression("0b102"));
+        assertThrows(HDLParseException.class, () -> new Expression("12ab"));
+
+        HDLParseException e = assertThrows(HDLParseException.class, () -> new Expression("(A < 1)"));
+        assertTrue(e.getMessage().startsWith("Unexpected '<' at column 4"), e.getMessage());
+    }
+
+}
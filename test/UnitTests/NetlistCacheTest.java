@@ -0,0 +1,111 @@
+package UnitTests;
+
+import Source.HDLModuleReader;
+import Source.ModuleFileCache;
+import Source.NetlistCache;
+import Source.Signals;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Unit tests for HDLSim.NetlistCache
+ */
+class NetlistCacheTest {
+
+    /**
+     * Writes a design with a submodule that adds STEP to DIR.
+     */
+    private static void writeDesign(Path dir, int step) throws IOException {
+        Files.writeString(dir.resolve("main.txt"), String.join("\n",
+                "module main();",
+                "reg A = 0;",
+                "wire B;",
+                "wire C;",
+                "B = A ^ 5;",
+                "A <= C;",
+                "submod adder a0 (.in(A), .out(C));",
+                "TERMINATE (A & ~15) != 0;"));
+        Files.writeString(dir.resolve("adder.txt"), String.join("\n",
+                "module adder (input in, output out);",
+                "out = in + " + step + ";"));
+    }
+
+    /**
+     * Runs the design in DIR to termination and returns its result.txt. The
+     * netlist is loaded from CACHE if it is valid, and saved to it otherwise.
+     * LOADED says which of the two is expected.
+     */
+    private static String run(Path dir, NetlistCache cache, boolean loaded) throws IOException {
+        Signals signals = new Signals();
+        signals.setOutputDir(dir.resolve("out").toString());
+        assertEquals(loaded, cache.load(signals));
+        if (loaded) {
+            signals.build();
+        }
+        else {
+            ModuleFileCache modules = new ModuleFileCache(dir.toString());
+            new HDLModuleReader(signals, modules, "main.txt", "/").readModule();
+            signals.build();
+            cache.save(signals, modules.getFileNames());
+        }
+        signals.stepToTerminate();
+        signals.dumpFinalOutput();
+        signals.cleanUp();
+        return Files.readString(dir.resolve("out/result.txt"));
+    }
+
+    @Test
+    public void roundTripTest() throws IOException {
+        Path dir = Files.createTempDirectory("hdl");
+        try {
+            writeDesign(dir, 3);
+            NetlistCache cache = new NetlistCache(dir.toFile(), dir.resolve("netlist.bin").toFile(), "");
+            String built = run(dir, cache, false);
+            String loaded = run(dir, cache, true);
+            assertEquals(built, loaded);
+        }
+        finally {
+            delete(dir.toFile());
+        }
+    }
+
+    @Test
+    public void invalidationTest() throws IOException {
+        Path dir = Files.createTempDirectory("hdl");
+        try {
+            writeDesign(dir, 3);
+            NetlistCache cache = new NetlistCache(dir.toFile(), dir.resolve("netlist.bin").toFile(), "");
+            String before = run(dir, cache, false);
+
+            // Editing a submodule file invalidates the cache, and the edit shows in the result
+            writeDesign(dir, 7);
+            String after = run(dir, cache, false);
+            assertNotEquals(before, after);
+            assertEquals(after, run(dir, cache, true));
+
+            // So does a different configuration
+            NetlistCache other = new NetlistCache(dir.toFile(), dir.resolve("netlist.bin").toFile(), "optimized");
+            assertFalse(other.load(new Signals()));
+        }
+        finally {
+            delete(dir.toFile());
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) delete(child);
+        }
+        file.delete();
+    }
+
+}
@@ -0,0 +1,72 @@
+package UnitTests;
+
+import Source.Signals;
+import Exceptions.HDLException;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Unit tests for HDLSim.NetlistCompiler class, run through the CODEGEN engine
+ */
+class NetlistCompilerTest {
+
+    // Regs in the large design. Enough that slot indices and constants go past
+    // the short range and the constant pool of one class.
+    private static final int REG_COUNT = 40_000;
+    // Regs summed by the one large wire, far more nodes than fit in one method
+    private static final int SUM_WIDTH = 16_000;
+
+    /**
+     * Creates a HDLSim.Signals object with REG_COUNT regs, each driven by the
+     * one before it and a distinct constant outside the short range, and a
+     * wire summing the first SUM_WIDTH of them.
+     */
+    private Signals makeLargeSignals() throws HDLException {
+        Signals signals = new Signals();
+        signals.addReg("t", 0);
+        signals.addExpression("t", "(t + 1)");
+        for (int i = 0; i < REG_COUNT; i++) {
+            signals.addReg("r" + i, i);
+            String previous = i == 0 ? "t" : "r" + (i - 1);
+            signals.addExpression("r" + i, "((" + previous + " ^ " + (100_000 + 7 * i) + ") + r" + i + ")");
+        }
+        signals.addWire("sum");
+        signals.addExpression("sum", sumOf(0, SUM_WIDTH));
+        signals.addTerminate("(t == 5)");
+        return signals;
+    }
+
+    /**
+     * Returns a balanced expression summing regs FROM up to TO and the negation of every other one.
+     */
+    private static String sumOf(int from, int to) {
+        if (to - from == 1) {
+            return from % 2 == 0 ? "r" + from : "~r" + from;
+        }
+        int mid = (from + to) / 2;
+        return "(" + sumOf(from, mid) + " + " + sumOf(mid, to) + ")";
+    }
+
+    @Test
+    public void largeDesignTest() throws HDLException {
+        Signals interpreted = makeLargeSignals();
+        interpreted.setEngine(Signals.Engine.INTERPRETER);
+        interpreted.build();
+
+        Signals compiled = makeLargeSignals();
+        compiled.setEngine(Signals.Engine.CODEGEN);
+        compiled.build();
+        // Compiling falls back to the interpreter on failure, which would hide a bug here
+        assertEquals(Signals.Engine.CODEGEN, compiled.getEngine());
+
+        for (int i = 0; i < 5; i++) {
+            interpreted.step();
+            compiled.step();
+            assertEquals(interpreted.getValues(), compiled.getValues());
+        }
+    }
+
+}
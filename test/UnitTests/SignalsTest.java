@@ -1,14 +1,27 @@
 package UnitTests;
 
+import Source.Checkpoint;
+import Source.HDLModuleReader;
+import Source.ModuleFileCache;
+import Source.NetlistOptimizer;
+import Source.Profiler;
 import Source.Signals;
 import Exceptions.HDLDuplicateSignalException;
 import Exceptions.HDLException;
+import Exceptions.HDLNonTerminationException;
 import Exceptions.HDLParseException;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -218,6 +231,22 @@ class SignalsTest {
         }
     }
 
+    @Test
+    public void levelBuildTest() {
+        try {
+            Signals signals = makeSignals2();
+            signals.build();
+
+            // Wire order is D, E, B, C, A, TERMINATE and every wire depends on the one before it
+            int[] expected = {0, 1, 2, 3, 4, 5};
+            assertArrayEquals(expected, signals.getWireLevels());
+        }
+        catch (HDLException e) {
+            e.printStackTrace();
+            fail("An HDLException was thrown");
+        }
+    }
+
     @Test // exception test
     public void cycleDetectionTest() {
         try {
@@ -238,7 +267,493 @@ class SignalsTest {
 
             fail("No exception was thrown, but one was expected.");
         } catch (HDLException e) {
-            assertEquals("Cycle detected in wire dependencies!", e.getMessage());
+            assertEquals("Cycle detected in wire dependencies! Wires in combinational loops: {A, B, C}", e.getMessage());
+        } catch (Exception e) {
+            fail("Wrong exception was thrown.");
+        }
+    }
+
+    /**
+     * Creates a HDLSim.Signals object full of foldable and repeated logic
+     */
+    private Signals makeRedundantSignals() throws HDLException {
+        Signals signals = new Signals();
+        signals.addReg("count", 0);
+        signals.addReg("acc", 3);
+        signals.addWire("A");
+        signals.addWire("B");
+        signals.addWire("C");
+        signals.addExpression("count", "(count + (1 + 0))");
+        signals.addExpression("acc", "((acc ^ count) + (count & acc))");
+        signals.addExpression("A", "((acc & count) | 0)");
+        signals.addExpression("B", "(((count & acc) - (acc ^ count)) ^ (count ^ count))");
+        signals.addExpression("C", "((~~acc - (acc ^ count)) + (2 & 1))");
+        signals.addTerminate("(count == 12)");
+        return signals;
+    }
+
+    @Test
+    public void optimizerTest() {
+        try {
+            Signals plain = makeRedundantSignals();
+            Signals optimized = makeRedundantSignals();
+            NetlistOptimizer optimizer = new NetlistOptimizer(optimized);
+            optimizer.optimize();
+            plain.build();
+            optimized.build();
+
+            assertTrue(optimizer.getNodesAfter() < optimizer.getNodesBefore());
+            // (acc & count) is held by A, (acc ^ count) needs a hidden wire
+            assertEquals(2, optimizer.getSharedCount());
+            assertEquals(1, optimizer.getHiddenWireCount());
+            // Hidden wires are never part of the output
+            assertEquals(plain.getLexicographicalOrder(), optimized.getLexicographicalOrder());
+
+            for (int cycle = 0; cycle < 12; cycle++) {
+                assertEquals(plain.getValues(), optimized.getValues());
+                plain.step();
+                optimized.step();
+            }
+        }
+        catch (HDLException e) {
+            e.printStackTrace();
+            fail("An HDLException was thrown");
+        }
+    }
+
+    @Test
+    public void aliasTest() {
+        try {
+            Signals signals = new Signals();
+            signals.addReg("count", 0);
+            signals.addWire("in");
+            signals.addWire("sub/in");
+            signals.addWire("sub/out");
+            signals.addWire("out");
+            signals.addExpression("count", "(out + 1)");
+            signals.addExpression("in", "count");
+            signals.addExpression("sub/in", "in");
+            signals.addExpression("sub/out", "(sub/in + 1)");
+            signals.addExpression("out", "sub/out");
+            signals.addTerminate("(count == 6)");
+            signals.build();
+
+            // in and sub/in read count's slot, out reads sub/out's
+            assertEquals(3, signals.getAliases().size());
+            assertEquals("count", signals.getAliases().get("sub/in"));
+            assertEquals("sub/out", signals.getAliases().get("out"));
+            assertEquals(new ArrayList<>(Arrays.asList("TERMINATE", "sub/out")), signals.getWireOrder());
+
+            signals.step();
+            assertEquals(2, signals.getValue("count"));
+            assertEquals(2, signals.getValues().get("sub/in"));
+            assertEquals(3, signals.getValues().get("out"));
+            assertEquals(6, signals.getValues().size());
+        }
+        catch (HDLException e) {
+            e.printStackTrace();
+            fail("An HDLException was thrown");
+        }
+    }
+
+    @Test // exception test
+    public void aliasCycleTest() {
+        try {
+            Signals signals = new Signals();
+            signals.addWire("A");
+            signals.addWire("B");
+            signals.addWire("C");
+            signals.addExpression("A", "B");
+            signals.addExpression("B", "A");
+            signals.addExpression("C", "A");
+            signals.addTerminate("C");
+            signals.build();
+
+            fail("No exception was thrown, but one was expected.");
+        } catch (HDLException e) {
+            assertEquals("Cycle detected in wire dependencies! Wires in combinational loops: {A, B}", e.getMessage());
+        } catch (Exception e) {
+            fail("Wrong exception was thrown.");
+        }
+    }
+
+    @Test
+    public void pruneTest() {
+        try {
+            Signals signals = new Signals();
+            signals.addReg("count", 0);
+            signals.addReg("acc", 0);
+            signals.addReg("unused", 5);
+            signals.addWire("next");
+            signals.addWire("twice");
+            signals.addExpression("count", "next");
+            signals.addExpression("next", "(count + 1)");
+            signals.addExpression("acc", "(acc + twice)");
+            signals.addExpression("twice", "(count + count)");
+            signals.addExpression("unused", "(unused + acc)");
+            signals.addTerminate("(count == 4)");
+
+            // unused depends on acc but nothing observed depends on unused
+            assertEquals(1, signals.pruneToObserved(List.of("acc")));
+            signals.build();
+            signals.step();
+            signals.step();
+
+            assertEquals(new ArrayList<>(Arrays.asList("TERMINATE", "acc")), signals.getLexicographicalOrder());
+            assertEquals(2, signals.getValue("acc"));
+            assertEquals(2, signals.getValue("count"));
+        }
+        catch (HDLException e) {
+            e.printStackTrace();
+            fail("An HDLException was thrown");
+        }
+    }
+
+    /**
+     * Creates a HDLSim.Signals object that never terminates. Its state first
+     * repeats after cycle 5, with a period of 4.
+     */
+    private Signals makeLoopingSignals(String terminate) throws HDLException {
+        Signals signals = new Signals();
+        signals.addReg("t", 0);
+        signals.addReg("c", 0);
+        signals.addExpression("t", "(t + (t != 5))");
+        signals.addExpression("c", "((c + 1) & 3)");
+        signals.addTerminate(terminate);
+        return signals;
+    }
+
+    @Test // exception test
+    public void loopCheckTest() {
+        try {
+            Signals signals = makeLoopingSignals("(t == 9)");
+            signals.setLoopCheck(true);
+            signals.build();
+            signals.stepToTerminate();
+
+            fail("No exception was thrown, but one was expected.");
+        } catch (HDLNonTerminationException e) {
+            assertEquals("Non-terminating, period 4 from cycle 5", e.getMessage());
+            assertEquals(5, e.getStartCycle());
+            assertEquals(4, e.getPeriod());
+        } catch (Exception e) {
+            fail("Wrong exception was thrown.");
+        }
+    }
+
+    @Test
+    public void cycleLimitTest() {
+        try {
+            Signals signals = makeLoopingSignals("(t == 5)");
+            signals.setLoopCheck(true);
+            signals.setCycleLimit(5);
+            signals.build();
+            assertEquals(1, signals.stepToTerminate());
+            assertEquals(1, signals.getValue("c"));
+
+            signals = makeLoopingSignals("(t == 5)");
+            signals.setCycleLimit(4);
+            signals.build();
+            signals.stepToTerminate();
+            fail("No exception was thrown, but one was expected.");
+        } catch (HDLNonTerminationException e) {
+            assertEquals("Non-terminating, TERMINATE is still 0 after the limit of 4 cycles", e.getMessage());
+        } catch (Exception e) {
+            fail("Wrong exception was thrown.");
+        }
+    }
+
+    @Test
+    public void expressionEvaluationsTest() throws HDLException {
+        Signals signals = makeLoopingSignals("(t == 5)");
+        signals.setSampleInterval(2);
+        signals.build();
+        assertEquals(0, signals.getExpressionEvaluations());
+        signals.step();
+        long perCycle = signals.getExpressionEvaluations();
+        assertTrue(perCycle >= 2);
+        assertEquals(1, signals.stepToTerminate());
+        assertEquals(5 * perCycle, signals.getExpressionEvaluations());
+
+        // The EVENT engine evaluates every reg, and only the wires whose inputs changed
+        signals = makeLoopingSignals("(t == 5)");
+        signals.setEngine(Signals.Engine.EVENT);
+        signals.build();
+        signals.stepToTerminate();
+        assertTrue(signals.getExpressionEvaluations() <= 5 * perCycle);
+        assertTrue(signals.getExpressionEvaluations() >= 5 * 2);
+    }
+
+    /**
+     * Creates a HDLSim.Signals object whose wires change and then revert: pulse
+     * is 1 for one cycle in four, so it and A change and change back; mid
+     * changes every cycle while same, computed from it, never does.
+     */
+    private Signals makeRevertingSignals() throws HDLException {
+        Signals signals = new Signals();
+        signals.addReg("t", 0);
+        signals.addReg("A", 0);
+        signals.addWire("pulse");
+        signals.addWire("mid");
+        signals.addWire("same");
+        signals.addWire("echo");
+        signals.addExpression("t", "(t + 1)");
+        signals.addExpression("A", "pulse");
+        signals.addExpression("pulse", "((t & 3) == 1)");
+        signals.addExpression("mid", "(t + pulse)");
+        signals.addExpression("same", "((mid - t) - pulse)");
+        signals.addExpression("echo", "((A ^ pulse) + same)");
+        signals.addTerminate("(t == 10)");
+        return signals;
+    }
+
+    /**
+     * Steps INTERPRETED and EVENT to termination together and checks that every
+     * signal has the same value after every cycle.
+     */
+    private static void assertSameRun(Signals interpreted, Signals event) {
+        interpreted.build();
+        event.setEngine(Signals.Engine.EVENT);
+        event.build();
+        assertEquals(interpreted.getValues(), event.getValues());
+        while (interpreted.getValue("TERMINATE") == 0) {
+            interpreted.step();
+            event.step();
+            assertEquals(interpreted.getValues(), event.getValues());
+        }
+        assertTrue(event.getValue("TERMINATE") != 0);
+    }
+
+    @Test
+    public void eventEngineTest() throws IOException {
+        assertSameRun(makeRevertingSignals(), makeRevertingSignals());
+
+        File[] designs = new File("test/IntegrationTests").listFiles(File::isDirectory);
+        assertNotNull(designs);
+        assertTrue(designs.length > 0);
+        for (File design : designs) {
+            Signals[] runs = new Signals[2];
+            for (int i = 0; i < runs.length; i++) {
+                runs[i] = new Signals();
+                new HDLModuleReader(runs[i], new ModuleFileCache(new File(design, "src").getPath()), "main.txt", "/")
+                        .readModule();
+            }
+            assertSameRun(runs[0], runs[1]);
+        }
+    }
+
+    @Test
+    public void profileTest() throws HDLException {
+        for (Signals.Engine engine : Signals.Engine.values()) {
+            Signals plain = makeSignals2();
+            plain.setEngine(engine);
+            plain.build();
+
+            Signals profiled = makeSignals2();
+            profiled.setEngine(engine);
+            Profiler profiler = new Profiler(2);
+            profiled.setProfiler(profiler);
+            profiled.build();
+            for (int i = 0; i < 5; i++) {
+                plain.step();
+                profiled.step();
+                assertEquals(plain.getValues(), profiled.getValues());
+            }
+            assertEquals(3, profiler.getSampledCycles());
+            assertEquals(plain.getExpressionEvaluations(), profiled.getExpressionEvaluations());
+        }
+    }
+
+    @Test
+    public void profileSharedTest() throws HDLException {
+        for (Signals.Engine engine : Signals.Engine.values()) {
+            Signals signals = new Signals();
+            signals.addReg("A", 0);
+            signals.addReg("B", 1);
+            signals.addWire("/m0/out");
+            signals.addWire("/m1/sub/out");
+            signals.addExpression("A", "(A + 1)");
+            signals.addExpression("B", "(B + 3)");
+            signals.addExpression("/m0/out", "((A + B) & 7)");
+            signals.addExpression("/m1/sub/out", "((A + B) | 8)");
+            signals.addTerminate("(A == 20)");
+            new NetlistOptimizer(signals).optimize();
+            signals.setEngine(engine);
+            Profiler profiler = new Profiler(1);
+            signals.setProfiler(profiler);
+            signals.build();
+            for (int i = 0; i < 10; i++) {
+                signals.step();
+            }
+
+            // (A + B) is computed once in a hidden wire that both outputs read
+            HashMap<String, Integer> slots = signals.getSlots();
+            int sharedSlot = slots.get("$shared0");
+            assertEquals(10, profiler.getCount(sharedSlot));
+            long shared = profiler.getNanos(sharedSlot);
+            long m0 = profiler.getNanos(slots.get("/m0/out"));
+            long m1 = profiler.getNanos(slots.get("/m1/sub/out"));
+            assertEquals(m0 + shared / 2.0, profiler.getPrefixNanos("/m0/"), 1e-6);
+            assertEquals(m1 + shared / 2.0, profiler.getPrefixNanos("/m1/"), 1e-6);
+            assertEquals(m1 + shared / 2.0, profiler.getPrefixNanos("/m1/sub/"), 1e-6);
+
+            long total = 0;
+            for (int slot : new HashSet<>(slots.values())) {
+                total += profiler.getNanos(slot);
+            }
+            assertEquals(total, profiler.getPrefixNanos("/"), 1e-6);
+        }
+    }
+
+    /**
+     * Creates a HDLSim.Signals object where A only updates every fourth cycle and B never holds
+     */
+    private Signals makeEnabledSignals() throws HDLException {
+        Signals signals = new Signals();
+        signals.addReg("t", 0);
+        signals.addReg("A", 5);
+        signals.addReg("B", 0);
+        signals.addWire("en");
+        signals.addExpression("t", "(t + 1)");
+        signals.addExpression("en", "((t & 3) == 3)");
+        signals.addExpression("A", "(((A + 3) & (0 - en)) | (A & ~(0 - en)))");
+        signals.addExpression("B", "(B + 1)");
+        signals.addTerminate("(t == 12)");
+        return signals;
+    }
+
+    @Test
+    public void regEnableTest() throws HDLException {
+        for (Signals.Engine engine : Signals.Engine.values()) {
+            Signals plain = makeEnabledSignals();
+            plain.setEngine(engine);
+            plain.setInferEnables(false);
+            plain.build();
+            plain.stepToTerminate();
+
+            Signals enabled = makeEnabledSignals();
+            enabled.setEngine(engine);
+            enabled.build();
+            enabled.stepToTerminate();
+            assertEquals(plain.getValues(), enabled.getValues());
+            assertEquals(0, plain.getSkippedRegEvaluations());
+
+            if (engine == Signals.Engine.INTERPRETER || engine == Signals.Engine.EVENT) {
+                // Only A has an enable, and it is 0 in 9 of the 12 cycles
+                assertEquals(1, enabled.getEnabledRegCount());
+                assertEquals(9, enabled.getSkippedRegEvaluations());
+                assertEquals(plain.getExpressionEvaluations() - 9, enabled.getExpressionEvaluations());
+            }
+        }
+    }
+
+    /**
+     * Creates a HDLSim.Signals object where A holds in 3 of every 4 cycles, C
+     * only in 1 of every 1024, and D has an enable that is not much smaller
+     * than its expression.
+     */
+    private Signals makeRareEnableSignals() throws HDLException {
+        Signals signals = new Signals();
+        signals.addReg("t", 0);
+        signals.addReg("A", 5);
+        signals.addReg("C", 1);
+        signals.addReg("D", 2);
+        signals.addWire("en");
+        signals.addWire("rare");
+        signals.addExpression("t", "(t + 1)");
+        signals.addExpression("en", "((t & 3) == 3)");
+        signals.addExpression("rare", "((t & 1023) != 7)");
+        signals.addExpression("A", "(((A + 3) & (0 - en)) | (A & ~(0 - en)))");
+        signals.addExpression("C", "(((C + 5) & (0 - rare)) | (C & ~(0 - rare)))");
+        signals.addExpression("D", "(D ^ ((t + 3) & (t | 5)))");
+        signals.addTerminate("(t == 3000)");
+        return signals;
+    }
+
+    @Test
+    public void regEnableReviewTest() throws HDLException {
+        for (Signals.Engine engine : new Signals.Engine[] {Signals.Engine.INTERPRETER, Signals.Engine.EVENT}) {
+            Signals plain = makeRareEnableSignals();
+            plain.setEngine(engine);
+            plain.setInferEnables(false);
+            plain.build();
+            plain.stepToTerminate();
+
+            Signals enabled = makeRareEnableSignals();
+            enabled.setEngine(engine);
+            enabled.build();
+            // D's enable would be most of its expression, so only A and C get one
+            assertEquals(2, enabled.getEnabledRegCount());
+            for (int i = 0; i < 1024; i++) enabled.step();
+            // C held once in the first 1024 cycles, which does not pay for its enable
+            assertEquals(1, enabled.getEnabledRegCount());
+            enabled.stepToTerminate();
+            assertEquals(plain.getValues(), enabled.getValues());
+            assertEquals(1, enabled.getEnabledRegCount());
+        }
+    }
+
+    @Test
+    public void checkpointTest() throws IOException {
+        Path path = Files.createTempFile("checkpoint", ".bin");
+        try {
+            Signals signals = makeSignals2();
+            signals.setCheckpoint(new Checkpoint(path), 0, false);
+            signals.build();
+            signals.step();
+            signals.step();
+            signals.saveCheckpoint();
+            signals.step();
+
+            Signals resumed = makeSignals2();
+            resumed.setCheckpoint(new Checkpoint(path), 0, true);
+            resumed.build();
+            assertEquals(2, resumed.getCycle());
+            resumed.step();
+            assertEquals(signals.getValues(), resumed.getValues());
+
+            // Enables keep working after a resume, past the first review of how often they hold
+            Signals enabled = makeEnabledSignals();
+            enabled.setCheckpoint(new Checkpoint(path), 0, false);
+            enabled.build();
+            for (int i = 0; i < 5000; i++) enabled.step();
+            enabled.saveCheckpoint();
+            long skippedBefore = enabled.getSkippedRegEvaluations();
+            for (int i = 0; i < 2000; i++) enabled.step();
+
+            Signals resumedEnabled = makeEnabledSignals();
+            resumedEnabled.setCheckpoint(new Checkpoint(path), 0, true);
+            resumedEnabled.build();
+            assertEquals(5000, resumedEnabled.getCycle());
+            assertEquals(1, resumedEnabled.getEnabledRegCount());
+            for (int i = 0; i < 2000; i++) resumedEnabled.step();
+            assertEquals(1, resumedEnabled.getEnabledRegCount());
+            assertEquals(enabled.getValues(), resumedEnabled.getValues());
+            // A holds in 3 of every 4 cycles
+            assertEquals(1500, resumedEnabled.getSkippedRegEvaluations());
+            assertEquals(enabled.getSkippedRegEvaluations(), skippedBefore + resumedEnabled.getSkippedRegEvaluations());
+        }
+        catch (HDLException e) {
+            e.printStackTrace();
+            fail("An HDLException was thrown");
+        }
+        finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test // exception test
+    public void pruneUndeclaredTest() {
+        try {
+            Signals signals = new Signals();
+            signals.addReg("A", 0);
+            signals.addExpression("A", "(A + 1)");
+            signals.addTerminate("(A == 2)");
+            signals.pruneToObserved(List.of("B"));
+
+            fail("No exception was thrown, but one was expected.");
+        } catch (HDLException e) {
+            assertEquals("Observed signal B has not been declared!", e.getMessage());
         } catch (Exception e) {
             fail("Wrong exception was thrown.");
         }
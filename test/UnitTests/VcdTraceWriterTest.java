@@ -0,0 +1,70 @@
+package UnitTests;
+
+import Source.VcdTraceWriter;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Jonah Tharakan
+ *
+ * Unit tests for HDLSim.VcdTraceWriter
+ */
+class VcdTraceWriterTest {
+
+    @Test
+    public void writeTest() throws IOException {
+        // /D is an alias of /A, so it shares its slot
+        List<String> names = Arrays.asList("/A", "/D", "/m0/B", "/m0/sub/C", "TERMINATE");
+        int[] slots = {0, 0, 1, 2, 3};
+        StringWriter out = new StringWriter();
+        VcdTraceWriter writer = new VcdTraceWriter(names, slots, Set.of("/A"), out);
+
+        writer.writeCycle(new int[] {0, 5, 1, 0});
+        writer.writeCycle(new int[] {1, 5, 1, 0});
+        writer.writeCycle(new int[] {1, 5, 1, 0});
+        writer.writeCycle(new int[] {1, 5, 3, 1});
+        writer.close();
+
+        String expected = String.join("\n",
+                "$version HDLSim $end",
+                "$timescale 1ns $end",
+                // One scope per / prefix, nested
+                "$scope module main $end",
+                "$var reg 32 ! A $end",
+                "$var wire 32 ! D $end",
+                "$var wire 32 $ TERMINATE $end",
+                "$scope module m0 $end",
+                "$var wire 32 \" B $end",
+                "$scope module sub $end",
+                "$var wire 32 # C $end",
+                "$upscope $end",
+                "$upscope $end",
+                "$upscope $end",
+                "$enddefinitions $end",
+                "#0",
+                "$dumpvars",
+                "b0 !",
+                "b101 \"",
+                "b1 #",
+                "b0 $",
+                "$end",
+                // Only changes are written, and cycles without any are skipped
+                "#1",
+                "b1 !",
+                "#3",
+                "b11 #",
+                "b1 $",
+                // The end of the run is marked one cycle after the last
+                "#4",
+                "");
+        assertEquals(expected, out.toString());
+    }
+
+}